@@ -1,6 +1,9 @@
 
 
 echo "connecting to production..."
+echo "draining production (running calls get up to 10 minutes)..."
+ssh -t krausni@192.168.43.6 "curl -s -X POST 'http://localhost:8080/jWebrtc/admin/drain?timeout=600'"
+ssh -t krausni@192.168.43.6 "for i in \$(seq 1 62); do curl -s http://localhost:8080/jWebrtc/admin/status | grep -q '\"calls\":0' && break; sleep 10; done"
 echo "stopping production tomcat..."
 ssh -t krausni@192.168.43.6 "sudo service tomcat8 stop"
 echo "copying ./jWebrtc/target/*.war  to production"
@@ -9,4 +12,6 @@ ssh -t krausni@192.168.43.6 "sudo rm -rf /var/tomcat8/webapps/jWebrtc*"
 ssh -t krausni@192.168.43.6 "sudo mv /tmp/jWeb*war  /var/tomcat8/webapps/jWebrtc.war"  
 echo "start production tomcat8  "
 ssh -t krausni@192.168.43.6 "sudo service tomcat8 start"
+echo "waiting for the warm-up..."
+ssh -t krausni@192.168.43.6 "for i in \$(seq 1 30); do curl -s http://localhost:8080/jWebrtc/health | grep -q '^OK' && break; sleep 5; done"
 echo "visit http://webrtc.a-fk.de/jWebrtc"
@@ -0,0 +1,153 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.net.InetAddress;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Health check for the load balancer and admin commands for deployments.
+ *
+ * GET /health - 200 while the node takes calls, 503 while warming up, draining or
+ *               without media server
+ * GET /admin/status - calls, sessions, recording disk usage and drain state as json
+ * GET /admin/stats?user=name - media quality of the running and recently ended calls
+ * GET /admin/stats/{call id}?since=ms - the samples of a call
+ * POST /admin/drain?timeout=seconds - start drain mode
+ * POST /admin/undrain - leave drain mode
+ *
+ * /admin is only served to requests from localhost.
+ */
+public class AdminServlet extends HttpServlet {
+
+	private static final Logger log = LoggerFactory.getLogger(AdminServlet.class);
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if ("/health".equals(request.getServletPath())) {
+			health(response);
+			return;
+		}
+		if (!isLocal(request, response)) {
+			return;
+		}
+		String path = request.getPathInfo();
+		if ("/status".equals(path)) {
+			status(response);
+		} else if ("/stats".equals(path)) {
+			response.setContentType("application/json");
+			response.getWriter().write(WebSocketServer.stats.getCalls(request.getParameter("user")).toString());
+		} else if (path != null && path.startsWith("/stats/")) {
+			callStats(path.substring("/stats/".length()), request, response);
+		} else {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if (!"/admin".equals(request.getServletPath()) || !isLocal(request, response)) {
+			return;
+		}
+		String command = request.getPathInfo();
+		if ("/drain".equals(command)) {
+			int timeout = Config.DRAIN_TIMEOUT;
+			String timeoutParam = request.getParameter("timeout");
+			if (timeoutParam != null) {
+				try {
+					timeout = Integer.parseInt(timeoutParam);
+				} catch (NumberFormatException e) {
+					response.sendError(HttpServletResponse.SC_BAD_REQUEST, "timeout must be a number of seconds");
+					return;
+				}
+			}
+			log.info("drain requested by {} with timeout {}s", request.getRemoteAddr(), timeout);
+			WebSocketServer.drain.start(timeout);
+			status(response);
+		} else if ("/undrain".equals(command)) {
+			log.info("undrain requested by {}", request.getRemoteAddr());
+			WebSocketServer.drain.cancel();
+			status(response);
+		} else {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	private void health(HttpServletResponse response) throws IOException {
+		response.setContentType("text/plain");
+		if (!WebSocketServer.warmUp.isReady()) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.getWriter().write("WARMING_UP");
+		} else if (WebSocketServer.drain.isDraining()) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.getWriter().write("DRAINING");
+		} else if (!Utils.kmsSupervisor().isHealthy()) {
+			response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			response.getWriter().write("KMS_UNAVAILABLE");
+		} else {
+			response.getWriter().write("OK");
+		}
+	}
+
+	private void callStats(String callId, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		CallStats callStats = WebSocketServer.stats.get(callId);
+		if (callStats == null) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		long since = 0;
+		String sinceParam = request.getParameter("since");
+		if (sinceParam != null) {
+			try {
+				since = Long.parseLong(sinceParam);
+			} catch (NumberFormatException e) {
+				response.sendError(HttpServletResponse.SC_BAD_REQUEST, "since must be a time in ms");
+				return;
+			}
+		}
+		response.setContentType("application/json");
+		response.getWriter().write(callStats.toJson(since).toString());
+	}
+
+	private void status(HttpServletResponse response) throws IOException {
+		DrainMode drain = WebSocketServer.drain;
+
+		JsonObject status = new JsonObject();
+		status.addProperty("node", WebSocketServer.cluster.getNode());
+		status.addProperty("ready", WebSocketServer.warmUp.isReady());
+		status.addProperty("draining", drain.isDraining());
+		if (drain.isDraining()) {
+			status.addProperty("deadlineInSeconds", Math.max(0, (drain.getDeadline() - System.currentTimeMillis()) / 1000));
+		}
+		status.addProperty("calls", drain.getRemainingCalls());
+		status.addProperty("sessions", WebSocketServer.registry.getUserSessions().size());
+		status.add("recordings", WebSocketServer.retention.getMetrics());
+		status.add("kms", Utils.kmsSupervisor().getMetrics());
+		status.add("callQuality", WebSocketServer.stats.getMetrics());
+		status.add("bitrate", WebSocketServer.bitrate.getMetrics());
+		status.add("iceCandidates", IceCandidatePolicy.getMetrics());
+		status.add("rateLimits", WebSocketServer.rateLimits.getMetrics());
+
+		response.setContentType("application/json");
+		response.getWriter().write(status.toString());
+	}
+
+	private boolean isLocal(HttpServletRequest request, HttpServletResponse response) throws IOException {
+		if (InetAddress.getByName(request.getRemoteAddr()).isLoopbackAddress()) {
+			return true;
+		}
+		log.warn("refused admin request from {}", request.getRemoteAddr());
+		response.sendError(HttpServletResponse.SC_FORBIDDEN);
+		return false;
+	}
+}
@@ -0,0 +1,272 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Caps the video bitrate of the calls by the load of the media server, so
+ * quality goes down step by step instead of KMS dropping frames for everyone.
+ *
+ * The load is the larger of the weighted number of call pipelines against
+ * {@link Config#ABR_CAPACITY} and the getStats latency of the
+ * {@link StatsCollector} against {@link Config#ABR_SATURATED_LATENCY}. Up to
+ * {@link Config#ABR_LOAD_LOW} calls get {@link Config#ABR_MAX_VIDEO_KBPS},
+ * towards full load the cap falls to {@link Config#ABR_MIN_VIDEO_KBPS}. New
+ * pipelines start at the current cap; running calls move towards it every
+ * {@link Config#ABR_INTERVAL} seconds, by at most a quarter down or a tenth
+ * up per step. A call losing packets is capped below what it currently gets.
+ *
+ * The cap applies to what the media server sends to the peers, which can be
+ * changed mid-call. What the peers send is only bounded at negotiation, by
+ * {@link Config#ABR_MAX_VIDEO_KBPS}: a receive limit goes into the SDP and
+ * would need a renegotiation to move.
+ *
+ * At {@link Config#ABR_AUDIO_ONLY_LOAD} and above the newest call without a
+ * user of {@link Config#ABR_PRIORITY_USERS} is switched to audio only, one per
+ * step. Below {@link Config#ABR_LOAD_LOW} they get their video back, again
+ * one per step. Both users are told with a 'callQuality' message. Voice
+ * calls ({@link Call#isAudioOnly()}) have no video to cap.
+ */
+public class BitrateController implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(BitrateController.class);
+
+	private final CallRegistry calls;
+	private final StatsCollector stats;
+	private final HashedWheelTimer timer;
+	private final Set<String> priorityUsers = new HashSet<>();
+	private volatile boolean stopped;
+	private volatile double load;
+	private volatile int targetCap = Config.ABR_MAX_VIDEO_KBPS;
+
+	public BitrateController(CallRegistry calls, StatsCollector stats, HashedWheelTimer timer) {
+		this.calls = calls;
+		this.stats = stats;
+		this.timer = timer;
+		for (String user : Config.ABR_PRIORITY_USERS.split(",")) {
+			if (!user.trim().isEmpty()) {
+				priorityUsers.add(user.trim());
+			}
+		}
+	}
+
+	public void start() {
+		if (Config.ABR_INTERVAL > 0) {
+			timer.newTimeout(this, Config.ABR_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	/**
+	 * Caps a new pipeline before its offers are processed. The receive limit
+	 * is the ceiling the cap may rise to later.
+	 */
+	public void configure(CallMediaPipeline pipeline) {
+		if (Config.ABR_INTERVAL <= 0) {
+			return;
+		}
+		try {
+			pipeline.setVideoRecvBandwidth(Config.ABR_MAX_VIDEO_KBPS, Config.ABR_MIN_VIDEO_KBPS);
+			pipeline.setVideoSendBandwidth(targetCap, Config.ABR_MIN_VIDEO_KBPS);
+		} catch (RuntimeException e) {
+			log.debug("capping new pipeline failed: {}", e.getMessage());
+		}
+	}
+
+	@Override
+	public void run() {
+		if (stopped) {
+			return;
+		}
+		try {
+			adjust();
+		} catch (RuntimeException e) {
+			log.error("adjusting bitrates failed: {}", e.getMessage(), e);
+		} finally {
+			if (!stopped) {
+				timer.newTimeout(this, Config.ABR_INTERVAL, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	private void adjust() {
+		List<Call> running = calls.getCalls();
+		double weight = 0;
+		for (Call call : running) {
+			weight += weight(call);
+		}
+		double callLoad = Config.ABR_CAPACITY > 0 ? weight / Config.ABR_CAPACITY : 0;
+		double latencyLoad = Config.ABR_SATURATED_LATENCY > 0 ? stats.getSampleLatencyMillis() / Config.ABR_SATURATED_LATENCY : 0;
+		double current = Math.max(callLoad, latencyLoad);
+		load = current;
+
+		double pressure = (current - Config.ABR_LOAD_LOW) / (1 - Config.ABR_LOAD_LOW);
+		pressure = Math.max(0, Math.min(1, pressure));
+		int target = (int) Math.round(Config.ABR_MAX_VIDEO_KBPS - pressure * (Config.ABR_MAX_VIDEO_KBPS - Config.ABR_MIN_VIDEO_KBPS));
+		if (target != targetCap) {
+			log.info("media server load {}%, video cap {} kbit/s", Math.round(current * 100), target);
+		}
+		targetCap = target;
+
+		Call degrade = null;
+		Call restore = null;
+		for (Call call : running) {
+			CallMediaPipeline pipeline = call.getPipeline();
+			Call.State state = call.getState();
+			if (pipeline == null || state != Call.State.ACTIVE && state != Call.State.SCREEN_SHARING) {
+				continue;
+			}
+			capCall(call, pipeline, target);
+			if (pipeline.isAudioOnly()) {
+				continue;
+			}
+			if (pipeline.isVideoEnabled()) {
+				if (current >= Config.ABR_AUDIO_ONLY_LOAD && !isPriority(call)
+						&& (degrade == null || call.getCreatedAt() > degrade.getCreatedAt())) {
+					degrade = call;
+				}
+			} else if (current < Config.ABR_LOAD_LOW && (restore == null || call.getCreatedAt() < restore.getCreatedAt())) {
+				restore = call;
+			}
+		}
+		if (degrade != null) {
+			setVideo(degrade, false);
+		}
+		if (restore != null) {
+			setVideo(restore, true);
+		}
+	}
+
+	/**
+	 * @return the share of media server capacity a call takes: a video call
+	 *         counts 1, a voice call {@link Config#ABR_AUDIO_WEIGHT}, a screen
+	 *         pipeline 1 more
+	 */
+	static double weight(Call call) {
+		if (call.getPipeline() == null) {
+			return 0;
+		}
+		double weight = call.isAudioOnly() ? Config.ABR_AUDIO_WEIGHT : 1;
+		return call.getScreenPipeline() != null ? weight + 1 : weight;
+	}
+
+	/**
+	 * Admission control: a new call is refused if it would take the load
+	 * beyond {@link Config#ADMISSION_MAX_LOAD}, counting the calls still
+	 * ringing as well. Voice calls weigh less and get in longer.
+	 */
+	public boolean admit(boolean audioOnly) {
+		if (Config.ABR_CAPACITY <= 0 || Config.ADMISSION_MAX_LOAD <= 0) {
+			return true;
+		}
+		double weight = audioOnly ? Config.ABR_AUDIO_WEIGHT : 1;
+		for (Call call : calls.getCalls()) {
+			weight += call.getPipeline() != null ? weight(call) : call.isAudioOnly() ? Config.ABR_AUDIO_WEIGHT : 1;
+		}
+		return weight <= Config.ABR_CAPACITY * Config.ADMISSION_MAX_LOAD;
+	}
+
+	private void capCall(Call call, CallMediaPipeline pipeline, int target) {
+		if (pipeline.isAudioOnly() && call.getScreenPipeline() == null) {
+			return;
+		}
+		int cap = target;
+		CallStats callStats = stats.get(call.getId());
+		if (callStats != null && callStats.size() > 0) {
+			for (boolean ofCallee : new boolean[] { false, true }) {
+				if (callStats.getLatest(ofCallee, CallStats.LOSS_PERMILLE) >= Config.STATS_DEGRADED_LOSS) {
+					int received = callStats.getLatest(ofCallee, CallStats.IN_KBPS);
+					cap = Math.min(cap, Math.max(Config.ABR_MIN_VIDEO_KBPS, received * 85 / 100));
+				}
+			}
+		}
+		int previous = pipeline.getVideoCap();
+		if (previous > 0) {
+			cap = Math.max(cap, previous * 3 / 4);
+			cap = Math.min(cap, previous + Math.max(previous / 10, 1));
+			if (Math.abs(cap - previous) * 20 < previous) {
+				// less than 5%, not worth the round trips
+				return;
+			}
+		}
+		try {
+			pipeline.setVideoSendBandwidth(cap, Config.ABR_MIN_VIDEO_KBPS);
+			CallMediaPipeline screen = call.getScreenPipeline();
+			if (screen != null) {
+				screen.setVideoSendBandwidth(cap, Config.ABR_MIN_VIDEO_KBPS);
+			}
+			log.debug("{}: video cap {} kbit/s", call, cap);
+		} catch (RuntimeException e) {
+			log.debug("capping {} failed: {}", call, e.getMessage());
+		}
+	}
+
+	private boolean isPriority(Call call) {
+		return priorityUsers.contains(call.getCaller().getName()) || priorityUsers.contains(call.getCallee().getName());
+	}
+
+	private void setVideo(Call call, boolean enabled) {
+		CallMediaPipeline pipeline = call.getPipeline();
+		if (pipeline == null) {
+			return;
+		}
+		try {
+			pipeline.setVideoEnabled(enabled);
+		} catch (RuntimeException e) {
+			log.debug("switching video of {} failed: {}", call, e.getMessage());
+			return;
+		}
+		log.info("{}: {} (media server load {}%)", call, enabled ? "video back on" : "switched to audio only",
+				Math.round(load * 100));
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "callQuality");
+		message.addProperty("audioOnly", !enabled);
+		message.addProperty("message", enabled ? "video is back" : "server is busy, video paused");
+		for (UserSession user : Arrays.asList(call.getCaller(), call.getCallee())) {
+			try {
+				synchronized (user.getSession()) {
+					user.sendMessage(message);
+				}
+			} catch (IOException | IllegalStateException e) {
+				log.debug("telling {} failed: {}", user.getName(), e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * @return state for /admin/status
+	 */
+	public JsonObject getMetrics() {
+		JsonObject metrics = new JsonObject();
+		metrics.addProperty("loadPercent", Math.round(load * 100));
+		metrics.addProperty("videoCapKbps", targetCap);
+		int audioOnly = 0;
+		int voice = 0;
+		for (Call call : calls.getCalls()) {
+			CallMediaPipeline pipeline = call.getPipeline();
+			if (call.isAudioOnly()) {
+				voice++;
+			} else if (pipeline != null && !pipeline.isVideoEnabled()) {
+				audioOnly++;
+			}
+		}
+		metrics.addProperty("audioOnlyCalls", audioOnly);
+		metrics.addProperty("voiceCalls", voice);
+		return metrics;
+	}
+}
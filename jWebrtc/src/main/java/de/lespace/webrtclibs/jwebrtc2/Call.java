@@ -0,0 +1,272 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A 1 to 1 call between two users and the media pipelines it owns.
+ *
+ * All state changes go through {@link #transition(State, State)} or
+ * {@link #end()}, so a hang-up, an error and a timeout racing each other
+ * cannot release the same call twice.
+ */
+public class Call {
+
+	private static final Logger log = LoggerFactory.getLogger(Call.class);
+
+	public enum State {
+		/** incomingCall was sent to the callee, no answer yet */
+		RINGING,
+		/** callee accepted, the pipeline is being built */
+		ACCEPTING,
+		/** media pipeline is up and both peers got their answers */
+		ACTIVE,
+		/** like ACTIVE, plus a second pipeline for the screen stream */
+		SCREEN_SHARING,
+		/** one of the parties hung up or the call failed */
+		ENDING
+	}
+
+	private final String id;
+	private final UserSession caller;
+	private final UserSession callee;
+	private final String callerSdpOffer;
+	private final long createdAt;
+	private final boolean audioOnly;
+	private final AtomicReference<State> state = new AtomicReference<State>(State.RINGING);
+
+	private CallMediaPipeline pipeline;
+	private CallMediaPipeline screenPipeline;
+	private UserSession screenSharer;
+	private String screenSdpOffer;
+
+	private HashedWheelTimer.Timeout stateTimeout;
+	private HashedWheelTimer.Timeout durationTimeout;
+	private boolean callerMediaFlowing;
+	private boolean calleeMediaFlowing;
+
+	public Call(UserSession caller, UserSession callee, String callerSdpOffer) {
+		this(caller, callee, callerSdpOffer, false);
+	}
+
+	/**
+	 * @param audioOnly
+	 *            a voice call, its pipeline carries and records audio only
+	 */
+	public Call(UserSession caller, UserSession callee, String callerSdpOffer, boolean audioOnly) {
+		this.id = UUID.randomUUID().toString();
+		this.caller = caller;
+		this.callee = callee;
+		this.callerSdpOffer = callerSdpOffer;
+		this.createdAt = System.currentTimeMillis();
+		this.audioOnly = audioOnly;
+	}
+
+	/**
+	 * An active call restored from a {@link SignalingSnapshot}, its media
+	 * kept flowing on the media server meanwhile.
+	 */
+	Call(String id, UserSession caller, UserSession callee, long createdAt, CallMediaPipeline pipeline) {
+		this.id = id;
+		this.caller = caller;
+		this.callee = callee;
+		this.callerSdpOffer = null;
+		this.createdAt = createdAt;
+		this.audioOnly = pipeline.isAudioOnly();
+		this.pipeline = pipeline;
+		this.callerMediaFlowing = true;
+		this.calleeMediaFlowing = true;
+		this.state.set(State.ACTIVE);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public boolean isAudioOnly() {
+		return audioOnly;
+	}
+
+	public UserSession getCaller() {
+		return caller;
+	}
+
+	public UserSession getCallee() {
+		return callee;
+	}
+
+	public String getCallerSdpOffer() {
+		return callerSdpOffer;
+	}
+
+	public long getCreatedAt() {
+		return createdAt;
+	}
+
+	public State getState() {
+		return state.get();
+	}
+
+	/**
+	 * Atomically moves the call from one state to another.
+	 *
+	 * @return false, if the call was not in the expected state (e.g. it was
+	 *         hung up in the meantime)
+	 */
+	public boolean transition(State expected, State next) {
+		boolean changed = state.compareAndSet(expected, next);
+		if (changed) {
+			log.debug("call {} [{} -> {}]: {} -> {}", id, caller.getName(), callee.getName(), expected, next);
+		}
+		return changed;
+	}
+
+	/**
+	 * Moves the call into {@link State#ENDING}.
+	 *
+	 * @return true only for the first caller, which is then responsible for
+	 *         notifying the peers and releasing the call
+	 */
+	public boolean end() {
+		State previous = state.getAndSet(State.ENDING);
+		if (previous != State.ENDING) {
+			log.debug("call {} [{} -> {}]: {} -> {}", id, caller.getName(), callee.getName(), previous, State.ENDING);
+		}
+		return previous != State.ENDING;
+	}
+
+	public boolean isParticipant(UserSession user) {
+		return user != null && (isCaller(user) || isCallee(user));
+	}
+
+	public boolean isCaller(UserSession user) {
+		return caller.getSessionId().equals(user.getSessionId());
+	}
+
+	public boolean isCallee(UserSession user) {
+		return callee.getSessionId().equals(user.getSessionId());
+	}
+
+	/**
+	 * @return the other party of the call, from the point of view of the
+	 *         given user
+	 */
+	public UserSession getPeer(UserSession user) {
+		return isCaller(user) ? callee : caller;
+	}
+
+	public synchronized CallMediaPipeline getPipeline() {
+		return pipeline;
+	}
+
+	public synchronized void setPipeline(CallMediaPipeline pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	public synchronized CallMediaPipeline getScreenPipeline() {
+		return screenPipeline;
+	}
+
+	public synchronized void setScreenPipeline(CallMediaPipeline screenPipeline) {
+		this.screenPipeline = screenPipeline;
+	}
+
+	public synchronized UserSession getScreenSharer() {
+		return screenSharer;
+	}
+
+	public synchronized String getScreenSdpOffer() {
+		return screenSdpOffer;
+	}
+
+	public synchronized void offerScreen(UserSession sharer, String sdpOffer) {
+		this.screenSharer = sharer;
+		this.screenSdpOffer = sdpOffer;
+	}
+
+	/**
+	 * Replaces the timeout guarding the current state (ring or media
+	 * timeout), the previous one is cancelled.
+	 */
+	public synchronized void setStateTimeout(HashedWheelTimer.Timeout timeout) {
+		if (stateTimeout != null) {
+			stateTimeout.cancel();
+		}
+		stateTimeout = timeout;
+	}
+
+	public synchronized void setDurationTimeout(HashedWheelTimer.Timeout timeout) {
+		if (durationTimeout != null) {
+			durationTimeout.cancel();
+		}
+		durationTimeout = timeout;
+	}
+
+	/**
+	 * Records that media of one party arrives at the media server. Once both
+	 * parties send media, the media timeout is cancelled.
+	 *
+	 * @param fromCaller
+	 *            true, if the media comes in on the caller endpoint
+	 * @return true, if media now flows in both directions for the first time
+	 */
+	public synchronized boolean mediaFlowing(boolean fromCaller) {
+		boolean before = isMediaFlowing();
+		if (fromCaller) {
+			callerMediaFlowing = true;
+		} else {
+			calleeMediaFlowing = true;
+		}
+		if (!before && isMediaFlowing()) {
+			setStateTimeout(null);
+			return true;
+		}
+		return false;
+	}
+
+	public synchronized boolean isMediaFlowing() {
+		return callerMediaFlowing && calleeMediaFlowing;
+	}
+
+	/**
+	 * Releases the screen sharing pipeline (if any) and forgets the pending
+	 * screen offer. The call itself stays up.
+	 */
+	public synchronized void releaseScreen() {
+		if (screenPipeline != null) {
+			screenPipeline.release();
+			screenPipeline = null;
+		}
+		screenSharer = null;
+		screenSdpOffer = null;
+		caller.clearScreen();
+		callee.clearScreen();
+	}
+
+	/**
+	 * Releases all media of this call and clears the endpoints of both
+	 * parties. Safe to call more than once.
+	 */
+	public synchronized void release() {
+		setStateTimeout(null);
+		setDurationTimeout(null);
+		releaseScreen();
+		if (pipeline != null) {
+			pipeline.release();
+			pipeline = null;
+		}
+		caller.clear();
+		callee.clear();
+	}
+
+	public String toString() {
+		return "call " + id + " [" + caller.getName() + " -> " + callee.getName() + "] " + state.get();
+	}
+}
@@ -1,7 +1,12 @@
 package de.lespace.webrtclibs.jwebrtc2;
 
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /*
  * (C) Copyright 2014 Kurento (http://kurento.org/)
@@ -20,8 +25,15 @@ import java.util.Date;
  *
  */
 
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import org.kurento.client.Composite;
+import org.kurento.client.HubPort;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaProfileSpecType;
+import org.kurento.client.MediaType;
 import org.kurento.client.RecorderEndpoint;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
@@ -29,7 +41,12 @@ import org.slf4j.LoggerFactory;
 
 /**
  * Media Pipeline (WebRTC endpoints, i.e. Kurento Media Elements) and
- * connections for the 1 to 1 video communication.
+ * connections for the 1 to 1 video communication, or for a voice call with
+ * audio only connections and recorders.
+ * 
+ * The call is recorded according to {@link Config#RECORDING_MODE}: one file
+ * per peer, or once through a Composite mix of both peers (with video, or
+ * audio only).
  * 
  * @author Boni Garcia (bgarcia@gsyc.es)
  * @author Micael Gallego (micael.gallego@gmail.com)
@@ -40,34 +57,145 @@ public class CallMediaPipeline {
 	
 	private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
 
-	// TODO define as environment variables
-	public static final String RECORDING_DIR = "file:///var/kurento/";
+	public static final String RECORDING_DIR = Config.RECORDING_DIR;
 	
 //	public static final String RECORDING_PATH = RECORDING_DIR + df.format(new Date()) + "-";
 	public static final String RECORDING_EXT = ".webm";
 
+	public enum RecordingMode {
+		PER_PEER, MIXED, AUDIO
+	}
+
 	private MediaPipeline pipeline;
 	private WebRtcEndpoint callerWebRtcEp;
 	private WebRtcEndpoint calleeWebRtcEp;
-	private RecorderEndpoint calleeRecorder;
-	private RecorderEndpoint callerRecorder;
+	private final List<CallRecorder> recorders = new ArrayList<CallRecorder>();
+	private final AtomicBoolean recording = new AtomicBoolean();
+	private boolean audioOnly;
+	// set by the BitrateController, 0 = not capped yet
+	private volatile int videoCap;
+	private volatile boolean videoDisabled;
+
+	/**
+	 * A recorder of this call and what it writes, for the
+	 * {@link RecordingCatalog}.
+	 */
+	private static class CallRecorder {
+		final RecorderEndpoint endpoint;
+		final String uri;
+		final String user;
+		final String peer;
+		final boolean mixed;
+		final MediaProfileSpecType profile;
+		Recording recording;
+
+		CallRecorder(MediaPipeline pipeline, String uri, String user, String peer, boolean mixed, MediaProfileSpecType profile) {
+			this(new RecorderEndpoint.Builder(pipeline, uri).withMediaProfile(profile).build(), uri, user, peer, mixed, profile);
+		}
+
+		/**
+		 * A recorder which exists but was not started yet.
+		 */
+		CallRecorder(RecorderEndpoint endpoint, String uri, String user, String peer, boolean mixed, MediaProfileSpecType profile) {
+			this.endpoint = endpoint;
+			this.uri = uri;
+			this.user = user;
+			this.peer = peer;
+			this.mixed = mixed;
+			this.profile = profile;
+		}
+
+		/**
+		 * A recorder which is already writing the recording.
+		 */
+		CallRecorder(RecorderEndpoint endpoint, Recording recording) {
+			this.endpoint = endpoint;
+			this.uri = recording.getUri();
+			this.user = recording.getUser();
+			this.peer = recording.getPeer();
+			this.mixed = recording.isMixed();
+			this.profile = MediaProfileSpecType.valueOf(recording.getProfile());
+			this.recording = recording;
+		}
+	}
 
 	public CallMediaPipeline(KurentoClient kurento, String from, String to) {
+		this(kurento, from, to, true);
+	}
+
+	/**
+	 * @param record
+	 *            false creates no recorders at all, see {@link RecordingPolicy}
+	 */
+	public CallMediaPipeline(KurentoClient kurento, String from, String to, boolean record) {
+		this(kurento, from, to, record, false);
+	}
+
+	/**
+	 * @param audioOnly
+	 *            connects only the audio of the peers and records it with an
+	 *            audio only profile, whatever {@link Config#RECORDING_MODE}
+	 *            and {@link Config#RECORDING_PROFILE} say
+	 */
+	public CallMediaPipeline(KurentoClient kurento, String from, String to, boolean record, boolean audioOnly) {
 		String date = df.format(new Date());
+		this.audioOnly = audioOnly;
 		
 		try {
 			this.pipeline = kurento.createMediaPipeline();
 			this.callerWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
 			this.calleeWebRtcEp = new WebRtcEndpoint.Builder(pipeline).build();
 			
-			this.callerRecorder = new RecorderEndpoint.Builder(pipeline, RECORDING_DIR + date + "-" + from + RECORDING_EXT).build();
-			this.calleeRecorder = new RecorderEndpoint.Builder(pipeline, RECORDING_DIR + date + "-" + to + RECORDING_EXT).build();
+			if (audioOnly) {
+				this.callerWebRtcEp.connect(this.calleeWebRtcEp, MediaType.AUDIO);
+				this.calleeWebRtcEp.connect(this.callerWebRtcEp, MediaType.AUDIO);
+			} else {
+				this.callerWebRtcEp.connect(this.calleeWebRtcEp);
+				this.calleeWebRtcEp.connect(this.callerWebRtcEp);
+			}
 
-			this.callerWebRtcEp.connect(this.calleeWebRtcEp);
-			this.callerWebRtcEp.connect(this.callerRecorder);
-			
-			this.calleeWebRtcEp.connect(this.callerWebRtcEp);
-			this.calleeWebRtcEp.connect(this.calleeRecorder);
+			if (!record) {
+				log.debug("not recording call from {} to {}", from, to);
+				return;
+			}
+			RecordingMode mode = RecordingMode.valueOf(Config.RECORDING_MODE.toUpperCase());
+			if (audioOnly && mode == RecordingMode.MIXED) {
+				mode = RecordingMode.AUDIO;
+			}
+			MediaProfileSpecType profile = recordingProfile(mode, audioOnly);
+			String ext = profile.name().startsWith("MP4") ? ".mp4" : RECORDING_EXT;
+
+			if (mode == RecordingMode.PER_PEER) {
+				CallRecorder callerRecorder = new CallRecorder(pipeline, RECORDING_DIR + date + "-" + inFileName(from) + ext, from, to, false, profile);
+				CallRecorder calleeRecorder = new CallRecorder(pipeline, RECORDING_DIR + date + "-" + inFileName(to) + ext, to, from, false, profile);
+				if (audioOnly) {
+					this.callerWebRtcEp.connect(callerRecorder.endpoint, MediaType.AUDIO);
+					this.calleeWebRtcEp.connect(calleeRecorder.endpoint, MediaType.AUDIO);
+				} else {
+					this.callerWebRtcEp.connect(callerRecorder.endpoint);
+					this.calleeWebRtcEp.connect(calleeRecorder.endpoint);
+				}
+				recorders.add(callerRecorder);
+				recorders.add(calleeRecorder);
+			} else {
+				// both peers are mixed once and written to a single file
+				Composite composite = new Composite.Builder(pipeline).build();
+				HubPort callerPort = new HubPort.Builder(composite).build();
+				HubPort calleePort = new HubPort.Builder(composite).build();
+				HubPort recorderPort = new HubPort.Builder(composite).build();
+				CallRecorder recorder = new CallRecorder(pipeline, RECORDING_DIR + date + "-" + inFileName(from) + "-" + inFileName(to) + ext,
+						from, to, true, profile);
+				if (mode == RecordingMode.AUDIO) {
+					this.callerWebRtcEp.connect(callerPort, MediaType.AUDIO);
+					this.calleeWebRtcEp.connect(calleePort, MediaType.AUDIO);
+					recorderPort.connect(recorder.endpoint, MediaType.AUDIO);
+				} else {
+					this.callerWebRtcEp.connect(callerPort);
+					this.calleeWebRtcEp.connect(calleePort);
+					recorderPort.connect(recorder.endpoint);
+				}
+				recorders.add(recorder);
+			}
 		} catch (Throwable t) {
 			if (this.pipeline != null) {
 				pipeline.release();
@@ -76,6 +204,138 @@ public class CallMediaPipeline {
 		}
 	}
 
+	private CallMediaPipeline(MediaPipeline pipeline, WebRtcEndpoint callerWebRtcEp, WebRtcEndpoint calleeWebRtcEp) {
+		this.pipeline = pipeline;
+		this.callerWebRtcEp = callerWebRtcEp;
+		this.calleeWebRtcEp = calleeWebRtcEp;
+	}
+
+	/**
+	 * @return the ids of the media objects, for a {@link SignalingSnapshot}
+	 */
+	public JsonObject toSnapshot() {
+		JsonObject snapshot = new JsonObject();
+		snapshot.addProperty("pipeline", pipeline.getId());
+		snapshot.addProperty("caller", callerWebRtcEp.getId());
+		snapshot.addProperty("callee", calleeWebRtcEp.getId());
+		snapshot.addProperty("audioOnly", audioOnly);
+		JsonArray recorderIds = new JsonArray();
+		for (CallRecorder recorder : recorders) {
+			JsonObject recorderId = new JsonObject();
+			recorderId.addProperty("endpoint", recorder.endpoint.getId());
+			if (recorder.recording != null) {
+				recorderId.addProperty("recording", recorder.recording.getId());
+			} else if (!recording.get()) {
+				// not started yet, it starts once media flows in the reattached call
+				recorderId.addProperty("uri", recorder.uri);
+				recorderId.addProperty("user", recorder.user);
+				recorderId.addProperty("peer", recorder.peer);
+				recorderId.addProperty("mixed", recorder.mixed);
+				recorderId.addProperty("profile", recorder.profile.name());
+			} else {
+				continue;
+			}
+			recorderIds.add(recorderId);
+		}
+		snapshot.add("recorders", recorderIds);
+		return snapshot;
+	}
+
+	/**
+	 * Reattaches to a pipeline which is still running on the media server.
+	 *
+	 * @throws RuntimeException
+	 *             if the pipeline is gone
+	 */
+	public static CallMediaPipeline fromSnapshot(KurentoClient kurento, JsonObject snapshot) {
+		MediaPipeline pipeline = kurento.getById(snapshot.get("pipeline").getAsString(), MediaPipeline.class);
+		// fails, if the media server does not know the pipeline anymore
+		pipeline.getName();
+		CallMediaPipeline restored = new CallMediaPipeline(pipeline,
+				kurento.getById(snapshot.get("caller").getAsString(), WebRtcEndpoint.class),
+				kurento.getById(snapshot.get("callee").getAsString(), WebRtcEndpoint.class));
+		restored.audioOnly = snapshot.has("audioOnly") && snapshot.get("audioOnly").getAsBoolean();
+		boolean started = false;
+		for (JsonElement element : snapshot.getAsJsonArray("recorders")) {
+			JsonObject recorderId = element.getAsJsonObject();
+			RecorderEndpoint endpoint = kurento.getById(recorderId.get("endpoint").getAsString(), RecorderEndpoint.class);
+			if (!recorderId.has("recording")) {
+				restored.recorders.add(new CallRecorder(endpoint, recorderId.get("uri").getAsString(),
+						recorderId.get("user").getAsString(), recorderId.get("peer").getAsString(),
+						recorderId.get("mixed").getAsBoolean(), MediaProfileSpecType.valueOf(recorderId.get("profile").getAsString())));
+				continue;
+			}
+			Recording recording = WebSocketServer.recordings.get(recorderId.get("recording").getAsString());
+			if (recording != null) {
+				restored.recorders.add(new CallRecorder(endpoint, recording));
+				started = true;
+			}
+		}
+		restored.recording.set(started);
+		return restored;
+	}
+
+	/**
+	 * Limits the video both endpoints accept, in kbit/s. This goes into the
+	 * SDP answer, so it only has an effect before the offers are processed;
+	 * what the peers send cannot be changed later without a renegotiation.
+	 */
+	public void setVideoRecvBandwidth(int maxKbps, int minKbps) {
+		int min = Math.min(minKbps, maxKbps);
+		for (WebRtcEndpoint endpoint : new WebRtcEndpoint[] { callerWebRtcEp, calleeWebRtcEp }) {
+			endpoint.setMaxVideoRecvBandwidth(maxKbps);
+			endpoint.setMinVideoRecvBandwidth(min);
+		}
+	}
+
+	/**
+	 * Caps the video both endpoints send to their peers, in kbit/s. Takes
+	 * effect at any time of the call, the send bandwidth estimation (REMB)
+	 * of the endpoints follows it.
+	 */
+	public void setVideoSendBandwidth(int maxKbps, int minKbps) {
+		int min = Math.min(minKbps, maxKbps);
+		for (WebRtcEndpoint endpoint : new WebRtcEndpoint[] { callerWebRtcEp, calleeWebRtcEp }) {
+			endpoint.setMaxVideoSendBandwidth(maxKbps);
+			endpoint.setMinVideoSendBandwidth(min);
+		}
+		videoCap = maxKbps;
+	}
+
+	/**
+	 * @return the send cap of {@link #setVideoSendBandwidth} in kbit/s, 0 if
+	 *         there is none
+	 */
+	public int getVideoCap() {
+		return videoCap;
+	}
+
+	/**
+	 * Stops or resumes forwarding video between the peers, audio and the
+	 * recorders are not touched. Nothing to do for an audio only pipeline.
+	 */
+	public synchronized void setVideoEnabled(boolean enabled) {
+		if (audioOnly || enabled == !videoDisabled) {
+			return;
+		}
+		if (enabled) {
+			callerWebRtcEp.connect(calleeWebRtcEp, MediaType.VIDEO);
+			calleeWebRtcEp.connect(callerWebRtcEp, MediaType.VIDEO);
+		} else {
+			callerWebRtcEp.disconnect(calleeWebRtcEp, MediaType.VIDEO);
+			calleeWebRtcEp.disconnect(callerWebRtcEp, MediaType.VIDEO);
+		}
+		videoDisabled = !enabled;
+	}
+
+	public boolean isVideoEnabled() {
+		return !audioOnly && !videoDisabled;
+	}
+
+	public boolean isAudioOnly() {
+		return audioOnly;
+	}
+
 	public String generateSdpAnswerForCaller(String sdpOffer) {
 		return callerWebRtcEp.processOffer(sdpOffer);
 	}
@@ -84,9 +344,30 @@ public class CallMediaPipeline {
 		return calleeWebRtcEp.processOffer(sdpOffer);
 	}
 
+	/**
+	 * Stops the recorders (so the files are finalized) and releases the
+	 * pipeline.
+	 */
 	public void release() {
+		if (recording.compareAndSet(true, false)) {
+			for (CallRecorder recorder : recorders) {
+				try {
+					recorder.endpoint.stopAndWait();
+				} catch (RuntimeException e) {
+					log.warn("Stopping recorder failed: {}", e.getMessage());
+				}
+				if (recorder.recording != null) {
+					WebSocketServer.recordings.finished(recorder.recording);
+				}
+			}
+		}
 		if (pipeline != null) {
-			pipeline.release();
+			try {
+				pipeline.release();
+			} catch (RuntimeException e) {
+				// the media server is gone, and the pipeline with it
+				log.warn("Releasing pipeline failed: {}", e.getMessage());
+			}
 		}
 	}
 
@@ -98,10 +379,46 @@ public class CallMediaPipeline {
 		return calleeWebRtcEp;
 	}
 
+	/**
+	 * Starts the recorders, once. Does nothing if the call is not recorded.
+	 */
 	public void record() {
+		if (recorders.isEmpty() || !recording.compareAndSet(false, true)) {
+			return;
+		}
 		log.debug("Start recording...");
-		calleeRecorder.record();
-		callerRecorder.record();
+		for (CallRecorder recorder : recorders) {
+			recorder.endpoint.record();
+			recorder.recording = WebSocketServer.recordings.started(recorder.uri, recorder.user, recorder.peer, recorder.mixed,
+					recorder.profile.name());
+		}
+	}
+
+	public boolean isRecording() {
+		return recording.get();
+	}
+
+	/**
+	 * @return the user name percent-encoded, user names are not validated and
+	 *         may contain anything that is not allowed in a uri or a file name
+	 */
+	static String inFileName(String name) {
+		try {
+			return URLEncoder.encode(name, "UTF-8").replace("+", "%20").replace("*", "%2A");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * {@link Config#RECORDING_PROFILE}, with an audio only profile in audio mode.
+	 */
+	private static MediaProfileSpecType recordingProfile(RecordingMode mode, boolean audioOnly) {
+		MediaProfileSpecType profile = MediaProfileSpecType.valueOf(Config.RECORDING_PROFILE.toUpperCase());
+		if ((mode == RecordingMode.AUDIO || audioOnly) && !profile.name().endsWith("AUDIO_ONLY")) {
+			profile = profile.name().startsWith("MP4") ? MediaProfileSpecType.MP4_AUDIO_ONLY : MediaProfileSpecType.WEBM_AUDIO_ONLY;
+		}
+		return profile;
 	}
 
 	public MediaPipeline getPipeline() {
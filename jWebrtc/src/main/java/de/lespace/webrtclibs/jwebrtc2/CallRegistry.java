@@ -0,0 +1,98 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.websocket.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Calls currently known to the server. Each call is indexed by its id and by
+ * the websocket session id of both participants, so a hang-up or a closing
+ * socket finds its call without going through user names.
+ */
+public class CallRegistry {
+
+	private ConcurrentHashMap<String, Call> callsById = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, Call> callsBySessionId = new ConcurrentHashMap<>();
+
+	private static final Logger log = LoggerFactory.getLogger(CallRegistry.class);
+
+	/**
+	 * Registers a new call.
+	 *
+	 * @param call
+	 * @return false, if one of the participants is already in a call. Nothing
+	 *         is registered in that case.
+	 */
+	public boolean register(Call call) {
+		String callerSessionId = call.getCaller().getSessionId();
+		String calleeSessionId = call.getCallee().getSessionId();
+
+		if (callsBySessionId.putIfAbsent(callerSessionId, call) != null) {
+			log.debug("caller {} is already in a call", call.getCaller().getName());
+			return false;
+		}
+		if (callsBySessionId.putIfAbsent(calleeSessionId, call) != null) {
+			log.debug("callee {} is already in a call", call.getCallee().getName());
+			callsBySessionId.remove(callerSessionId, call);
+			return false;
+		}
+		callsById.put(call.getId(), call);
+		log.debug("registered {}", call);
+		return true;
+	}
+
+	public Call getById(String id) {
+		return callsById.get(id);
+	}
+
+	/**
+	 * @param session
+	 * @return the call the session takes part in, or null
+	 */
+	public Call getBySession(Session session) {
+		return callsBySessionId.get(session.getId());
+	}
+
+	public boolean isInCall(Session session) {
+		return callsBySessionId.containsKey(session.getId());
+	}
+
+	/**
+	 * Removes the call from all indexes. Entries which meanwhile belong to a
+	 * different call are left alone.
+	 */
+	public void remove(Call call) {
+		callsById.remove(call.getId(), call);
+		callsBySessionId.remove(call.getCaller().getSessionId(), call);
+		callsBySessionId.remove(call.getCallee().getSessionId(), call);
+		log.debug("removed {}", call);
+	}
+
+	/**
+	 * Re-indexes the call of a participant which resumed on a new websocket
+	 * session.
+	 */
+	public void rebind(String oldSessionId, String newSessionId) {
+		Call call = callsBySessionId.remove(oldSessionId);
+		if (call != null) {
+			callsBySessionId.put(newSessionId, call);
+			log.debug("{} moved from session {} to {}", call, oldSessionId, newSessionId);
+		}
+	}
+
+	public List<Call> getCalls() {
+		return new ArrayList<Call>(callsById.values());
+	}
+
+	public int size() {
+		return callsById.size();
+	}
+}
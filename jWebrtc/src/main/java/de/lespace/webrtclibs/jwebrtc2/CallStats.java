@@ -0,0 +1,207 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Media quality of one call over time: the last {@link Config#STATS_SAMPLES}
+ * samples taken by the {@link StatsCollector}, in a ring of primitive
+ * arrays which is allocated once. Recording a sample only stores numbers.
+ *
+ * Each sample has, for caller and callee, as seen by their endpoint on the
+ * media server: bitrate received from and sent to the user (kbit/s), loss of
+ * the packets received from the user since the previous sample (per mille),
+ * jitter of the received streams and round trip time to the user (ms).
+ */
+public class CallStats {
+
+	public static final int IN_KBPS = 0;
+	public static final int OUT_KBPS = 1;
+	public static final int LOSS_PERMILLE = 2;
+	public static final int JITTER_MS = 3;
+	public static final int RTT_MS = 4;
+	static final int FIELDS = 5;
+	private static final String[] FIELD_NAMES = { "inKbps", "outKbps", "lossPermille", "jitterMs", "rttMs" };
+
+	private final String callId;
+	private final String caller;
+	private final String callee;
+	private final long[] times;
+	// FIELDS values of the caller, then FIELDS of the callee, per sample
+	private final int[] values;
+	private int next;
+	private int size;
+	private volatile long endedAt;
+
+	// counters of the previous sample, per party: bytes in, bytes out, packets received, packets lost
+	private final long[] counters = new long[8];
+	// the sample being filled
+	private final int[] scratch = new int[FIELDS * 2];
+
+	public CallStats(String callId, String caller, String callee, int capacity) {
+		this.callId = callId;
+		this.caller = caller;
+		this.callee = callee;
+		this.times = new long[capacity];
+		this.values = new int[capacity * FIELDS * 2];
+		for (int i = 0; i < counters.length; i++) {
+			counters[i] = -1;
+		}
+	}
+
+	/**
+	 * Turns the cumulative counters of one party into its half of the next
+	 * sample, which {@link #record(long)} appends. Both run under the lock of
+	 * this object.
+	 *
+	 * @param ofCallee
+	 *            false for the caller
+	 * @param intervalMillis
+	 *            time since the previous sample
+	 */
+	synchronized void fill(boolean ofCallee, long intervalMillis, long bytesIn, long bytesOut, long packetsReceived,
+			long packetsLost, double jitterMs, double rttMs) {
+		int slot = ofCallee ? FIELDS : 0;
+		int counter = ofCallee ? 4 : 0;
+		scratch[slot + IN_KBPS] = kbps(bytesIn, counters[counter], intervalMillis);
+		scratch[slot + OUT_KBPS] = kbps(bytesOut, counters[counter + 1], intervalMillis);
+		long received = packetsReceived - counters[counter + 2];
+		long lost = packetsLost - counters[counter + 3];
+		scratch[slot + LOSS_PERMILLE] = counters[counter + 2] < 0 || received + lost <= 0 || lost < 0 ? 0
+				: (int) (lost * 1000 / (received + lost));
+		scratch[slot + JITTER_MS] = (int) Math.round(jitterMs);
+		scratch[slot + RTT_MS] = (int) Math.round(rttMs);
+		counters[counter] = bytesIn;
+		counters[counter + 1] = bytesOut;
+		counters[counter + 2] = packetsReceived;
+		counters[counter + 3] = packetsLost;
+	}
+
+	private static int kbps(long bytes, long previous, long intervalMillis) {
+		if (previous < 0 || bytes < previous || intervalMillis <= 0) {
+			return 0;
+		}
+		return (int) ((bytes - previous) * 8 / intervalMillis);
+	}
+
+	/**
+	 * Appends the sample filled in before, overwriting the oldest one when
+	 * the ring is full.
+	 */
+	synchronized void record(long time) {
+		times[next] = time;
+		System.arraycopy(scratch, 0, values, next * FIELDS * 2, FIELDS * 2);
+		next = (next + 1) % times.length;
+		if (size < times.length) {
+			size++;
+		}
+	}
+
+	/**
+	 * @return time of the latest sample, 0 if there is none
+	 */
+	public synchronized long getLatestTime() {
+		return size == 0 ? 0 : times[(next - 1 + times.length) % times.length];
+	}
+
+	/**
+	 * @param ofCallee
+	 *            false for the caller
+	 * @param field
+	 *            one of IN_KBPS, OUT_KBPS, LOSS_PERMILLE, JITTER_MS, RTT_MS
+	 * @return the value of the latest sample, 0 if there is none
+	 */
+	public synchronized int getLatest(boolean ofCallee, int field) {
+		if (size == 0) {
+			return 0;
+		}
+		int sample = (next - 1 + times.length) % times.length;
+		return values[sample * FIELDS * 2 + (ofCallee ? FIELDS : 0) + field];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public String getCallId() {
+		return callId;
+	}
+
+	public String getCaller() {
+		return caller;
+	}
+
+	public String getCallee() {
+		return callee;
+	}
+
+	/**
+	 * @return when the call ended, 0 while it is running
+	 */
+	public long getEndedAt() {
+		return endedAt;
+	}
+
+	void ended(long time) {
+		endedAt = time;
+	}
+
+	/**
+	 * @param since
+	 *            only samples after this time (ms)
+	 * @return the samples, oldest first
+	 */
+	public synchronized JsonObject toJson(long since) {
+		JsonObject json = summaryJson();
+		JsonArray samples = new JsonArray();
+		for (int i = 0; i < size; i++) {
+			int sample = (next - size + i + times.length) % times.length;
+			if (times[sample] <= since) {
+				continue;
+			}
+			JsonObject entry = new JsonObject();
+			entry.addProperty("time", times[sample]);
+			entry.add("caller", party(sample, 0));
+			entry.add("callee", party(sample, FIELDS));
+			samples.add(entry);
+		}
+		json.add("samples", samples);
+		return json;
+	}
+
+	/**
+	 * @return the call with its latest sample
+	 */
+	public synchronized JsonObject summaryJson() {
+		JsonObject json = new JsonObject();
+		json.addProperty("call", callId);
+		json.addProperty("caller", caller);
+		json.addProperty("callee", callee);
+		if (endedAt > 0) {
+			json.addProperty("endedAt", endedAt);
+		}
+		if (size > 0) {
+			int sample = (next - 1 + times.length) % times.length;
+			JsonObject latest = new JsonObject();
+			latest.addProperty("time", times[sample]);
+			latest.add("caller", party(sample, 0));
+			latest.add("callee", party(sample, FIELDS));
+			json.add("latest", latest);
+		}
+		return json;
+	}
+
+	private JsonObject party(int sample, int slot) {
+		JsonObject party = new JsonObject();
+		int offset = sample * FIELDS * 2 + slot;
+		for (int field = 0; field < FIELDS; field++) {
+			party.addProperty(FIELD_NAMES[field], values[offset + field]);
+		}
+		return party;
+	}
+}
@@ -0,0 +1,94 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * The remote ICE candidates of one stream: handed to the endpoint right away
+ * once it exists, queued until then. The websocket thread adds candidates
+ * while another thread may be setting the endpoint, so the queue is lock
+ * free and each queued candidate is taken out exactly once, by whichever
+ * thread drains first. Candidates trickled twice are dropped. The endpoint is
+ * swapped atomically, so of two threads taking it out only one gets it back.
+ */
+public class CandidateQueue {
+
+	private final Queue<IceCandidate> pending = new ConcurrentLinkedQueue<>();
+	// candidate lines of this stream so far, with their m-line
+	private final Set<String> seen = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final AtomicReference<WebRtcEndpoint> endpoint = new AtomicReference<>();
+
+	/**
+	 * Adds the candidate to the endpoint, or queues it until the endpoint
+	 * exists.
+	 *
+	 * @return false if the candidate was a duplicate
+	 */
+	public boolean add(IceCandidate candidate) {
+		if (!seen.add(candidate.getSdpMLineIndex() + " " + candidate.getCandidate())) {
+			return false;
+		}
+		WebRtcEndpoint current = endpoint.get();
+		if (current != null) {
+			current.addIceCandidate(candidate);
+			return true;
+		}
+		pending.add(candidate);
+		// the endpoint may have been set in between, make sure the candidate is not left behind
+		if (endpoint.get() != null) {
+			drain();
+		}
+		return true;
+	}
+
+	/**
+	 * Sets the endpoint and hands it the queued candidates in one pass.
+	 *
+	 * @return the previous endpoint, if any; when several threads set the
+	 *         endpoint at once each previous endpoint goes to exactly one
+	 */
+	public WebRtcEndpoint setEndpoint(WebRtcEndpoint endpoint) {
+		WebRtcEndpoint previous = this.endpoint.getAndSet(endpoint);
+		drain();
+		return previous;
+	}
+
+	public WebRtcEndpoint getEndpoint() {
+		return endpoint.get();
+	}
+
+	/**
+	 * @return the candidates still waiting for the endpoint
+	 */
+	public int size() {
+		return pending.size();
+	}
+
+	/**
+	 * Forgets endpoint, queued and seen candidates, for the next stream.
+	 */
+	public void clear() {
+		endpoint.set(null);
+		pending.clear();
+		seen.clear();
+	}
+
+	private void drain() {
+		WebRtcEndpoint current = endpoint.get();
+		IceCandidate candidate;
+		while (current != null && (candidate = pending.poll()) != null) {
+			current.addIceCandidate(candidate);
+		}
+	}
+}
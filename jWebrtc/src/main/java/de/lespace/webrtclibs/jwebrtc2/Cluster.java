@@ -0,0 +1,294 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Connects the signaling nodes, so users on different nodes can call each
+ * other.
+ *
+ * A call lives on the node of the caller. The callee is represented there by
+ * a {@link RemoteUserSession}: what the call sends to it is delivered to the
+ * callee's websocket by its node ('deliver'), and the callee's answers, ICE
+ * candidates and hang ups which its node cannot handle itself are sent back
+ * to the caller's node ('signal') and handled there like messages of a local
+ * user. When a node goes down the calls between it and this node end on
+ * both sides.
+ */
+public class Cluster implements ClusterBackend.Listener {
+
+	private static final Logger log = LoggerFactory.getLogger(Cluster.class);
+
+	/**
+	 * Messages of a user which belong to a call on another node.
+	 */
+	static final Set<String> CALL_MESSAGES = new HashSet<>(Arrays.asList("incomingCallResponse", "incomingScreenCallResponse",
+			"callScreen", "onIceCandidate", "onIceCandidateScreen", "stop", "stopScreen"));
+
+	/**
+	 * Handles what other nodes send, implemented by the websocket endpoint.
+	 */
+	public interface Handler {
+		/**
+		 * A message of a remote user for a call on this node.
+		 */
+		void onSignal(RemoteUserSession user, JsonObject message);
+
+		/**
+		 * A user of another node came, changed status or (status null) left.
+		 */
+		void onPresence(String name, String status);
+
+		/**
+		 * Another node is down, the calls of this node with its users have to
+		 * end.
+		 */
+		void onNodeLost(String node);
+
+		/**
+		 * @return true, if the local user cannot take another call
+		 */
+		boolean isBusy(UserSession user);
+	}
+
+	private final String node;
+	private final ClusterBackend backend;
+	private final UserRegistry registry;
+	private volatile Handler handler;
+	// node of the call a local user takes part in, if the call lives on another node
+	private final ConcurrentHashMap<String, String> remoteCalls = new ConcurrentHashMap<>();
+
+	public Cluster(String node, ClusterBackend backend, UserRegistry registry) {
+		this.node = node;
+		this.backend = backend;
+		this.registry = registry;
+	}
+
+	/**
+	 * @return the cluster configured with {@link Config#CLUSTER_BACKEND}
+	 */
+	public static Cluster create(UserRegistry registry) {
+		String node = Config.CLUSTER_NODE_ID;
+		if (node == null || node.isEmpty()) {
+			try {
+				node = InetAddress.getLocalHost().getHostName();
+			} catch (UnknownHostException e) {
+				node = "node";
+			}
+		}
+		ClusterBackend backend = "http".equals(Config.CLUSTER_BACKEND) ? new HttpClusterBackend(Config.CLUSTER_PEERS)
+				: new LoopbackClusterBackend();
+		return new Cluster(node, backend, registry);
+	}
+
+	public void start(Handler handler) {
+		this.handler = handler;
+		backend.start(node, this);
+	}
+
+	public void stop() {
+		backend.stop();
+	}
+
+	/**
+	 * Publishes the status of a local user, null if it is gone.
+	 */
+	public void publish(String name, String status) {
+		if (status == null) {
+			remoteCalls.remove(name);
+		}
+		backend.publish(name, status);
+	}
+
+	/**
+	 * @return where the user is connected if that is another node, or null
+	 */
+	public Presence locateRemote(String name) {
+		Presence presence = backend.lookup(name);
+		return presence != null && !presence.getNode().equals(node) ? presence : null;
+	}
+
+	/**
+	 * @return the stand-in for a user of another node, or null if the user is
+	 *         not connected to any other node
+	 */
+	public RemoteUserSession getRemoteUser(String name) {
+		Presence presence = locateRemote(name);
+		return presence != null ? bindRemoteUser(name, presence.getNode()) : null;
+	}
+
+	private RemoteUserSession bindRemoteUser(String name, String userNode) {
+		UserSession known = registry.getRemoteByName(name);
+		if (known instanceof RemoteUserSession && ((RemoteUserSession) known).getNode().equals(userNode)) {
+			return (RemoteUserSession) known;
+		}
+		RemoteUserSession user = new RemoteUserSession(name, userNode, this);
+		registry.registerRemote(user);
+		return user;
+	}
+
+	/**
+	 * @return names of the users connected to other nodes
+	 */
+	public List<String> getRemoteUserNames() {
+		List<String> names = new ArrayList<String>();
+		for (Map.Entry<String, Presence> entry : backend.getDirectory().entrySet()) {
+			if (!entry.getValue().getNode().equals(node)) {
+				names.add(entry.getKey());
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Sends a message to a user of another node.
+	 */
+	void deliver(String userNode, String name, JsonObject message) {
+		JsonObject envelope = new JsonObject();
+		envelope.addProperty("type", "deliver");
+		envelope.addProperty("to", name);
+		envelope.add("message", message);
+		backend.send(userNode, envelope);
+	}
+
+	/**
+	 * Sends a message of a local user to the node of its call, if the call
+	 * lives on another node.
+	 *
+	 * @return false, if the user has no call on another node
+	 */
+	public boolean forward(UserSession user, JsonObject message) {
+		String callNode = remoteCalls.get(user.getName());
+		if (callNode == null) {
+			return false;
+		}
+		String id = message.get("id").getAsString();
+		if (id.equals("stop") || id.equals("incomingCallResponse") && message.has("callResponse")
+				&& !"accept".equals(message.get("callResponse").getAsString())) {
+			remoteCalls.remove(user.getName(), callNode);
+		}
+		JsonObject envelope = new JsonObject();
+		envelope.addProperty("type", "signal");
+		envelope.addProperty("from", user.getName());
+		envelope.add("message", message);
+		backend.send(callNode, envelope);
+		log.debug("forwarded {} of {} to node {}", id, user.getName(), callNode);
+		return true;
+	}
+
+	@Override
+	public void onPresence(String name, String userNode, String status) {
+		if (status == null) {
+			registry.removeRemote(name);
+		}
+		Handler current = handler;
+		if (current != null && registry.getLocalByName(name) == null) {
+			current.onPresence(name, status);
+		}
+	}
+
+	@Override
+	public void onNodeLost(String lostNode) {
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "stopCommunication");
+		message.addProperty("message", "remote node lost");
+		for (Map.Entry<String, String> call : remoteCalls.entrySet()) {
+			if (!call.getValue().equals(lostNode) || !remoteCalls.remove(call.getKey(), lostNode)) {
+				continue;
+			}
+			UserSession user = registry.getLocalByName(call.getKey());
+			if (user == null) {
+				continue;
+			}
+			try {
+				synchronized (user.getSession()) {
+					user.sendMessage(message);
+				}
+			} catch (IOException | IllegalStateException e) {
+				log.debug("telling {} about the lost node failed: {}", user.getName(), e.getMessage());
+			}
+		}
+		Handler current = handler;
+		if (current != null) {
+			current.onNodeLost(lostNode);
+		}
+	}
+
+	@Override
+	public void onMessage(String fromNode, JsonObject envelope) {
+		String type = envelope.has("type") ? envelope.get("type").getAsString() : "";
+		JsonObject message = envelope.getAsJsonObject("message");
+		switch (type) {
+		case "deliver":
+			String to = envelope.get("to").getAsString();
+			UserSession user = registry.getLocalByName(to);
+			if (user == null) {
+				log.debug("{} is not connected here anymore, dropping {}", to, message);
+				return;
+			}
+			String id = message.has("id") ? message.get("id").getAsString() : "";
+			if (id.equals("incomingCall")) {
+				if (handler.isBusy(user) || remoteCalls.containsKey(to)) {
+					// the caller's node only knows the calls it has itself
+					JsonObject reject = new JsonObject();
+					reject.addProperty("id", "incomingCallResponse");
+					reject.addProperty("from", message.get("from").getAsString());
+					reject.addProperty("callResponse", "reject");
+					JsonObject signal = new JsonObject();
+					signal.addProperty("type", "signal");
+					signal.addProperty("from", to);
+					signal.add("message", reject);
+					backend.send(fromNode, signal);
+					return;
+				}
+				remoteCalls.put(to, fromNode);
+			} else if (id.equals("stopCommunication")) {
+				remoteCalls.remove(to, fromNode);
+			}
+			try {
+				synchronized (user.getSession()) {
+					user.sendMessage(message);
+				}
+			} catch (IOException | IllegalStateException e) {
+				log.debug("delivering to {} failed: {}", to, e.getMessage());
+			}
+			break;
+		case "signal":
+			String from = envelope.get("from").getAsString();
+			RemoteUserSession remote = bindRemoteUser(from, fromNode);
+			handler.onSignal(remote, message);
+			if (locateRemote(from) == null) {
+				// gone meanwhile, the signal was its hang up
+				registry.removeRemote(from);
+			}
+			break;
+		default:
+			log.warn("unknown cluster message from {}: {}", fromNode, envelope);
+			break;
+		}
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public ClusterBackend getBackend() {
+		return backend;
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.util.Map;
+
+/**
+ * Transport between the signaling nodes of a cluster: a replicated presence
+ * directory (user name to node and status) and messages from node to node.
+ * Messages to one node arrive in the order they were sent.
+ *
+ * Implementations: {@link LoopbackClusterBackend} (in memory, for a single
+ * node and for tests) and {@link HttpClusterBackend}.
+ */
+public interface ClusterBackend {
+
+	interface Listener {
+		/**
+		 * A user appeared, changed status or (status null) left on another
+		 * node.
+		 */
+		void onPresence(String name, String node, String status);
+
+		/**
+		 * A message sent to this node with {@link ClusterBackend#send}.
+		 */
+		void onMessage(String fromNode, JsonObject message);
+
+		/**
+		 * Another node stopped answering. Its users were already reported
+		 * gone with {@link #onPresence}.
+		 */
+		void onNodeLost(String node);
+	}
+
+	void start(String node, Listener listener);
+
+	void stop();
+
+	/**
+	 * Publishes a user of this node to all nodes.
+	 *
+	 * @param status
+	 *            null, if the user is gone
+	 */
+	void publish(String name, String status);
+
+	/**
+	 * @return where the user is connected, or null
+	 */
+	Presence lookup(String name);
+
+	/**
+	 * @return all users of the cluster
+	 */
+	Map<String, Presence> getDirectory();
+
+	void send(String node, JsonObject message);
+}
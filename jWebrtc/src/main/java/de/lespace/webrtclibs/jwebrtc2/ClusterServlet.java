@@ -0,0 +1,61 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the messages of the other nodes when the cluster runs on the
+ * {@link HttpClusterBackend}: POST /cluster with the shared secret in the
+ * X-Cluster-Token header.
+ */
+public class ClusterServlet extends HttpServlet {
+
+	private static final Logger log = LoggerFactory.getLogger(ClusterServlet.class);
+
+	@Override
+	protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		ClusterBackend backend = WebSocketServer.cluster.getBackend();
+		if (!(backend instanceof HttpClusterBackend)) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+		String token = request.getHeader(HttpClusterBackend.TOKEN_HEADER);
+		if (Config.CLUSTER_SECRET.isEmpty() || token == null || !MessageDigest
+				.isEqual(token.getBytes(StandardCharsets.UTF_8), Config.CLUSTER_SECRET.getBytes(StandardCharsets.UTF_8))) {
+			log.warn("refused cluster message from {}", request.getRemoteAddr());
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+
+		JsonObject envelope;
+		try {
+			envelope = new JsonParser().parse(new InputStreamReader(request.getInputStream(), StandardCharsets.UTF_8))
+					.getAsJsonObject();
+		} catch (JsonParseException | IllegalStateException e) {
+			response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+			return;
+		}
+		try {
+			((HttpClusterBackend) backend).receive(envelope);
+		} catch (RuntimeException e) {
+			log.error("handling cluster message {} failed: {}", envelope, e.getMessage(), e);
+		}
+		response.setStatus(HttpServletResponse.SC_NO_CONTENT);
+	}
+}
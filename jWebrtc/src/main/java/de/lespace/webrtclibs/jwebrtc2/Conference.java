@@ -0,0 +1,286 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.kurento.client.Composite;
+import org.kurento.client.DispatcherOneToMany;
+import org.kurento.client.EventListener;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.MediaType;
+import org.kurento.client.OnIceCandidateEvent;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Multi-party conference in one pipeline. Each participant's WebRtcEndpoint
+ * is connected to a port of the conference hub:
+ *
+ * COMPOSITE - KMS mixes all participants into one video (and audio), every
+ * participant receives a single stream. Costs KMS CPU, saves client
+ * bandwidth.
+ *
+ * DISPATCHER - the active speaker's stream is forwarded to everybody without
+ * transcoding.
+ *
+ * The active speaker is the participant with the highest incoming audio
+ * bitrate (polled every {@link Config#CONFERENCE_SPEAKER_INTERVAL} ms). With
+ * Opus (DTX or VBR) silence is sent with a fraction of the bitrate of speech.
+ */
+public class Conference implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(Conference.class);
+
+	public enum Mode {
+		COMPOSITE, DISPATCHER
+	}
+
+	private static class Participant {
+		final UserSession user;
+		final WebRtcEndpoint endpoint;
+		final HubPort port;
+		long audioBytes = -1;
+		long audioBitrate;
+
+		Participant(UserSession user, WebRtcEndpoint endpoint, HubPort port) {
+			this.user = user;
+			this.endpoint = endpoint;
+			this.port = port;
+		}
+	}
+
+	private final String name;
+	private final Mode mode;
+	private final MediaPipeline pipeline;
+	private final Hub hub;
+	private final HashedWheelTimer timer;
+	private final ConcurrentHashMap<String, Participant> participants = new ConcurrentHashMap<>();
+	private volatile Participant activeSpeaker;
+	private volatile boolean closed;
+
+	public Conference(String name, Mode mode, KurentoClient kurento, HashedWheelTimer timer) {
+		this.name = name;
+		this.mode = mode;
+		this.timer = timer;
+		this.pipeline = kurento.createMediaPipeline();
+		try {
+			this.hub = mode == Mode.DISPATCHER ? new DispatcherOneToMany.Builder(pipeline).build()
+					: new Composite.Builder(pipeline).build();
+		} catch (RuntimeException e) {
+			pipeline.release();
+			throw e;
+		}
+		timer.newTimeout(this, Config.CONFERENCE_SPEAKER_INTERVAL, TimeUnit.MILLISECONDS);
+		log.info("conference {} created in {} mode", name, mode);
+	}
+
+	/**
+	 * Adds the user to the conference.
+	 *
+	 * @return the sdp answer
+	 * @throws IllegalStateException
+	 *             if the conference was closed meanwhile
+	 * @throws RuntimeException
+	 *             if the endpoint could not be set up, e.g. for a bad offer;
+	 *             a conference left without participants is closed then
+	 */
+	public synchronized String join(UserSession user, String sdpOffer, EventListener<OnIceCandidateEvent> candidateListener) {
+		if (closed) {
+			throw new IllegalStateException("conference " + name + " is closed");
+		}
+		WebRtcEndpoint endpoint = null;
+		HubPort port = null;
+		String sdpAnswer;
+		try {
+			endpoint = new WebRtcEndpoint.Builder(pipeline).build();
+			port = new HubPort.Builder(hub).build();
+			endpoint.connect(port);
+			port.connect(endpoint);
+
+			endpoint.addOnIceCandidateListener(candidateListener);
+			user.setWebRtcEndpoint(endpoint);
+			sdpAnswer = endpoint.processOffer(sdpOffer);
+		} catch (RuntimeException e) {
+			release(port);
+			release(endpoint);
+			if (participants.isEmpty()) {
+				// nobody else would ever leave it, close it now
+				close();
+			}
+			throw e;
+		}
+
+		Participant participant = new Participant(user, endpoint, port);
+		participants.put(user.getSessionId(), participant);
+		if (activeSpeaker == null) {
+			setActiveSpeaker(participant);
+		}
+		endpoint.gatherCandidates();
+		log.info("{} joined conference {}, {} participants", user.getName(), name, participants.size());
+		return sdpAnswer;
+	}
+
+	/**
+	 * Removes the user and releases its endpoint. The last participant leaving
+	 * closes the conference.
+	 *
+	 * @return true, if the conference is closed now
+	 */
+	public synchronized boolean leave(UserSession user) {
+		Participant participant = participants.remove(user.getSessionId());
+		if (participant == null) {
+			return closed;
+		}
+		participant.port.release();
+		participant.endpoint.release();
+		log.info("{} left conference {}, {} participants", user.getName(), name, participants.size());
+
+		if (participants.isEmpty()) {
+			close();
+			return true;
+		}
+		if (activeSpeaker == participant) {
+			setActiveSpeaker(participants.values().iterator().next());
+		}
+		return false;
+	}
+
+	private void release(MediaElement element) {
+		if (element == null) {
+			return;
+		}
+		try {
+			element.release();
+		} catch (RuntimeException e) {
+			log.debug("conference {}: releasing {} failed: {}", name, element.getId(), e.getMessage());
+		}
+	}
+
+	public synchronized void close() {
+		if (!closed) {
+			closed = true;
+			participants.clear();
+			pipeline.release();
+			log.info("conference {} closed", name);
+		}
+	}
+
+	/**
+	 * Active speaker detection.
+	 */
+	@Override
+	public void run() {
+		if (closed) {
+			return;
+		}
+		try {
+			Participant loudest = null;
+			for (Participant participant : participants.values()) {
+				long bytes = audioBytesReceived(participant.endpoint);
+				if (participant.audioBytes >= 0 && bytes >= participant.audioBytes) {
+					participant.audioBitrate = (bytes - participant.audioBytes) * 8 * 1000 / Config.CONFERENCE_SPEAKER_INTERVAL;
+				}
+				participant.audioBytes = bytes;
+				if (loudest == null || participant.audioBitrate > loudest.audioBitrate) {
+					loudest = participant;
+				}
+			}
+			Participant current = activeSpeaker;
+			// switch only for clear speech which is louder than the current speaker by some margin
+			if (loudest != null && loudest != current && loudest.audioBitrate >= Config.CONFERENCE_SPEAKER_MIN_BITRATE
+					&& (current == null || !participants.containsValue(current) || loudest.audioBitrate > current.audioBitrate * 3 / 2)) {
+				synchronized (this) {
+					if (!closed && participants.containsValue(loudest)) {
+						setActiveSpeaker(loudest);
+					}
+				}
+			}
+		} catch (RuntimeException e) {
+			log.debug("speaker detection in conference {} failed: {}", name, e.getMessage());
+		} finally {
+			if (!closed) {
+				timer.newTimeout(this, Config.CONFERENCE_SPEAKER_INTERVAL, TimeUnit.MILLISECONDS);
+			}
+		}
+	}
+
+	private static long audioBytesReceived(WebRtcEndpoint endpoint) {
+		long bytes = 0;
+		for (Stats stats : endpoint.getStats(MediaType.AUDIO).values()) {
+			if (stats instanceof RTCInboundRTPStreamStats) {
+				bytes += ((RTCInboundRTPStreamStats) stats).getBytesReceived();
+			}
+		}
+		return bytes;
+	}
+
+	private void setActiveSpeaker(Participant participant) {
+		activeSpeaker = participant;
+		if (hub instanceof DispatcherOneToMany) {
+			((DispatcherOneToMany) hub).setSource(participant.port);
+		}
+		log.debug("conference {}: active speaker is {}", name, participant.user.getName());
+
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "activeSpeaker");
+		message.addProperty("name", participant.user.getName());
+		broadcast(message, null);
+	}
+
+	/**
+	 * Sends the message to all participants but the given one.
+	 */
+	public void broadcast(JsonObject message, UserSession except) {
+		for (Participant participant : participants.values()) {
+			if (participant.user == except) {
+				continue;
+			}
+			try {
+				synchronized (participant.user.getSession()) {
+					participant.user.sendMessage(message);
+				}
+			} catch (IOException | IllegalStateException e) {
+				log.debug("sending to {} failed: {}", participant.user.getName(), e.getMessage());
+			}
+		}
+	}
+
+	public List<String> getParticipantNames() {
+		List<String> names = new ArrayList<String>();
+		for (Participant participant : participants.values()) {
+			names.add(participant.user.getName());
+		}
+		return names;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public MediaPipeline getPipeline() {
+		return pipeline;
+	}
+
+	public Mode getMode() {
+		return mode;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+}
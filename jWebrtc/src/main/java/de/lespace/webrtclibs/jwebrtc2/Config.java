@@ -18,6 +18,139 @@ public class Config {
     //public static String serverUrl = "192.168.43.251:8080/jWebrtc"; //without protokoll
     
     public static String DEFAULT_KMS_WS_URI = "ws://localhost:8888/kurento";
+    
+    // media servers to fail over to, comma separated (empty: DEFAULT_KMS_WS_URI resp. kms.url), health probe
+    // interval in seconds and failed probes until the server counts as down, reconnect pauses in seconds
+    public static String KMS_URIS = System.getProperty("KMS_URIS", "");
+    public static int KMS_HEALTH_INTERVAL = Integer.getInteger("KMS_HEALTH_INTERVAL", 10);
+    public static int KMS_HEALTH_FAILURES = Integer.getInteger("KMS_HEALTH_FAILURES", 3);
+    public static int KMS_RECONNECT_MIN_BACKOFF = Integer.getInteger("KMS_RECONNECT_MIN_BACKOFF", 1);
+    public static int KMS_RECONNECT_MAX_BACKOFF = Integer.getInteger("KMS_RECONNECT_MAX_BACKOFF", 30);
+    
+    // call timeouts in seconds, can be overridden with -DRING_TIMEOUT=... etc.
+    public static int RING_TIMEOUT = Integer.getInteger("RING_TIMEOUT", 45);           // incomingCall without an answer
+    public static int MEDIA_TIMEOUT = Integer.getInteger("MEDIA_TIMEOUT", 30);         // accept until media flows in both directions
+    public static int MAX_CALL_DURATION = Integer.getInteger("MAX_CALL_DURATION", 4 * 60 * 60);
+    
+    // websocket heartbeat in seconds: ping interval and silence after which a session is reaped
+    public static int HEARTBEAT_INTERVAL = Integer.getInteger("HEARTBEAT_INTERVAL", 20);
+    public static int HEARTBEAT_TIMEOUT = Integer.getInteger("HEARTBEAT_TIMEOUT", 65);
+    
+    // seconds a user in a call is kept (with its media) after its websocket closed, 0 disables resuming
+    public static int RESUME_GRACE_PERIOD = Integer.getInteger("RESUME_GRACE_PERIOD", 30);
+    
+    // drain mode: seconds running calls get after /admin/drain resp. on undeploy, progress log interval
+    public static int DRAIN_TIMEOUT = Integer.getInteger("DRAIN_TIMEOUT", 600);
+    public static int SHUTDOWN_DRAIN_TIMEOUT = Integer.getInteger("SHUTDOWN_DRAIN_TIMEOUT", 30);
+    public static int DRAIN_REPORT_INTERVAL = Integer.getInteger("DRAIN_REPORT_INTERVAL", 10);
+    // sent to clients whose call is refused while draining, e.g. wss://other-node/jWebrtc/ws
+    public static String DRAIN_REDIRECT_URL = System.getProperty("DRAIN_REDIRECT_URL");
+    
+    // room cascading: further KMS for room receivers, comma separated (e.g. ws://kms2:8888/kurento,ws://kms3:8888/kurento)
+    public static String ROOM_EDGE_KMS_URIS = System.getProperty("ROOM_EDGE_KMS_URIS", "");
+    public static int ROOM_ORIGIN_MAX_RECEIVERS = Integer.getInteger("ROOM_ORIGIN_MAX_RECEIVERS", 150); // receivers on the sender's KMS before edges are used
+    public static int ROOM_EDGE_MAX_RECEIVERS = Integer.getInteger("ROOM_EDGE_MAX_RECEIVERS", 200);
+    
+    // room http api (/join, /message, ...): worker threads and queued requests before answering 503
+    public static int ROOM_HTTP_THREADS = Integer.getInteger("ROOM_HTTP_THREADS", 16);
+    public static int ROOM_HTTP_QUEUE = Integer.getInteger("ROOM_HTTP_QUEUE", 1000);
+    // seconds a room created by /join may wait for its sender to register before it is dropped
+    public static int ROOM_UNCLAIMED_TIMEOUT = Integer.getInteger("ROOM_UNCLAIMED_TIMEOUT", 120);
+    
+    // conferences: default hub (composite or dispatcher), active speaker polling in ms and audio bitrate (bit/s) counting as speech
+    public static String CONFERENCE_MODE = System.getProperty("CONFERENCE_MODE", "composite");
+    public static int CONFERENCE_SPEAKER_INTERVAL = Integer.getInteger("CONFERENCE_SPEAKER_INTERVAL", 1000);
+    public static int CONFERENCE_SPEAKER_MIN_BITRATE = Integer.getInteger("CONFERENCE_SPEAKER_MIN_BITRATE", 16000);
+    
+    // call recording: per_peer (one file per peer), mixed (one composite file) or audio (one audio only mix)
+    public static String RECORDING_MODE = System.getProperty("RECORDING_MODE", "per_peer");
+    public static String RECORDING_PROFILE = System.getProperty("RECORDING_PROFILE", "WEBM");       // kurento MediaProfileSpecType
+    public static String RECORDING_DIR = System.getProperty("RECORDING_DIR", "file:///var/kurento/"); // as seen by KMS
+    // which calls are recorded, see RecordingPolicy, e.g. "skip type:screen;record user:support;skip *"
+    public static String RECORDING_RULES = System.getProperty("RECORDING_RULES", "");
+    // append-only index of all recordings (local path of the webapp host)
+    public static String RECORDING_INDEX = System.getProperty("RECORDING_INDEX", "/var/kurento/recordings.idx");
+    // download links of recordings: hmac key (random per start if empty) and validity in seconds
+    public static String RECORDING_URL_SECRET = System.getProperty("RECORDING_URL_SECRET", "");
+    public static int RECORDING_URL_TTL = Integer.getInteger("RECORDING_URL_TTL", 3600);
+    // recording retention, see RecordingRetention: max age in days and quotas in MB, 0 = unlimited
+    public static int RECORDING_MAX_AGE_DAYS = Integer.getInteger("RECORDING_MAX_AGE_DAYS", 0);
+    public static long RECORDING_USER_QUOTA_MB = Long.getLong("RECORDING_USER_QUOTA_MB", 0);
+    public static String RECORDING_USER_QUOTAS = System.getProperty("RECORDING_USER_QUOTAS", ""); // per user, e.g. "support=20000,alice=500"
+    public static long RECORDING_TOTAL_QUOTA_MB = Long.getLong("RECORDING_TOTAL_QUOTA_MB", 0);
+    public static long RECORDING_MIN_FREE_MB = Long.getLong("RECORDING_MIN_FREE_MB", 1024);     // oldest recordings go while the disk has less free
+    public static int RECORDING_RETENTION_INTERVAL = Integer.getInteger("RECORDING_RETENTION_INTERVAL", 300); // seconds
+    public static int RECORDING_DELETE_PAUSE = Integer.getInteger("RECORDING_DELETE_PAUSE", 200);             // ms between two deletions
+    // seconds a playback pipeline is kept for the next play of the same user
+    public static int PLAYBACK_IDLE_TIMEOUT = Integer.getInteger("PLAYBACK_IDLE_TIMEOUT", 60);
+    
+    // call quality stats, see StatsCollector: sample interval in seconds (0 disables), samples kept per call,
+    // seconds they are kept after the call, sampling threads, and the per mille packet loss or round trip
+    // time in ms from which a call counts as degraded
+    public static int STATS_INTERVAL = Integer.getInteger("STATS_INTERVAL", 10);
+    public static int STATS_SAMPLES = Integer.getInteger("STATS_SAMPLES", 360);
+    public static int STATS_RETENTION = Integer.getInteger("STATS_RETENTION", 900);
+    public static int STATS_THREADS = Integer.getInteger("STATS_THREADS", 2);
+    public static int STATS_DEGRADED_LOSS = Integer.getInteger("STATS_DEGRADED_LOSS", 50);
+    public static int STATS_DEGRADED_RTT = Integer.getInteger("STATS_DEGRADED_RTT", 400);
+    
+    // adaptive video bitrate, see BitrateController: adjustment interval in seconds (0 disables), call pipelines
+    // the media server carries at full load, getStats latency in ms counting as full load, load (0..1) up to
+    // which calls get the max cap and from which the newest calls go audio only, video caps in kbit/s and the
+    // users (comma separated) whose calls keep their video
+    public static int ABR_INTERVAL = Integer.getInteger("ABR_INTERVAL", 5);
+    public static int ABR_CAPACITY = Integer.getInteger("ABR_CAPACITY", 100);
+    public static int ABR_SATURATED_LATENCY = Integer.getInteger("ABR_SATURATED_LATENCY", 500);
+    public static double ABR_LOAD_LOW = Double.parseDouble(System.getProperty("ABR_LOAD_LOW", "0.6"));
+    public static double ABR_AUDIO_ONLY_LOAD = Double.parseDouble(System.getProperty("ABR_AUDIO_ONLY_LOAD", "0.95"));
+    public static int ABR_MAX_VIDEO_KBPS = Integer.getInteger("ABR_MAX_VIDEO_KBPS", 2000);
+    public static int ABR_MIN_VIDEO_KBPS = Integer.getInteger("ABR_MIN_VIDEO_KBPS", 250);
+    public static String ABR_PRIORITY_USERS = System.getProperty("ABR_PRIORITY_USERS", "");
+    // share of a video call's capacity a voice call takes, and the load (relative to ABR_CAPACITY) beyond
+    // which new calls are refused, 0 admits all
+    public static double ABR_AUDIO_WEIGHT = Double.parseDouble(System.getProperty("ABR_AUDIO_WEIGHT", "0.2"));
+    public static double ADMISSION_MAX_LOAD = Double.parseDouble(System.getProperty("ADMISSION_MAX_LOAD", "1.2"));
+    
+    // ICE candidate policy, see IceCandidatePolicy: whether IPv6 candidates are trickled (false where the media
+    // server has no IPv6 route) and address prefixes of networks which block UDP, e.g. "10.20.,192.0.2."
+    public static boolean ICE_IPV6 = Boolean.parseBoolean(System.getProperty("ICE_IPV6", "true"));
+    public static String ICE_RELAY_FIRST_NETWORKS = System.getProperty("ICE_RELAY_FIRST_NETWORKS", "");
+    
+    // inbound signaling limits as "rate/burst" (messages per second, messages at once; rate 0 disables), see
+    // RateLimiter: all messages of a session, single message ids per session, message ids which create media
+    // pipelines per node, and roster broadcasts per node; the message ids which never count against the session
+    // limit: ICE candidates, call control and teardown, dropping them would break or leak calls
+    public static String RATE_SESSION = System.getProperty("RATE_SESSION", "20/60");
+    public static String RATE_SESSION_EXEMPT = System.getProperty("RATE_SESSION_EXEMPT",
+            "onIceCandidate,onIceCandidateScreen,incomingCallResponse,incomingScreenCallResponse,stop,stopScreen,stopPlay,leaveConference");
+    public static String RATE_MESSAGE_LIMITS = System.getProperty("RATE_MESSAGE_LIMITS",
+            "checkOnlineStatus=2/10,register=0.5/5,call=0.5/5,callScreen=0.5/5,play=1/5,joinConference=0.5/5,appConfig=1/5");
+    public static String RATE_GLOBAL_LIMITS = System.getProperty("RATE_GLOBAL_LIMITS",
+            "call=20/50,callScreen=10/20,play=20/50,joinConference=20/50");
+    public static String RATE_ROSTER = System.getProperty("RATE_ROSTER", "2/5");
+    
+    // warm restart: snapshot of users and calls (empty disables it), checkpoint interval and
+    // seconds the restored users get to resume
+    public static String SNAPSHOT_FILE = System.getProperty("SNAPSHOT_FILE", "/var/kurento/signaling.snapshot");
+    public static int SNAPSHOT_INTERVAL = Integer.getInteger("SNAPSHOT_INTERVAL", 60);
+    public static int SNAPSHOT_RESUME_GRACE = Integer.getInteger("SNAPSHOT_RESUME_GRACE", 120);
+    
+    // startup warm-up, see StartupWarmUp: dispatches of sample messages (0 skips the warm-up), seconds between
+    // attempts to reach the media servers and seconds after which the node reports ready even without them
+    public static int WARMUP_ITERATIONS = Integer.getInteger("WARMUP_ITERATIONS", 500);
+    public static int WARMUP_RETRY_INTERVAL = Integer.getInteger("WARMUP_RETRY_INTERVAL", 5);
+    public static int WARMUP_TIMEOUT = Integer.getInteger("WARMUP_TIMEOUT", 120);
+    
+    // signaling cluster: loopback (single node) or http, this node's id (default: host name),
+    // the other nodes as "node=http://host:8080/jWebrtc,..." and the secret they share
+    public static String CLUSTER_BACKEND = System.getProperty("CLUSTER_BACKEND", "loopback");
+    public static String CLUSTER_NODE_ID = System.getProperty("CLUSTER_NODE_ID");
+    public static String CLUSTER_PEERS = System.getProperty("CLUSTER_PEERS", "");
+    public static String CLUSTER_SECRET = System.getProperty("CLUSTER_SECRET", "");
+    // http cluster: seconds between heartbeats to the peers, and seconds of silence after which a peer
+    // counts as down: its users go offline and the calls with them end until it is heard again
+    public static int CLUSTER_HEARTBEAT_INTERVAL = Integer.getInteger("CLUSTER_HEARTBEAT_INTERVAL", 5);
+    public static int CLUSTER_PEER_TIMEOUT = Integer.getInteger("CLUSTER_PEER_TIMEOUT", 15);
     //public static String DEFAULT_SERVER_URL = "192.168.11.81/jWebrtc"; //without protokoll
 
     //public static String default_KMS_WS_URI = "ws://192.168.0.16:8888/kurento";
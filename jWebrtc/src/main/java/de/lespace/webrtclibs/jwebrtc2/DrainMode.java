@@ -0,0 +1,113 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drain mode for redeploys: new calls are refused, running calls may go on
+ * until they end or the deadline passes, then the rest is hung up. While
+ * draining the health check reports the node as unavailable so the load
+ * balancer stops sending new clients.
+ */
+public class DrainMode implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(DrainMode.class);
+
+	private final CallRegistry calls;
+	private final HashedWheelTimer timer;
+	private final Runnable hangUpAll;
+
+	// -1 while not draining
+	private volatile long deadline = -1;
+
+	/**
+	 * @param calls
+	 * @param timer
+	 * @param hangUpAll
+	 *            ends the calls still running at the deadline
+	 */
+	public DrainMode(CallRegistry calls, HashedWheelTimer timer, Runnable hangUpAll) {
+		this.calls = calls;
+		this.timer = timer;
+		this.hangUpAll = hangUpAll;
+	}
+
+	/**
+	 * Starts draining. Calling it again while draining moves the deadline.
+	 *
+	 * @param timeoutSeconds
+	 *            time running calls get to finish
+	 */
+	public synchronized void start(int timeoutSeconds) {
+		boolean wasDraining = isDraining();
+		deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeoutSeconds);
+		log.info("draining, {} calls running, deadline in {}s", calls.size(), timeoutSeconds);
+		if (!wasDraining) {
+			timer.newTimeout(this, 0, TimeUnit.SECONDS);
+		}
+	}
+
+	/**
+	 * Leaves drain mode, the node takes new calls again.
+	 */
+	public synchronized void cancel() {
+		if (isDraining()) {
+			log.info("drain cancelled, {} calls running", calls.size());
+		}
+		deadline = -1;
+	}
+
+	public boolean isDraining() {
+		return deadline >= 0;
+	}
+
+	public long getDeadline() {
+		return deadline;
+	}
+
+	public int getRemainingCalls() {
+		return calls.size();
+	}
+
+	/**
+	 * Blocks until all calls ended or the deadline passed.
+	 *
+	 * @return true, if no call is left
+	 */
+	public boolean awaitDrained() throws InterruptedException {
+		while (isDraining() && calls.size() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(500);
+		}
+		return calls.size() == 0;
+	}
+
+	/**
+	 * Reports the progress and hangs up the remaining calls at the deadline.
+	 */
+	@Override
+	public void run() {
+		long currentDeadline = deadline;
+		if (currentDeadline < 0) {
+			return;
+		}
+		int remaining = calls.size();
+		long left = currentDeadline - System.currentTimeMillis();
+		if (remaining == 0) {
+			log.info("drained, no calls left");
+			return;
+		}
+		if (left <= 0) {
+			log.info("drain deadline reached, hanging up {} calls", remaining);
+			hangUpAll.run();
+			return;
+		}
+		log.info("draining, {} calls remaining, {}s to deadline", remaining, left / 1000);
+		timer.newTimeout(this, Math.min(Config.DRAIN_REPORT_INTERVAL * 1000L, left), TimeUnit.MILLISECONDS);
+	}
+}
@@ -0,0 +1,301 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Timer for large numbers of coarse timeouts (ring timeouts, idle sessions,
+ * ...). Timeouts are hashed into the buckets of a wheel which a single
+ * thread advances once per tick, so scheduling and cancelling are O(1) no
+ * matter how many timeouts are pending. A timeout fires at most one tick
+ * late.
+ *
+ * Expired tasks are handed to the given executor so a slow task (e.g. one
+ * releasing a media pipeline) does not hold up the wheel.
+ */
+public class HashedWheelTimer {
+
+	private static final Logger log = LoggerFactory.getLogger(HashedWheelTimer.class);
+
+	private static final int ST_PENDING = 0;
+	private static final int ST_CANCELLED = 1;
+	private static final int ST_EXPIRED = 2;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Executor executor;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Thread workerThread;
+	private final long startTime;
+	private volatile boolean running = true;
+	private long tick;
+
+	/**
+	 * @param name
+	 *            name of the worker thread
+	 * @param tickDuration
+	 *            resolution of the timer
+	 * @param unit
+	 *            unit of tickDuration
+	 * @param ticksPerWheel
+	 *            number of buckets, rounded up to a power of two
+	 * @param executor
+	 *            runs the expired tasks, owned by the timer: an
+	 *            ExecutorService is shut down by {@link #stop()}
+	 */
+	public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel, Executor executor) {
+		if (tickDuration <= 0) throw new IllegalArgumentException("tickDuration must be greater than 0");
+		if (ticksPerWheel <= 0) throw new IllegalArgumentException("ticksPerWheel must be greater than 0");
+
+		int size = 1;
+		while (size < ticksPerWheel) {
+			size <<= 1;
+		}
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.executor = executor;
+		this.startTime = System.nanoTime();
+
+		this.workerThread = new Thread(new Worker(), name);
+		this.workerThread.setDaemon(true);
+		this.workerThread.start();
+	}
+
+	/**
+	 * Schedules the task to run once after the given delay.
+	 *
+	 * @return handle to cancel the task
+	 */
+	public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+		if (!running) throw new IllegalStateException("timer has been stopped");
+
+		long deadline = System.nanoTime() - startTime + unit.toNanos(delay);
+		Timeout timeout = new Timeout(task, deadline);
+		pendingTimeouts.add(timeout);
+		return timeout;
+	}
+
+	/**
+	 * Stops the worker thread and shuts down the executor, so no thread is
+	 * left behind on undeploy. Pending timeouts are dropped, expired tasks
+	 * already handed to the executor still run.
+	 */
+	public void stop() {
+		running = false;
+		workerThread.interrupt();
+		if (executor instanceof ExecutorService) {
+			((ExecutorService) executor).shutdown();
+		}
+	}
+
+	/**
+	 * @return approximate number of scheduled timeouts
+	 */
+	public int pendingCount() {
+		int count = pendingTimeouts.size();
+		for (Bucket bucket : wheel) {
+			count += bucket.size;
+		}
+		return count;
+	}
+
+	/**
+	 * Creates a thread factory for executors running expired tasks.
+	 */
+	public static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			private final AtomicInteger counter = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, prefix + "-" + counter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (running) {
+				long deadline = waitForNextTick();
+				if (deadline < 0) {
+					continue;
+				}
+				removeCancelled();
+				transferPending();
+				wheel[(int) (tick & mask)].expire(deadline);
+				tick++;
+			}
+			log.debug("timer {} stopped", Thread.currentThread().getName());
+		}
+
+		private long waitForNextTick() {
+			long deadline = tickNanos * (tick + 1);
+			long now = System.nanoTime() - startTime;
+			long sleepMs = (deadline - now + 999999) / 1000000;
+			if (sleepMs > 0) {
+				try {
+					Thread.sleep(sleepMs);
+				} catch (InterruptedException e) {
+					return -1;
+				}
+			}
+			return System.nanoTime() - startTime;
+		}
+
+		private void transferPending() {
+			Timeout timeout;
+			while ((timeout = pendingTimeouts.poll()) != null) {
+				if (timeout.state.get() == ST_CANCELLED) {
+					continue;
+				}
+				long calculated = timeout.deadline / tickNanos;
+				timeout.remainingRounds = (calculated - tick) / wheel.length;
+				// already expired timeouts go into the current bucket
+				long ticks = Math.max(calculated, tick);
+				wheel[(int) (ticks & mask)].add(timeout);
+			}
+		}
+
+		private void removeCancelled() {
+			Timeout timeout;
+			while ((timeout = cancelledTimeouts.poll()) != null) {
+				if (timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A scheduled task.
+	 */
+	public class Timeout {
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(ST_PENDING);
+
+		// only touched by the worker thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @return false, if the task already ran or was cancelled before
+		 */
+		public boolean cancel() {
+			if (!state.compareAndSet(ST_PENDING, ST_CANCELLED)) {
+				return false;
+			}
+			cancelledTimeouts.add(this);
+			return true;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == ST_CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == ST_EXPIRED;
+		}
+
+		private void expire() {
+			if (!state.compareAndSet(ST_PENDING, ST_EXPIRED)) {
+				return;
+			}
+			try {
+				executor.execute(task);
+			} catch (Throwable t) {
+				log.error("could not run expired timeout: {}", t.getMessage(), t);
+			}
+		}
+	}
+
+	/**
+	 * Doubly linked list of timeouts, so cancelled ones are unlinked in O(1).
+	 */
+	private static class Bucket {
+
+		private Timeout head;
+		private Timeout tail;
+		private int size;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+			size++;
+		}
+
+		void expire(long deadline) {
+			Timeout timeout = head;
+			while (timeout != null) {
+				Timeout next = timeout.next;
+				if (timeout.isCancelled()) {
+					remove(timeout);
+				} else if (timeout.remainingRounds <= 0) {
+					if (timeout.deadline <= deadline) {
+						remove(timeout);
+						timeout.expire();
+					}
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.bucket != this) {
+				return;
+			}
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+			size--;
+		}
+	}
+}
@@ -0,0 +1,329 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cluster of nodes which know each other's base url
+ * ({@link Config#CLUSTER_PEERS}). Messages are POSTed to /cluster of the
+ * target node ({@link ClusterServlet}), one sending thread per peer keeps
+ * them in order. Every node keeps a full copy of the directory: presence
+ * changes are sent to all peers, and a starting node asks its peers for their
+ * users ('sync') after dropping whatever it knew about them.
+ *
+ * Nodes send each other a 'heartbeat' every
+ * {@link Config#CLUSTER_HEARTBEAT_INTERVAL} seconds. A peer not heard from
+ * for {@link Config#CLUSTER_PEER_TIMEOUT} seconds counts as down, messages to
+ * it may have been lost: its users are dropped from the directory and the
+ * listener is told. Once it is heard again both sides 'sync'.
+ *
+ * Requests carry {@link Config#CLUSTER_SECRET}, the servlet refuses the
+ * others.
+ */
+public class HttpClusterBackend implements ClusterBackend {
+
+	private static final Logger log = LoggerFactory.getLogger(HttpClusterBackend.class);
+
+	static final String TOKEN_HEADER = "X-Cluster-Token";
+
+	private final Map<String, String> peers;
+	private final Map<String, ExecutorService> senders = new HashMap<>();
+	private final ConcurrentHashMap<String, Presence> directory = new ConcurrentHashMap<>();
+	// when each peer was last heard from, in ms
+	private final ConcurrentHashMap<String, Long> lastHeard = new ConcurrentHashMap<>();
+	private final Set<String> lostPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	// peers with a heartbeat still waiting in their sender, a peer which hangs gets no more
+	private final Set<String> pendingHeartbeats = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private ScheduledExecutorService heartbeat;
+	private volatile String node;
+	private volatile Listener listener;
+
+	/**
+	 * @param peers
+	 *            "node=http://host:8080/jWebrtc,..."
+	 */
+	public HttpClusterBackend(String peers) {
+		this.peers = parsePeers(peers);
+	}
+
+	private static Map<String, String> parsePeers(String config) {
+		Map<String, String> parsed = new LinkedHashMap<>();
+		for (String entry : config.split(",")) {
+			String[] parts = entry.trim().split("=", 2);
+			if (parts.length == 2 && !parts[0].isEmpty()) {
+				parsed.put(parts[0].trim(), parts[1].trim().replaceAll("/+$", ""));
+			} else if (!entry.trim().isEmpty()) {
+				log.error("ignoring invalid cluster peer '{}'", entry);
+			}
+		}
+		return parsed;
+	}
+
+	@Override
+	public synchronized void start(String node, Listener listener) {
+		this.node = node;
+		this.listener = listener;
+		long now = System.currentTimeMillis();
+		for (String peer : peers.keySet()) {
+			if (!peer.equals(node)) {
+				senders.put(peer, Executors.newSingleThreadExecutor(HashedWheelTimer.daemonThreads("cluster-" + peer)));
+				lastHeard.put(peer, now);
+			}
+		}
+		broadcast(syncMessage());
+		heartbeat = Executors.newSingleThreadScheduledExecutor(HashedWheelTimer.daemonThreads("cluster-heartbeat"));
+		heartbeat.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sendHeartbeats();
+					expirePeers();
+				} catch (RuntimeException e) {
+					log.error("cluster heartbeat failed", e);
+				}
+			}
+		}, Config.CLUSTER_HEARTBEAT_INTERVAL, Config.CLUSTER_HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+		log.info("cluster node {} started with peers {}", node, senders.keySet());
+	}
+
+	@Override
+	public synchronized void stop() {
+		if (heartbeat != null) {
+			heartbeat.shutdownNow();
+		}
+		for (Map.Entry<String, Presence> entry : directory.entrySet()) {
+			if (entry.getValue().getNode().equals(node)) {
+				publish(entry.getKey(), null);
+			}
+		}
+		for (ExecutorService sender : senders.values()) {
+			sender.shutdown();
+		}
+	}
+
+	@Override
+	public void publish(String name, String status) {
+		if (status != null) {
+			directory.put(name, new Presence(node, status));
+		} else {
+			Presence presence = directory.get(name);
+			if (presence == null || !presence.getNode().equals(node) || !directory.remove(name, presence)) {
+				return;
+			}
+		}
+		broadcast(presenceMessage(name, status));
+	}
+
+	private static JsonObject syncMessage() {
+		JsonObject message = new JsonObject();
+		message.addProperty("type", "sync");
+		return message;
+	}
+
+	private static JsonObject presenceMessage(String name, String status) {
+		JsonObject message = new JsonObject();
+		message.addProperty("type", "presence");
+		message.addProperty("name", name);
+		if (status != null) {
+			message.addProperty("status", status);
+		}
+		return message;
+	}
+
+	@Override
+	public Presence lookup(String name) {
+		return directory.get(name);
+	}
+
+	@Override
+	public Map<String, Presence> getDirectory() {
+		return Collections.unmodifiableMap(new HashMap<String, Presence>(directory));
+	}
+
+	@Override
+	public void send(String to, JsonObject message) {
+		ExecutorService sender = senders.get(to);
+		if (sender == null) {
+			log.warn("unknown cluster node {}, dropping message", to);
+			return;
+		}
+		final String url = peers.get(to) + "/cluster";
+		JsonObject envelope = new JsonObject();
+		envelope.addProperty("node", node);
+		envelope.add("message", message);
+		final byte[] body = envelope.toString().getBytes(StandardCharsets.UTF_8);
+		sender.execute(new Runnable() {
+			@Override
+			public void run() {
+				post(url, body);
+			}
+		});
+	}
+
+	private void broadcast(JsonObject message) {
+		for (String peer : senders.keySet()) {
+			send(peer, message);
+		}
+	}
+
+	private void sendHeartbeats() {
+		JsonObject message = new JsonObject();
+		message.addProperty("type", "heartbeat");
+		JsonObject envelope = new JsonObject();
+		envelope.addProperty("node", node);
+		envelope.add("message", message);
+		final byte[] body = envelope.toString().getBytes(StandardCharsets.UTF_8);
+		for (Map.Entry<String, ExecutorService> sender : senders.entrySet()) {
+			final String peer = sender.getKey();
+			if (!pendingHeartbeats.add(peer)) {
+				continue;
+			}
+			final String url = peers.get(peer) + "/cluster";
+			sender.getValue().execute(new Runnable() {
+				@Override
+				public void run() {
+					pendingHeartbeats.remove(peer);
+					post(url, body);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Drops the users of the peers not heard from for
+	 * {@link Config#CLUSTER_PEER_TIMEOUT} seconds.
+	 */
+	private void expirePeers() {
+		long deadline = System.currentTimeMillis() - TimeUnit.SECONDS.toMillis(Config.CLUSTER_PEER_TIMEOUT);
+		for (Map.Entry<String, Long> heard : lastHeard.entrySet()) {
+			String peer = heard.getKey();
+			if (heard.getValue() >= deadline || !lostPeers.add(peer)) {
+				continue;
+			}
+			log.warn("cluster node {} not heard from for {}s, dropping its users", peer, Config.CLUSTER_PEER_TIMEOUT);
+			forgetUsers(peer);
+			listener.onNodeLost(peer);
+		}
+	}
+
+	private void forgetUsers(String peer) {
+		for (Map.Entry<String, Presence> entry : directory.entrySet()) {
+			if (entry.getValue().getNode().equals(peer) && directory.remove(entry.getKey(), entry.getValue())) {
+				listener.onPresence(entry.getKey(), peer, null);
+			}
+		}
+	}
+
+	/**
+	 * Notes that a peer is alive. If it counted as down, presence messages
+	 * may have been lost both ways: it is asked for its users and sent ours.
+	 */
+	private void heard(String peer, String type) {
+		if (!lastHeard.containsKey(peer)) {
+			return;
+		}
+		lastHeard.put(peer, System.currentTimeMillis());
+		if (lostPeers.remove(peer)) {
+			log.info("cluster node {} is back", peer);
+			if (!type.equals("sync")) {
+				send(peer, syncMessage());
+				sendUsers(peer);
+			}
+		}
+	}
+
+	private void sendUsers(String peer) {
+		for (Map.Entry<String, Presence> entry : directory.entrySet()) {
+			if (entry.getValue().getNode().equals(node)) {
+				send(peer, presenceMessage(entry.getKey(), entry.getValue().getStatus()));
+			}
+		}
+	}
+
+	private static void post(String url, byte[] body) {
+		HttpURLConnection connection = null;
+		try {
+			connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setRequestMethod("POST");
+			connection.setDoOutput(true);
+			connection.setConnectTimeout(2000);
+			connection.setReadTimeout(5000);
+			connection.setRequestProperty("Content-Type", "application/json");
+			connection.setRequestProperty(TOKEN_HEADER, Config.CLUSTER_SECRET);
+			connection.setFixedLengthStreamingMode(body.length);
+			try (OutputStream out = connection.getOutputStream()) {
+				out.write(body);
+			}
+			int status = connection.getResponseCode();
+			if (status != HttpURLConnection.HTTP_NO_CONTENT && status != HttpURLConnection.HTTP_OK) {
+				log.warn("cluster message to {} failed with http {}", url, status);
+			}
+			// drain, so the connection is kept alive
+			try (InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+				if (in != null) {
+					while (in.read() >= 0) {
+					}
+				}
+			}
+		} catch (IOException e) {
+			log.warn("cluster message to {} failed: {}", url, e.getMessage());
+		}
+	}
+
+	/**
+	 * A message POSTed by another node, called by the {@link ClusterServlet}.
+	 */
+	public void receive(JsonObject envelope) {
+		String from = envelope.get("node").getAsString();
+		JsonObject message = envelope.getAsJsonObject("message");
+		String type = message.has("type") ? message.get("type").getAsString() : "";
+		heard(from, type);
+		switch (type) {
+		case "heartbeat":
+			break;
+		case "presence":
+			String name = message.get("name").getAsString();
+			String status = message.has("status") ? message.get("status").getAsString() : null;
+			if (status != null) {
+				directory.put(name, new Presence(from, status));
+			} else {
+				Presence presence = directory.get(name);
+				if (presence == null || !presence.getNode().equals(from) || !directory.remove(name, presence)) {
+					return;
+				}
+			}
+			listener.onPresence(name, from, status);
+			break;
+		case "sync":
+			// the node (re)started or was down: forget its users, send ours
+			forgetUsers(from);
+			sendUsers(from);
+			break;
+		default:
+			listener.onMessage(from, message);
+			break;
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kurento.client.IceCandidate;
+
+/**
+ * Decides which ICE candidates are worth trickling, both those of the
+ * clients (to the media server) and those gathered by the media server (to
+ * the clients). Each candidate dropped here is a connectivity check less on
+ * both sides.
+ *
+ * Dropped are: link-local and loopback addresses, mDNS names (.local, the
+ * media server cannot resolve them), IPv6 unless {@link Config#ICE_IPV6} and
+ * candidates with the same transport address as one seen before on the
+ * stream, e.g. a srflx candidate of a host with a public address.
+ *
+ * For a user whose public address starts with one of
+ * {@link Config#ICE_RELAY_FIRST_NETWORKS} (networks known to block UDP)
+ * relay candidates get the highest priority, so their pairs are checked
+ * first instead of after all direct pairs timed out.
+ */
+public class IceCandidatePolicy {
+
+	public enum Type {
+		HOST, SRFLX, PRFLX, RELAY
+	}
+
+	private static final AtomicLong accepted = new AtomicLong();
+	private static final AtomicLong droppedLinkLocal = new AtomicLong();
+	private static final AtomicLong droppedMdns = new AtomicLong();
+	private static final AtomicLong droppedIpv6 = new AtomicLong();
+	private static final AtomicLong droppedDuplicate = new AtomicLong();
+	private static final AtomicLong droppedInvalid = new AtomicLong();
+	private static final AtomicLong relayBoosted = new AtomicLong();
+
+	private static final List<String> relayFirstNetworks = new ArrayList<>();
+
+	static {
+		for (String network : Config.ICE_RELAY_FIRST_NETWORKS.split(",")) {
+			if (!network.trim().isEmpty()) {
+				relayFirstNetworks.add(network.trim());
+			}
+		}
+	}
+
+	/**
+	 * A candidate line parsed once:
+	 * "candidate:foundation component transport priority address port typ type ...".
+	 */
+	public static final class Parsed {
+		final String[] tokens;
+		final int component;
+		final boolean udp;
+		final long priority;
+		final String address;
+		final int port;
+		final Type type;
+
+		private Parsed(String[] tokens, int component, boolean udp, long priority, String address, int port, Type type) {
+			this.tokens = tokens;
+			this.component = component;
+			this.udp = udp;
+			this.priority = priority;
+			this.address = address;
+			this.port = port;
+			this.type = type;
+		}
+
+		/**
+		 * @return what makes two candidates of a stream the same to ICE
+		 */
+		String key() {
+			return component + (udp ? "/udp/" : "/tcp/") + address + ":" + port;
+		}
+
+		boolean isIpv6() {
+			return address.indexOf(':') >= 0;
+		}
+
+		/**
+		 * @return the candidate line with another priority
+		 */
+		String withPriority(long newPriority) {
+			StringBuilder line = new StringBuilder();
+			for (int i = 0; i < tokens.length; i++) {
+				if (i > 0) {
+					line.append(' ');
+				}
+				line.append(i == 3 ? Long.toString(newPriority) : tokens[i]);
+			}
+			return line.toString();
+		}
+	}
+
+	/**
+	 * The transport addresses already seen on one stream of one user.
+	 */
+	public static final class Seen {
+		private final Set<String> keys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+		boolean add(String key) {
+			return keys.add(key);
+		}
+
+		public void clear() {
+			keys.clear();
+		}
+	}
+
+	private IceCandidatePolicy() {
+	}
+
+	/**
+	 * @return the parsed candidate, null if the line is not a candidate
+	 */
+	public static Parsed parse(String line) {
+		if (line == null) {
+			return null;
+		}
+		String[] tokens = line.trim().split(" ");
+		if (tokens.length < 8 || !"typ".equals(tokens[6])) {
+			return null;
+		}
+		try {
+			int component = Integer.parseInt(tokens[1]);
+			boolean udp = "udp".equalsIgnoreCase(tokens[2]);
+			long priority = Long.parseLong(tokens[3]);
+			int port = Integer.parseInt(tokens[5]);
+			Type type = Type.valueOf(tokens[7].toUpperCase());
+			return new Parsed(tokens, component, udp, priority, tokens[4].toLowerCase(), port, type);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Filters a candidate of a stream and, if the user is behind a
+	 * restrictive network, prioritizes relay.
+	 *
+	 * @param seen
+	 *            the addresses seen on the stream so far
+	 * @param relayFirst
+	 *            whether relay candidates go first
+	 * @return the candidate to trickle, null to drop it
+	 */
+	public static IceCandidate apply(IceCandidate candidate, Seen seen, boolean relayFirst) {
+		return apply(candidate, parse(candidate.getCandidate()), seen, relayFirst);
+	}
+
+	/**
+	 * @param parsed
+	 *            the candidate as {@link #parse(String)} returned it
+	 * @see #apply(IceCandidate, Seen, boolean)
+	 */
+	public static IceCandidate apply(IceCandidate candidate, Parsed parsed, Seen seen, boolean relayFirst) {
+		if (parsed == null) {
+			// end-of-candidates and the like, not ours to judge
+			if (candidate.getCandidate() == null || candidate.getCandidate().trim().isEmpty()) {
+				return candidate;
+			}
+			droppedInvalid.incrementAndGet();
+			return null;
+		}
+		if (!accept(parsed)) {
+			return null;
+		}
+		if (seen != null && !seen.add(parsed.key())) {
+			droppedDuplicate.incrementAndGet();
+			return null;
+		}
+		accepted.incrementAndGet();
+		if (relayFirst && parsed.type == Type.RELAY) {
+			relayBoosted.incrementAndGet();
+			// type preference 126 of a host candidate, keeping local preference and component
+			long priority = (126L << 24) | (parsed.priority & 0xFFFFFF);
+			return new IceCandidate(parsed.withPriority(priority), candidate.getSdpMid(), candidate.getSdpMLineIndex());
+		}
+		return candidate;
+	}
+
+	private static boolean accept(Parsed parsed) {
+		String address = parsed.address;
+		if (address.endsWith(".local")) {
+			droppedMdns.incrementAndGet();
+			return false;
+		}
+		if (parsed.isIpv6()) {
+			if (address.startsWith("fe80:") || address.equals("::1")) {
+				droppedLinkLocal.incrementAndGet();
+				return false;
+			}
+			if (!Config.ICE_IPV6) {
+				droppedIpv6.incrementAndGet();
+				return false;
+			}
+			return true;
+		}
+		if (address.startsWith("169.254.") || address.startsWith("127.")) {
+			droppedLinkLocal.incrementAndGet();
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether the candidate shows an address of a network in
+	 *         {@link Config#ICE_RELAY_FIRST_NETWORKS}
+	 */
+	public static boolean isRestrictive(Parsed parsed) {
+		if (relayFirstNetworks.isEmpty()) {
+			return false;
+		}
+		if (parsed == null || parsed.type == Type.RELAY) {
+			return false;
+		}
+		for (String network : relayFirstNetworks) {
+			if (parsed.address.startsWith(network)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return counters for /admin/status
+	 */
+	public static JsonObject getMetrics() {
+		JsonObject metrics = new JsonObject();
+		metrics.addProperty("accepted", accepted.get());
+		metrics.addProperty("droppedLinkLocal", droppedLinkLocal.get());
+		metrics.addProperty("droppedMdns", droppedMdns.get());
+		metrics.addProperty("droppedIpv6", droppedIpv6.get());
+		metrics.addProperty("droppedDuplicate", droppedDuplicate.get());
+		metrics.addProperty("droppedInvalid", droppedInvalid.get());
+		metrics.addProperty("relayBoosted", relayBoosted.get());
+		return metrics;
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.kurento.client.KurentoClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A media server used for room edges (see {@link RoomEdge}), configured with
+ * {@link Config#ROOM_EDGE_KMS_URIS}. Counts the receivers it serves over all
+ * rooms so new edges go to the least loaded one.
+ */
+class KmsNode {
+
+	private static final Logger log = LoggerFactory.getLogger(KmsNode.class);
+
+	private static final List<KmsNode> edgeNodes = parse(Config.ROOM_EDGE_KMS_URIS);
+
+	private final String uri;
+	private final AtomicInteger receivers = new AtomicInteger();
+	private KurentoClient client;
+
+	KmsNode(String uri) {
+		this.uri = uri;
+	}
+
+	/**
+	 * @return the configured edge servers, empty if cascading is off
+	 */
+	static List<KmsNode> getEdgeNodes() {
+		return edgeNodes;
+	}
+
+	private static List<KmsNode> parse(String uris) {
+		List<KmsNode> nodes = new ArrayList<KmsNode>();
+		for (String uri : uris.split(",")) {
+			if (!uri.trim().isEmpty()) {
+				nodes.add(new KmsNode(uri.trim()));
+			}
+		}
+		if (!nodes.isEmpty()) {
+			log.info("room edges on {}", uris);
+		}
+		return Collections.unmodifiableList(nodes);
+	}
+
+	public synchronized KurentoClient getClient() {
+		if (client == null || client.isClosed()) {
+			log.debug("connecting to edge kms {}", uri);
+			client = KurentoClient.create(uri);
+		}
+		return client;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public int getReceivers() {
+		return receivers.get();
+	}
+
+	public void receiverJoined() {
+		receivers.incrementAndGet();
+	}
+
+	public void receiverLeft() {
+		receivers.decrementAndGet();
+	}
+
+	@Override
+	public String toString() {
+		return uri + " (" + receivers.get() + " receivers)";
+	}
+}
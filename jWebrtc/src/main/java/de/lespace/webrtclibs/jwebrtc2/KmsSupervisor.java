@@ -0,0 +1,336 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.KurentoConnectionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps the connection to the media server of calls, conferences, playbacks
+ * and rooms ({@link Utils#kurentoClient()}).
+ *
+ * The server is unhealthy while the client is disconnected or when
+ * {@link Config#KMS_HEALTH_FAILURES} probes in a row (every
+ * {@link Config#KMS_HEALTH_INTERVAL} seconds) went unanswered. New calls are
+ * refused then and the health check takes the node out of the load
+ * balancer. If the client does not come back by itself it is replaced: the
+ * supervisor connects again with a growing pause, going round the servers of
+ * {@link Config#KMS_URIS}.
+ *
+ * Whenever the media objects of the old connection cannot be used as they
+ * are (the client connected to another server, or a new client replaced the
+ * old one) the {@link Listener} looks them up again by id and ends the
+ * media which did not survive.
+ */
+public class KmsSupervisor implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(KmsSupervisor.class);
+
+	/**
+	 * Reacts to a replaced connection, implemented by the websocket endpoint.
+	 */
+	public interface Listener {
+		/**
+		 * The media objects created before must be looked up again with the
+		 * given client, those which are gone have to be ended.
+		 */
+		void reconnected(KurentoClient client);
+	}
+
+	private final List<String> uris;
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(HashedWheelTimer.daemonThreads("kms-supervisor"));
+	private volatile Listener listener;
+	private volatile KurentoClient client;
+	private volatile boolean healthy;
+	private volatile boolean stopped;
+	// index of the current server in uris
+	private volatile int current;
+	private int failedProbes;
+	private int backoff;
+	private boolean reconnecting;
+	private volatile int reconnects;
+	private volatile long unhealthySince;
+
+	/**
+	 * @param uris
+	 *            the media servers, the first is used first
+	 */
+	public KmsSupervisor(List<String> uris) {
+		if (uris.isEmpty()) {
+			throw new IllegalArgumentException("no media server configured");
+		}
+		this.uris = Collections.unmodifiableList(new ArrayList<String>(uris));
+	}
+
+	/**
+	 * Connects in the background and starts the probes.
+	 */
+	public void start(Listener listener) {
+		this.listener = listener;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (client == null) {
+					reconnect();
+				}
+			}
+		});
+		if (Config.KMS_HEALTH_INTERVAL > 0) {
+			executor.scheduleWithFixedDelay(this, Config.KMS_HEALTH_INTERVAL, Config.KMS_HEALTH_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+		executor.shutdownNow();
+	}
+
+	/**
+	 * @return the client, connecting on first use
+	 * @throws IllegalStateException
+	 *             if the media server cannot be reached
+	 */
+	public KurentoClient getClient() {
+		KurentoClient connected = client;
+		if (connected != null) {
+			return connected;
+		}
+		synchronized (this) {
+			if (client == null && !connect()) {
+				throw new IllegalStateException("media server " + getUri() + " is not reachable");
+			}
+			return client;
+		}
+	}
+
+	public boolean isHealthy() {
+		return healthy;
+	}
+
+	public String getUri() {
+		return uris.get(current);
+	}
+
+	/**
+	 * Probes the media server.
+	 */
+	@Override
+	public void run() {
+		KurentoClient probed = client;
+		if (probed == null || stopped) {
+			return;
+		}
+		try {
+			probed.getServerManager().getInfo();
+			synchronized (this) {
+				failedProbes = 0;
+			}
+		} catch (RuntimeException e) {
+			int failed;
+			synchronized (this) {
+				failed = ++failedProbes;
+			}
+			log.warn("media server {} did not answer the probe ({} in a row): {}", getUri(), failed, e.getMessage());
+			if (failed >= Config.KMS_HEALTH_FAILURES) {
+				unhealthy("probes failed");
+				scheduleReconnect();
+			}
+		}
+	}
+
+	/**
+	 * Opens a new client to the current server.
+	 *
+	 * @return false, if the server could not be reached
+	 */
+	private synchronized boolean connect() {
+		final String uri = uris.get(current);
+		try {
+			final KurentoClient[] created = new KurentoClient[1];
+			created[0] = KurentoClient.create(uri, new KurentoConnectionListener() {
+				@Override
+				public void connected() {
+				}
+
+				@Override
+				public void connectionFailed() {
+					if (created[0] == client) {
+						unhealthy("connection failed");
+						scheduleReconnect();
+					}
+				}
+
+				@Override
+				public void disconnected() {
+					if (created[0] == client) {
+						unhealthy("disconnected");
+					}
+				}
+
+				@Override
+				public void reconnected(boolean sameServer) {
+					if (created[0] != client) {
+						return;
+					}
+					healthy("reconnected");
+					if (!sameServer) {
+						// a restarted server, its media objects are gone
+						notifyReconnected(created[0]);
+					}
+				}
+			});
+			KurentoClient previous = client;
+			client = created[0];
+			failedProbes = 0;
+			backoff = 0;
+			healthy("connected");
+			if (previous != null) {
+				destroy(previous);
+			}
+			return true;
+		} catch (RuntimeException e) {
+			log.warn("connecting to media server {} failed: {}", uri, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Replaces the client with one to the next reachable server, pausing
+	 * longer after each round that failed.
+	 */
+	private void scheduleReconnect() {
+		synchronized (this) {
+			if (reconnecting || stopped) {
+				return;
+			}
+			reconnecting = true;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					reconnect();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.debug("not reconnecting, supervisor stopped");
+		}
+	}
+
+	private void reconnect() {
+		boolean replaced = client != null;
+		boolean connected;
+		synchronized (this) {
+			if (healthy) {
+				// connected meanwhile, by getClient() or by the client itself
+				reconnecting = false;
+				return;
+			}
+			connected = connect();
+			if (!connected && uris.size() > 1) {
+				current = (current + 1) % uris.size();
+				connected = connect();
+			}
+			if (!connected) {
+				backoff = backoff == 0 ? Config.KMS_RECONNECT_MIN_BACKOFF : Math.min(backoff * 2, Config.KMS_RECONNECT_MAX_BACKOFF);
+				reconnects++;
+			}
+		}
+		if (connected) {
+			synchronized (this) {
+				reconnecting = false;
+			}
+			if (replaced) {
+				notifyReconnected(client);
+			}
+			return;
+		}
+		if (stopped) {
+			return;
+		}
+		log.info("media server still unreachable, next attempt in {}s", backoff);
+		try {
+			executor.schedule(new Runnable() {
+				@Override
+				public void run() {
+					reconnect();
+				}
+			}, backoff, TimeUnit.SECONDS);
+		} catch (RejectedExecutionException e) {
+			log.debug("not reconnecting, supervisor stopped");
+		}
+	}
+
+	private void notifyReconnected(final KurentoClient reconnected) {
+		final Listener current = listener;
+		if (current == null) {
+			return;
+		}
+		try {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						current.reconnected(reconnected);
+					} catch (RuntimeException e) {
+						log.error("reattaching media after reconnect failed: {}", e.getMessage(), e);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			log.debug("not reattaching, supervisor stopped");
+		}
+	}
+
+	private void healthy(String reason) {
+		if (!healthy) {
+			log.info("media server {} is healthy ({})", getUri(), reason);
+		}
+		healthy = true;
+		unhealthySince = 0;
+	}
+
+	private void unhealthy(String reason) {
+		if (healthy || unhealthySince == 0) {
+			log.error("media server {} is unhealthy: {}", getUri(), reason);
+			unhealthySince = System.currentTimeMillis();
+		}
+		healthy = false;
+	}
+
+	private static void destroy(KurentoClient old) {
+		try {
+			old.destroy();
+		} catch (RuntimeException e) {
+			log.debug("closing the old media server client failed: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * @return state for /admin/status
+	 */
+	public JsonObject getMetrics() {
+		JsonObject metrics = new JsonObject();
+		metrics.addProperty("uri", getUri());
+		metrics.addProperty("healthy", healthy);
+		if (!healthy && unhealthySince > 0) {
+			metrics.addProperty("unhealthyForSeconds", (System.currentTimeMillis() - unhealthySince) / 1000);
+		}
+		metrics.addProperty("failedReconnects", reconnects);
+		return metrics;
+	}
+}
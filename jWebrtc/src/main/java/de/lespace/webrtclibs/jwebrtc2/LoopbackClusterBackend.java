@@ -0,0 +1,139 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * In-memory cluster. Nodes created with the same {@link Network} share one
+ * directory and reach each other through a single delivery thread, so
+ * several nodes can run in one JVM for tests. The default constructor gives a
+ * cluster of one node, which is what a server without clustering runs.
+ *
+ * Messages are serialized and parsed again on delivery, so nodes share no
+ * objects just like over a real network.
+ */
+public class LoopbackClusterBackend implements ClusterBackend {
+
+	private static final Logger log = LoggerFactory.getLogger(LoopbackClusterBackend.class);
+
+	/**
+	 * The nodes and the directory shared by them.
+	 */
+	public static class Network {
+		private final ConcurrentHashMap<String, Presence> directory = new ConcurrentHashMap<>();
+		private final ConcurrentHashMap<String, LoopbackClusterBackend> nodes = new ConcurrentHashMap<>();
+		private final ExecutorService delivery = Executors.newSingleThreadExecutor(HashedWheelTimer.daemonThreads("loopback-cluster"));
+
+		private void deliver(final Runnable task) {
+			delivery.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.error("loopback delivery failed: {}", e.getMessage(), e);
+					}
+				}
+			});
+		}
+
+		public void shutdown() {
+			delivery.shutdownNow();
+		}
+	}
+
+	private final Network network;
+	private volatile String node;
+	private volatile Listener listener;
+
+	public LoopbackClusterBackend() {
+		this(new Network());
+	}
+
+	public LoopbackClusterBackend(Network network) {
+		this.network = network;
+	}
+
+	@Override
+	public void start(String node, Listener listener) {
+		this.node = node;
+		this.listener = listener;
+		network.nodes.put(node, this);
+	}
+
+	@Override
+	public void stop() {
+		network.nodes.remove(node, this);
+		for (Map.Entry<String, Presence> entry : network.directory.entrySet()) {
+			if (entry.getValue().getNode().equals(node)) {
+				publish(entry.getKey(), null);
+			}
+		}
+		if (network.nodes.isEmpty()) {
+			network.shutdown();
+		}
+	}
+
+	@Override
+	public void publish(final String name, final String status) {
+		if (status != null) {
+			network.directory.put(name, new Presence(node, status));
+		} else {
+			Presence presence = network.directory.get(name);
+			if (presence == null || !presence.getNode().equals(node) || !network.directory.remove(name, presence)) {
+				return;
+			}
+		}
+		for (final LoopbackClusterBackend other : network.nodes.values()) {
+			if (other == this) {
+				continue;
+			}
+			network.deliver(new Runnable() {
+				@Override
+				public void run() {
+					other.listener.onPresence(name, node, status);
+				}
+			});
+		}
+	}
+
+	@Override
+	public Presence lookup(String name) {
+		return network.directory.get(name);
+	}
+
+	@Override
+	public Map<String, Presence> getDirectory() {
+		return Collections.unmodifiableMap(new HashMap<String, Presence>(network.directory));
+	}
+
+	@Override
+	public void send(final String to, JsonObject message) {
+		final String serialized = message.toString();
+		final String from = node;
+		network.deliver(new Runnable() {
+			@Override
+			public void run() {
+				LoopbackClusterBackend target = network.nodes.get(to);
+				if (target == null) {
+					log.debug("node {} is gone, dropping message from {}", to, from);
+					return;
+				}
+				target.listener.onMessage(from, new JsonParser().parse(serialized).getAsJsonObject());
+			}
+		});
+	}
+}
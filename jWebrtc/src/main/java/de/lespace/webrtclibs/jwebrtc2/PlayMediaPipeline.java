@@ -1,15 +1,15 @@
 package de.lespace.webrtclibs.jwebrtc2;
 
 import java.io.IOException;
-import java.text.SimpleDateFormat;
-import java.util.Date;
-
-import javax.websocket.Session;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
+import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.ErrorEvent;
 import org.kurento.client.EventListener;
-import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.OnIceCandidateEvent;
 import org.kurento.client.PlayerEndpoint;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
@@ -17,72 +17,218 @@ import org.slf4j.LoggerFactory;
 
 import com.google.gson.JsonObject;
 
-// TODO Maybe modify this class to replay any recorded talk between two (or more?) peers?
-
+/**
+ * Playback of a recording: one PlayerEndpoint fanned out to the
+ * WebRtcEndpoints of its viewers. Pause, resume and seek act on the player, so
+ * on a shared playback all viewers see the same position.
+ *
+ * The pipeline is borrowed from the {@link PlaybackManager}, {@link #close()}
+ * releases the player and the viewers' endpoints but not the pipeline, so it
+ * can be reused for the next playback.
+ */
 public class PlayMediaPipeline {
 
-	private static final SimpleDateFormat df = new SimpleDateFormat("yyyy-MM-dd_HH-mm-ss-S");
-	
-	// TODO define as environment variables
-	public static final String RECORDING_DIR = "file:///kurento/record/";
-	public static final String RECORDING_PATH = RECORDING_DIR + df.format(new Date()) + "-";
-	public static final String RECORDING_EXT = ".webm";
-
 	private static final Logger log = LoggerFactory.getLogger(PlayMediaPipeline.class);
 
-	private MediaPipeline pipeline;
-	private WebRtcEndpoint webRtc;
-	private PlayerEndpoint player;
-
-	public PlayMediaPipeline(KurentoClient kurento, String user, final Session session) {
-		// Media pipeline
-		pipeline = kurento.createMediaPipeline();
-
-		// Media Elements (WebRtcEndpoint, PlayerEndpoint)
-		webRtc = new WebRtcEndpoint.Builder(pipeline).build();
-		player = new PlayerEndpoint.Builder(pipeline, RECORDING_PATH + user + RECORDING_EXT).build();
+	/**
+	 * Called once when the player stops by itself (end of stream, error).
+	 */
+	public interface EndListener {
+		void ended(PlayMediaPipeline playback, String reason);
+	}
 
-		// Connection
-		player.connect(webRtc);
+	private final MediaPipeline pipeline;
+	private final PlayerEndpoint player;
+	private final Recording recording;
+	private final String owner;
+	private final boolean shared;
+	// viewers' endpoints by websocket session id
+	private final ConcurrentHashMap<String, WebRtcEndpoint> endpoints = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, UserSession> viewers = new ConcurrentHashMap<>();
+	private volatile boolean started;
+	private volatile boolean paused;
+	private volatile boolean closed;
+
+	/**
+	 * @param pipeline
+	 *            an empty pipeline
+	 * @param owner
+	 *            the user who started the playback
+	 * @param shared
+	 *            whether other viewers may join
+	 */
+	public PlayMediaPipeline(MediaPipeline pipeline, Recording recording, String owner, boolean shared,
+			final EndListener endListener) {
+		this.pipeline = pipeline;
+		this.recording = recording;
+		this.owner = owner;
+		this.shared = shared;
+		this.player = new PlayerEndpoint.Builder(pipeline, recording.getUri()).build();
 
-		// Player listeners
 		player.addErrorListener(new EventListener<ErrorEvent>() {
 			@Override
 			public void onEvent(ErrorEvent event) {
 				log.info("ErrorEvent: {}", event.getDescription());
-				sendPlayEnd(session);
+				endListener.ended(PlayMediaPipeline.this, event.getDescription());
+			}
+		});
+		player.addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
+			@Override
+			public void onEvent(EndOfStreamEvent event) {
+				endListener.ended(PlayMediaPipeline.this, "end of stream");
 			}
 		});
 	}
 
-	public void sendPlayEnd(Session session) {
+	/**
+	 * Connects a new viewer to the player, the first viewer starts it.
+	 *
+	 * @return the sdp answer
+	 * @throws IllegalStateException
+	 *             if the playback ended meanwhile
+	 */
+	public synchronized String addViewer(UserSession user, String sdpOffer, EventListener<OnIceCandidateEvent> candidateListener) {
+		if (closed) {
+			throw new IllegalStateException("playback of " + recording.getId() + " has ended");
+		}
+		WebRtcEndpoint webRtc = new WebRtcEndpoint.Builder(pipeline).build();
+		String sdpAnswer;
 		try {
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "playEnd");
-			session.getBasicRemote().sendText(response.toString());
-		} catch (IOException e) {
-			log.error("Error sending playEndOfStream message", e);
+			player.connect(webRtc);
+			webRtc.addOnIceCandidateListener(candidateListener);
+			user.setWebRtcEndpoint(webRtc);
+			sdpAnswer = webRtc.processOffer(sdpOffer);
+		} catch (RuntimeException e) {
+			forgetCandidates(user, webRtc);
+			webRtc.release();
+			throw e;
+		}
+
+		endpoints.put(user.getSessionId(), webRtc);
+		viewers.put(user.getSessionId(), user);
+		if (!started) {
+			started = true;
+			player.play();
 		}
+		webRtc.gatherCandidates();
+		log.debug("{} watches {}, {} viewers", user.getName(), recording, viewers.size());
+		return sdpAnswer;
 	}
 
-	public void play() {
-		player.play();
+	/**
+	 * Disconnects the viewer and releases its endpoint.
+	 *
+	 * @return true, if nobody watches anymore
+	 */
+	public synchronized boolean removeViewer(String sessionId) {
+		UserSession viewer = viewers.remove(sessionId);
+		WebRtcEndpoint webRtc = endpoints.remove(sessionId);
+		forgetCandidates(viewer, webRtc);
+		if (webRtc != null && !closed) {
+			webRtc.release();
+		}
+		return viewers.isEmpty();
 	}
 
-	public String generateSdpAnswer(String sdpOffer) {
-		return webRtc.processOffer(sdpOffer);
+	/**
+	 * Clears the ICE candidate state of the viewer if it still belongs to the
+	 * released endpoint, so the candidates of the user's next call are queued
+	 * again instead of being handed to the playback.
+	 */
+	private static void forgetCandidates(UserSession viewer, WebRtcEndpoint webRtc) {
+		if (viewer != null && webRtc != null && viewer.getWebRtcEndpoint() == webRtc) {
+			viewer.clear();
+		}
 	}
 
-	public MediaPipeline getPipeline() {
-		return pipeline;
+	public synchronized void pause() {
+		if (!closed && !paused) {
+			player.pause();
+			paused = true;
+		}
+	}
+
+	public synchronized void resume() {
+		if (!closed && paused) {
+			player.play();
+			paused = false;
+		}
+	}
+
+	/**
+	 * @param position
+	 *            milliseconds from the start of the recording
+	 */
+	public synchronized void seek(long position) {
+		if (!closed) {
+			player.setPosition(position);
+		}
 	}
 
-	public WebRtcEndpoint getWebRtc() {
-		return webRtc;
+	public long getPosition() {
+		return closed ? 0 : player.getPosition();
+	}
+
+	/**
+	 * Releases the player and the viewers' endpoints, the pipeline stays.
+	 */
+	public synchronized void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		for (Map.Entry<String, WebRtcEndpoint> endpoint : endpoints.entrySet()) {
+			forgetCandidates(viewers.get(endpoint.getKey()), endpoint.getValue());
+			endpoint.getValue().release();
+		}
+		endpoints.clear();
+		player.release();
+	}
+
+	/**
+	 * Sends the message to all viewers.
+	 */
+	public void broadcast(JsonObject message) {
+		for (UserSession viewer : viewers.values()) {
+			try {
+				synchronized (viewer.getSession()) {
+					viewer.sendMessage(message);
+				}
+			} catch (IOException | IllegalStateException e) {
+				log.debug("sending to {} failed: {}", viewer.getName(), e.getMessage());
+			}
+		}
+	}
+
+	public MediaPipeline getPipeline() {
+		return pipeline;
 	}
 
 	public PlayerEndpoint getPlayer() {
 		return player;
 	}
 
+	public Recording getRecording() {
+		return recording;
+	}
+
+	public String getOwner() {
+		return owner;
+	}
+
+	public boolean isShared() {
+		return shared;
+	}
+
+	public boolean isPaused() {
+		return paused;
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	public Collection<UserSession> getViewers() {
+		return viewers.values();
+	}
 }
@@ -0,0 +1,225 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.kurento.client.EventListener;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.OnIceCandidateEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Playbacks of recordings by websocket session.
+ *
+ * A shared playback is joined by everybody who asks to watch the same
+ * recording shared, they all get the stream of one PlayerEndpoint.
+ *
+ * When a playback ends its pipeline is kept for
+ * {@link Config#PLAYBACK_IDLE_TIMEOUT} seconds and reused for the next play of
+ * the same user, so reviewing several recordings in a row does not build a
+ * pipeline each time.
+ */
+public class PlaybackManager implements PlayMediaPipeline.EndListener {
+
+	private static final Logger log = LoggerFactory.getLogger(PlaybackManager.class);
+
+	private final HashedWheelTimer timer;
+	private final ConcurrentHashMap<String, PlayMediaPipeline> playbacksBySession = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, PlayMediaPipeline> sharedByRecording = new ConcurrentHashMap<>();
+	// pipelines of ended playbacks by user name
+	private final ConcurrentHashMap<String, MediaPipeline> idlePipelines = new ConcurrentHashMap<>();
+
+	public PlaybackManager(HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Starts a playback of the recording for the user or, if shared, joins a
+	 * running shared playback of it. A previous playback of the session is
+	 * stopped.
+	 *
+	 * @return the sdp answer
+	 */
+	public String play(UserSession user, Recording recording, boolean shared, String sdpOffer,
+			EventListener<OnIceCandidateEvent> candidateListener) {
+		stop(user);
+		if (shared) {
+			PlayMediaPipeline running = sharedByRecording.get(recording.getId());
+			if (running != null) {
+				try {
+					String sdpAnswer = running.addViewer(user, sdpOffer, candidateListener);
+					playbacksBySession.put(user.getSessionId(), running);
+					return sdpAnswer;
+				} catch (IllegalStateException e) {
+					// ended meanwhile, start a new one
+					sharedByRecording.remove(recording.getId(), running);
+				}
+			}
+		}
+
+		PlayMediaPipeline playback = create(user.getName(), recording, shared);
+		if (shared) {
+			PlayMediaPipeline other = sharedByRecording.putIfAbsent(recording.getId(), playback);
+			if (other != null && !other.isClosed()) {
+				// somebody else started it at the same time
+				playback.close();
+				park(playback.getOwner(), playback.getPipeline());
+				return play(user, recording, true, sdpOffer, candidateListener);
+			}
+			sharedByRecording.put(recording.getId(), playback);
+		}
+		playbacksBySession.put(user.getSessionId(), playback);
+		try {
+			return playback.addViewer(user, sdpOffer, candidateListener);
+		} catch (RuntimeException e) {
+			playbacksBySession.remove(user.getSessionId(), playback);
+			end(playback);
+			throw e;
+		}
+	}
+
+	private PlayMediaPipeline create(String owner, Recording recording, boolean shared) {
+		MediaPipeline pipeline = idlePipelines.remove(owner);
+		if (pipeline != null) {
+			try {
+				PlayMediaPipeline playback = new PlayMediaPipeline(pipeline, recording, owner, shared, this);
+				log.debug("reusing pipeline of {} for {}", owner, recording);
+				return playback;
+			} catch (RuntimeException e) {
+				// e.g. the media server was restarted
+				log.debug("idle pipeline of {} is gone: {}", owner, e.getMessage());
+				release(pipeline);
+			}
+		}
+		pipeline = Utils.kurentoClient().createMediaPipeline();
+		try {
+			return new PlayMediaPipeline(pipeline, recording, owner, shared, this);
+		} catch (RuntimeException e) {
+			release(pipeline);
+			throw e;
+		}
+	}
+
+	/**
+	 * @return the playback the session watches, or null
+	 */
+	public PlayMediaPipeline get(UserSession user) {
+		return playbacksBySession.get(user.getSessionId());
+	}
+
+	/**
+	 * The user stops watching, the playback ends when nobody watches anymore.
+	 */
+	public void stop(UserSession user) {
+		PlayMediaPipeline playback = playbacksBySession.remove(user.getSessionId());
+		if (playback != null && playback.removeViewer(user.getSessionId())) {
+			end(playback);
+		}
+	}
+
+	/**
+	 * The player reached the end of the recording or failed.
+	 */
+	@Override
+	public void ended(PlayMediaPipeline playback, String reason) {
+		log.debug("playback of {} ended: {}", playback.getRecording(), reason);
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "playEnd");
+		playback.broadcast(message);
+		for (UserSession viewer : playback.getViewers()) {
+			playbacksBySession.remove(viewer.getSessionId(), playback);
+		}
+		end(playback);
+	}
+
+	private void end(PlayMediaPipeline playback) {
+		if (playback.isShared()) {
+			sharedByRecording.remove(playback.getRecording().getId(), playback);
+		}
+		if (!playback.isClosed()) {
+			try {
+				playback.close();
+			} catch (RuntimeException e) {
+				release(playback.getPipeline());
+				return;
+			}
+			park(playback.getOwner(), playback.getPipeline());
+		}
+	}
+
+	/**
+	 * Keeps the pipeline for the next play of the user for a while.
+	 */
+	private void park(final String owner, final MediaPipeline pipeline) {
+		MediaPipeline previous = idlePipelines.put(owner, pipeline);
+		if (previous != null) {
+			release(previous);
+		}
+		timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if (idlePipelines.remove(owner, pipeline)) {
+					log.debug("releasing idle playback pipeline of {}", owner);
+					release(pipeline);
+				}
+			}
+		}, Config.PLAYBACK_IDLE_TIMEOUT, TimeUnit.SECONDS);
+	}
+
+	private static void release(MediaPipeline pipeline) {
+		try {
+			pipeline.release();
+		} catch (RuntimeException e) {
+			log.debug("releasing playback pipeline failed: {}", e.getMessage());
+		}
+	}
+
+	public List<PlayMediaPipeline> getPlaybacks() {
+		return new ArrayList<PlayMediaPipeline>(playbacksBySession.values());
+	}
+
+	public int getIdlePipelines() {
+		return idlePipelines.size();
+	}
+
+	/**
+	 * Ends every playback (viewers get a 'playEnd') and forgets the idle
+	 * pipelines, after the connection to the media server was replaced.
+	 */
+	public void mediaServerLost() {
+		for (PlayMediaPipeline playback : new HashSet<PlayMediaPipeline>(playbacksBySession.values())) {
+			ended(playback, "media server lost");
+		}
+		for (String owner : new ArrayList<String>(idlePipelines.keySet())) {
+			MediaPipeline pipeline = idlePipelines.remove(owner);
+			if (pipeline != null) {
+				release(pipeline);
+			}
+		}
+	}
+
+	/**
+	 * Releases all pipelines, playing or idle.
+	 */
+	public void close() {
+		for (PlayMediaPipeline playback : getPlaybacks()) {
+			playback.close();
+			release(playback.getPipeline());
+		}
+		playbacksBySession.clear();
+		sharedByRecording.clear();
+		for (MediaPipeline pipeline : idlePipelines.values()) {
+			release(pipeline);
+		}
+		idlePipelines.clear();
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+/**
+ * Entry of the cluster's presence directory: the node a user is connected to
+ * and its online status.
+ */
+public class Presence {
+
+	private final String node;
+	private final String status;
+
+	public Presence(String node, String status) {
+		this.node = node;
+		this.status = status;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	public String getStatus() {
+		return status;
+	}
+
+	@Override
+	public String toString() {
+		return status + "@" + node;
+	}
+}
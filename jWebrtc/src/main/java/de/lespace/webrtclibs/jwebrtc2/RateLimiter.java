@@ -0,0 +1,278 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token buckets for the signaling messages, so a client sending in a loop
+ * (or on purpose) cannot keep the handler threads and the presence fan-out
+ * busy for everyone else.
+ *
+ * Every message of a session, except the ids of
+ * {@link Config#RATE_SESSION_EXEMPT}, takes a token of its session bucket
+ * ({@link Config#RATE_SESSION}) and, for the ids of
+ * {@link Config#RATE_MESSAGE_LIMITS}, of the bucket of that id in the
+ * session. The ids of {@link Config#RATE_GLOBAL_LIMITS}, the messages which
+ * create media pipelines, also take one of a bucket of the whole node.
+ * Roster broadcasts have a node bucket of their own
+ * ({@link Config#RATE_ROSTER}). A limit is given as "rate/burst", in
+ * messages per second and the number of messages allowed at once; a rate of
+ * 0 disables it. A message is only charged if all its buckets admit it, the
+ * tokens of a refused message are given back.
+ */
+public class RateLimiter {
+
+	/**
+	 * A token bucket, refilled continuously at its rate up to its burst.
+	 */
+	static final class Bucket {
+		private final double rate;
+		private final double burst;
+		private double tokens;
+		private long last;
+
+		Bucket(double[] limit) {
+			this.rate = limit[0];
+			this.burst = Math.max(1, limit[1]);
+			this.tokens = burst;
+			this.last = System.nanoTime();
+		}
+
+		/**
+		 * @return 0 if a token was taken, otherwise the ms until the next one
+		 */
+		synchronized long take(long now) {
+			tokens = Math.min(burst, tokens + (now - last) * rate / TimeUnit.SECONDS.toNanos(1));
+			last = now;
+			if (tokens >= 1) {
+				tokens--;
+				return 0;
+			}
+			return Math.max(1, (long) Math.ceil((1 - tokens) * 1000 / rate));
+		}
+
+		/**
+		 * Gives back a token taken for a message another bucket refused.
+		 */
+		synchronized void refund() {
+			tokens = Math.min(burst, tokens + 1);
+		}
+	}
+
+	/**
+	 * The buckets of one websocket session.
+	 */
+	private static final class SessionLimits {
+		final Bucket overall;
+		final ConcurrentHashMap<String, Bucket> byId = new ConcurrentHashMap<>();
+		volatile long lastNotice;
+
+		SessionLimits(Bucket overall) {
+			this.overall = overall;
+		}
+	}
+
+	private final double[] sessionLimit;
+	private final Set<String> sessionExempt = new HashSet<>();
+	private final Map<String, double[]> messageLimits;
+	private final Map<String, Bucket> globalBuckets = new HashMap<>();
+	private final Bucket rosterBucket;
+	private final ConcurrentHashMap<String, SessionLimits> sessions = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, AtomicLong> throttled = new ConcurrentHashMap<>();
+	private final AtomicLong throttledGlobal = new AtomicLong();
+	private final AtomicLong deferredRosters = new AtomicLong();
+
+	public RateLimiter() {
+		sessionLimit = parseLimit(Config.RATE_SESSION);
+		for (String id : Config.RATE_SESSION_EXEMPT.split(",")) {
+			if (!id.trim().isEmpty()) {
+				sessionExempt.add(id.trim());
+			}
+		}
+		messageLimits = parseLimits(Config.RATE_MESSAGE_LIMITS);
+		for (Map.Entry<String, double[]> limit : parseLimits(Config.RATE_GLOBAL_LIMITS).entrySet()) {
+			globalBuckets.put(limit.getKey(), new Bucket(limit.getValue()));
+		}
+		double[] rosterLimit = parseLimit(Config.RATE_ROSTER);
+		rosterBucket = rosterLimit != null ? new Bucket(rosterLimit) : null;
+	}
+
+	/**
+	 * Takes the tokens for a message.
+	 *
+	 * @param sessionId
+	 *            the websocket session the message came on
+	 * @param id
+	 *            the message id
+	 * @return 0 if the message may be handled, otherwise the ms after which
+	 *         the client may try again
+	 */
+	public long check(String sessionId, String id) {
+		long now = System.nanoTime();
+		SessionLimits limits = sessions.get(sessionId);
+		if (limits == null) {
+			SessionLimits created = new SessionLimits(sessionLimit != null ? new Bucket(sessionLimit) : null);
+			limits = sessions.putIfAbsent(sessionId, created);
+			if (limits == null) {
+				limits = created;
+			}
+		}
+		Bucket overall = sessionExempt.contains(id) ? null : limits.overall;
+		if (overall != null) {
+			long wait = overall.take(now);
+			if (wait > 0) {
+				return throttled(wait, "session");
+			}
+		}
+		Bucket bucket = null;
+		double[] messageLimit = messageLimits.get(id);
+		if (messageLimit != null) {
+			bucket = limits.byId.get(id);
+			if (bucket == null) {
+				Bucket created = new Bucket(messageLimit);
+				bucket = limits.byId.putIfAbsent(id, created);
+				if (bucket == null) {
+					bucket = created;
+				}
+			}
+			long wait = bucket.take(now);
+			if (wait > 0) {
+				refund(overall);
+				return throttled(wait, id);
+			}
+		}
+		Bucket global = globalBuckets.get(id);
+		if (global != null) {
+			long wait = global.take(now);
+			if (wait > 0) {
+				refund(overall);
+				refund(bucket);
+				throttledGlobal.incrementAndGet();
+				return throttled(wait, id);
+			}
+		}
+		return 0;
+	}
+
+	private static void refund(Bucket bucket) {
+		if (bucket != null) {
+			bucket.refund();
+		}
+	}
+
+	private long throttled(long wait, String what) {
+		AtomicLong count = throttled.get(what);
+		if (count == null) {
+			AtomicLong created = new AtomicLong();
+			count = throttled.putIfAbsent(what, created);
+			if (count == null) {
+				count = created;
+			}
+		}
+		count.incrementAndGet();
+		return wait;
+	}
+
+	/**
+	 * @return true at most once a second per session, so telling a client it
+	 *         is throttled does not become a flood itself
+	 */
+	public boolean shouldNotify(String sessionId) {
+		SessionLimits limits = sessions.get(sessionId);
+		if (limits == null) {
+			return false;
+		}
+		long now = System.currentTimeMillis();
+		if (now - limits.lastNotice < 1000) {
+			return false;
+		}
+		limits.lastNotice = now;
+		return true;
+	}
+
+	/**
+	 * @return false if the roster broadcast has to wait, it is then counted
+	 *         as deferred
+	 */
+	public boolean allowRoster() {
+		if (rosterBucket == null || rosterBucket.take(System.nanoTime()) == 0) {
+			return true;
+		}
+		deferredRosters.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * @return ms until the next roster broadcast is allowed
+	 */
+	public long rosterDelay() {
+		return rosterBucket == null || rosterBucket.rate <= 0 ? 0 : (long) Math.ceil(1000 / rosterBucket.rate);
+	}
+
+	/**
+	 * Drops the buckets of a closed session.
+	 */
+	public void forget(String sessionId) {
+		sessions.remove(sessionId);
+	}
+
+	/**
+	 * @return a limit "rate/burst", null if it is empty or the rate is 0
+	 */
+	static double[] parseLimit(String limit) {
+		if (limit == null || limit.trim().isEmpty()) {
+			return null;
+		}
+		String[] parts = limit.trim().split("/");
+		double rate = Double.parseDouble(parts[0].trim());
+		double burst = parts.length > 1 ? Double.parseDouble(parts[1].trim()) : Math.max(1, rate);
+		return rate > 0 ? new double[] { rate, burst } : null;
+	}
+
+	/**
+	 * @return the limits of "id=rate/burst,..." by id
+	 */
+	static Map<String, double[]> parseLimits(String limits) {
+		Map<String, double[]> parsed = new HashMap<>();
+		for (String entry : limits.split(",")) {
+			int separator = entry.indexOf('=');
+			if (separator < 0) {
+				continue;
+			}
+			double[] limit = parseLimit(entry.substring(separator + 1));
+			if (limit != null) {
+				parsed.put(entry.substring(0, separator).trim(), limit);
+			}
+		}
+		return Collections.unmodifiableMap(parsed);
+	}
+
+	/**
+	 * @return state for /admin/status
+	 */
+	public JsonObject getMetrics() {
+		JsonObject metrics = new JsonObject();
+		metrics.addProperty("sessions", sessions.size());
+		JsonObject byId = new JsonObject();
+		for (Map.Entry<String, AtomicLong> count : throttled.entrySet()) {
+			byId.addProperty(count.getKey(), count.getValue().get());
+		}
+		metrics.add("throttled", byId);
+		metrics.addProperty("throttledGlobal", throttledGlobal.get());
+		metrics.addProperty("deferredRosters", deferredRosters.get());
+		return metrics;
+	}
+}
@@ -5,8 +5,6 @@
  */
 package de.lespace.webrtclibs.jwebrtc2;
 
-import java.util.ArrayList;
-import java.util.List;
 import javax.websocket.Session;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
@@ -21,7 +19,29 @@ public class Receiver {
     
 	public String sessionId;
 	public Session websocket;
-        public WebRtcEndpoint endpoint;
-	public List<IceCandidate> candidateQueue = new ArrayList();
-        
+        // edge the receiver is placed on, null for the room pipeline
+        public volatile RoomEdge edge;
+        // the endpoint and the candidates which arrived before it
+        private final CandidateQueue candidates = new CandidateQueue();
+
+        /**
+         * Adds the candidate to the endpoint, or queues it until the endpoint exists.
+         * Duplicates are dropped.
+         */
+        public void addCandidate(IceCandidate candidate) {
+            candidates.add(candidate);
+        }
+
+        /**
+         * Sets the endpoint and hands it the queued candidates.
+         *
+         * @return the previous endpoint, if any
+         */
+        public WebRtcEndpoint setEndpoint(WebRtcEndpoint endpoint) {
+            return candidates.setEndpoint(endpoint);
+        }
+
+        public WebRtcEndpoint getEndpoint() {
+            return candidates.getEndpoint();
+        }
 }
@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.io.File;
+import java.net.URI;
+import java.util.Comparator;
+
+/**
+ * A file written by a call pipeline, as kept in the {@link RecordingCatalog}.
+ * Serialized with gson, one json line per change in the catalog index.
+ */
+public class Recording {
+
+	/** orders by start time, then id */
+	public static final Comparator<Recording> BY_START_TIME = new Comparator<Recording>() {
+		@Override
+		public int compare(Recording r1, Recording r2) {
+			int result = Long.compare(r1.startTime, r2.startTime);
+			return result != 0 ? result : r1.id.compareTo(r2.id);
+		}
+	};
+
+	private String id;
+	private String uri;
+	// the user whose stream is recorded, the first party of a mixed recording
+	private String user;
+	private String peer;
+	// true if both parties are in the file
+	private boolean mixed;
+	private String profile;
+	private long startTime;
+	private volatile long duration;
+	private volatile long size;
+	private volatile boolean deleted;
+
+	public Recording(String id, String uri, String user, String peer, boolean mixed, String profile, long startTime) {
+		this.id = id;
+		this.uri = uri;
+		this.user = user;
+		this.peer = peer;
+		this.mixed = mixed;
+		this.profile = profile;
+		this.startTime = startTime;
+	}
+
+	/**
+	 * Probe for range queries on sets ordered by {@link #BY_START_TIME}.
+	 *
+	 * @param first
+	 *            true for the lowest, false for the highest id at this time
+	 */
+	static Recording probe(long startTime, boolean first) {
+		return new Recording(first ? "" : "\uffff", null, null, null, false, null, startTime);
+	}
+
+	/**
+	 * @return true, if the user's stream is in the file
+	 */
+	public boolean contains(String name) {
+		return name.equals(user) || mixed && name.equals(peer);
+	}
+
+	/**
+	 * @return the file on this host, or null if the recording is not on a
+	 *         local (file:) uri or the uri is invalid (recordings of user names
+	 *         which were not encoded yet)
+	 */
+	public File getFile() {
+		if (uri == null || !uri.startsWith("file:")) {
+			return null;
+		}
+		try {
+			return new File(URI.create(uri));
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	public String getUser() {
+		return user;
+	}
+
+	public String getPeer() {
+		return peer;
+	}
+
+	public boolean isMixed() {
+		return mixed;
+	}
+
+	public String getProfile() {
+		return profile;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getDuration() {
+		return duration;
+	}
+
+	public void setDuration(long duration) {
+		this.duration = duration;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public boolean isDeleted() {
+		return deleted;
+	}
+
+	public void setDeleted(boolean deleted) {
+		this.deleted = deleted;
+	}
+
+	public String toString() {
+		return "recording " + id + " [" + user + (mixed ? " + " : " with ") + peer + "] " + uri;
+	}
+}
@@ -0,0 +1,243 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * All recordings written by the call pipelines. Every change (started,
+ * finished, deleted) is appended as a json line to the index file
+ * {@link Config#RECORDING_INDEX}, the last line of a recording wins when the
+ * index is loaded at startup. The index is compacted on load when most of it
+ * is history.
+ *
+ * Recordings are kept per user ordered by start time, so the recording of a
+ * user in a time range is found in O(log n).
+ */
+public class RecordingCatalog {
+
+	private static final Logger log = LoggerFactory.getLogger(RecordingCatalog.class);
+
+	private static final Gson gson = new GsonBuilder().create();
+
+	private final ConcurrentHashMap<String, Recording> recordingsById = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, NavigableSet<Recording>> recordingsByUser = new ConcurrentHashMap<>();
+
+	private final File indexFile;
+	private Writer index;
+
+	public RecordingCatalog(String indexPath) {
+		this.indexFile = new File(indexPath);
+		load();
+	}
+
+	/**
+	 * Registers a recording which starts now.
+	 */
+	public Recording started(String uri, String user, String peer, boolean mixed, String profile) {
+		Recording recording = new Recording(UUID.randomUUID().toString(), uri, user, peer, mixed, profile,
+				System.currentTimeMillis());
+		add(recording);
+		append(recording);
+		log.debug("{} started", recording);
+		return recording;
+	}
+
+	/**
+	 * Stores duration and file size of a stopped recording.
+	 */
+	public void finished(Recording recording) {
+		recording.setDuration(System.currentTimeMillis() - recording.getStartTime());
+		File file = recording.getFile();
+		if (file != null) {
+			recording.setSize(file.length());
+		}
+		append(recording);
+		log.debug("{} finished, {} ms, {} bytes", recording, recording.getDuration(), recording.getSize());
+	}
+
+	/**
+	 * Removes the recording from the catalog and writes a tombstone to the
+	 * index. The file itself is not touched.
+	 */
+	public void deleted(Recording recording) {
+		recording.setDeleted(true);
+		remove(recording);
+		append(recording);
+	}
+
+	public Recording get(String id) {
+		return recordingsById.get(id);
+	}
+
+	/**
+	 * @return the latest recording containing the user which started within
+	 *         the time range (inclusive), or null
+	 */
+	public Recording find(String user, long from, long to) {
+		NavigableSet<Recording> recordings = recordingsByUser.get(user);
+		if (recordings == null) {
+			return null;
+		}
+		Recording latest = recordings.floor(Recording.probe(to, false));
+		return latest != null && latest.getStartTime() >= from ? latest : null;
+	}
+
+	/**
+	 * @return the recordings containing the user which started within the
+	 *         time range (inclusive), oldest first
+	 */
+	public List<Recording> list(String user, long from, long to) {
+		NavigableSet<Recording> recordings = recordingsByUser.get(user);
+		if (recordings == null || from > to) {
+			return new ArrayList<Recording>();
+		}
+		return new ArrayList<Recording>(recordings.subSet(Recording.probe(from, true), true, Recording.probe(to, false), true));
+	}
+
+	public List<Recording> getRecordings() {
+		return new ArrayList<Recording>(recordingsById.values());
+	}
+
+	public int size() {
+		return recordingsById.size();
+	}
+
+	private void add(Recording recording) {
+		recordingsById.put(recording.getId(), recording);
+		index(recording.getUser(), recording);
+		if (recording.isMixed() && recording.getPeer() != null) {
+			index(recording.getPeer(), recording);
+		}
+	}
+
+	private void index(String user, Recording recording) {
+		NavigableSet<Recording> recordings = recordingsByUser.get(user);
+		if (recordings == null) {
+			NavigableSet<Recording> created = new ConcurrentSkipListSet<Recording>(Recording.BY_START_TIME);
+			recordings = recordingsByUser.putIfAbsent(user, created);
+			if (recordings == null) {
+				recordings = created;
+			}
+		}
+		recordings.add(recording);
+	}
+
+	private void remove(Recording recording) {
+		recordingsById.remove(recording.getId());
+		for (String user : new String[] { recording.getUser(), recording.getPeer() }) {
+			NavigableSet<Recording> recordings = user != null ? recordingsByUser.get(user) : null;
+			if (recordings != null) {
+				recordings.remove(recording);
+			}
+		}
+	}
+
+	private synchronized void append(Recording recording) {
+		if (index == null) {
+			return;
+		}
+		try {
+			index.write(gson.toJson(recording));
+			index.write('\n');
+			index.flush();
+		} catch (IOException e) {
+			log.error("writing recording index {} failed: {}", indexFile, e.getMessage());
+		}
+	}
+
+	/**
+	 * Replays the index, compacts it if less than half of its lines are
+	 * current and opens it for appending.
+	 */
+	private synchronized void load() {
+		int lines = 0;
+		if (indexFile.exists()) {
+			try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(indexFile), StandardCharsets.UTF_8))) {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					if (line.isEmpty()) {
+						continue;
+					}
+					lines++;
+					try {
+						Recording recording = gson.fromJson(line, Recording.class);
+						Recording previous = recordingsById.get(recording.getId());
+						if (previous != null) {
+							remove(previous);
+						}
+						if (!recording.isDeleted()) {
+							add(recording);
+						}
+					} catch (JsonParseException e) {
+						// a line cut off by a crash
+						log.warn("skipping broken line {} of recording index {}", lines, indexFile);
+					}
+				}
+			} catch (IOException e) {
+				log.error("reading recording index {} failed: {}", indexFile, e.getMessage());
+			}
+		}
+		log.info("loaded {} recordings from {} ({} lines)", recordingsById.size(), indexFile, lines);
+
+		try {
+			if (lines > 2 * recordingsById.size()) {
+				compact();
+			}
+			index = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(indexFile, true), StandardCharsets.UTF_8));
+		} catch (IOException e) {
+			log.error("cannot write recording index {}, recordings are not persisted: {}", indexFile, e.getMessage());
+		}
+	}
+
+	private void compact() throws IOException {
+		File compacted = new File(indexFile.getPath() + ".tmp");
+		try (Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(compacted), StandardCharsets.UTF_8))) {
+			for (Recording recording : recordingsById.values()) {
+				writer.write(gson.toJson(recording));
+				writer.write('\n');
+			}
+		}
+		if (!compacted.renameTo(indexFile)) {
+			throw new IOException("could not replace " + indexFile);
+		}
+		log.info("compacted recording index {}", indexFile);
+	}
+
+	/**
+	 * Closes the index file.
+	 */
+	public synchronized void close() {
+		if (index != null) {
+			try {
+				index.close();
+			} catch (IOException e) {
+				log.debug("closing recording index failed: {}", e.getMessage());
+			}
+			index = null;
+		}
+	}
+}
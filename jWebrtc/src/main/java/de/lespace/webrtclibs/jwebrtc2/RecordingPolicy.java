@@ -0,0 +1,105 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides whether a call is recorded, configured with
+ * {@link Config#RECORDING_RULES}. Rules are separated by ';' and checked in
+ * order, the first matching rule wins:
+ *
+ * <pre>
+ * record|skip user:&lt;name&gt;       one of the parties is the user
+ * record|skip pair:&lt;a&gt;,&lt;b&gt;      the two users, in either direction
+ * record|skip type:call|screen
+ * record|skip *
+ * </pre>
+ *
+ * E.g. "skip type:screen;record user:support;skip *" records only calls of
+ * the support user and no screen sharing. Calls matching no rule are
+ * recorded.
+ */
+public class RecordingPolicy {
+
+	private static final Logger log = LoggerFactory.getLogger(RecordingPolicy.class);
+
+	public enum CallType {
+		CALL, SCREEN
+	}
+
+	private static class Rule {
+		final boolean record;
+		final String kind;
+		final String value;
+
+		Rule(boolean record, String kind, String value) {
+			this.record = record;
+			this.kind = kind;
+			this.value = value;
+		}
+
+		boolean matches(String from, String to, CallType type) {
+			switch (kind) {
+			case "*":
+				return true;
+			case "user":
+				return value.equals(from) || value.equals(to);
+			case "pair":
+				String[] pair = value.split(",", 2);
+				return pair.length == 2 && (pair[0].equals(from) && pair[1].equals(to) || pair[0].equals(to) && pair[1].equals(from));
+			case "type":
+				return value.equalsIgnoreCase(type.name());
+			default:
+				return false;
+			}
+		}
+
+		@Override
+		public String toString() {
+			return (record ? "record " : "skip ") + kind + (value != null ? ":" + value : "");
+		}
+	}
+
+	private static final List<Rule> rules = parse(Config.RECORDING_RULES);
+
+	private static List<Rule> parse(String config) {
+		List<Rule> parsed = new ArrayList<Rule>();
+		for (String ruleConfig : config.split(";")) {
+			String[] parts = ruleConfig.trim().split("\\s+", 2);
+			if (parts[0].isEmpty()) {
+				continue;
+			}
+			if (parts.length < 2 || !(parts[0].equals("record") || parts[0].equals("skip"))) {
+				log.error("ignoring invalid recording rule '{}'", ruleConfig);
+				continue;
+			}
+			String matcher = parts[1].trim();
+			int colon = matcher.indexOf(':');
+			Rule rule = colon < 0 ? new Rule(parts[0].equals("record"), matcher, null)
+					: new Rule(parts[0].equals("record"), matcher.substring(0, colon), matcher.substring(colon + 1));
+			parsed.add(rule);
+		}
+		if (!parsed.isEmpty()) {
+			log.info("recording rules: {}", parsed);
+		}
+		return Collections.unmodifiableList(parsed);
+	}
+
+	public static boolean shouldRecord(String from, String to, CallType type) {
+		for (Rule rule : rules) {
+			if (rule.matches(from, to, type)) {
+				log.debug("{} from {} to {}: {}", type, from, to, rule);
+				return rule.record;
+			}
+		}
+		return true;
+	}
+}
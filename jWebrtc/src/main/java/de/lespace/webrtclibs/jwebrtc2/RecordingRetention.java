@@ -0,0 +1,242 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import java.io.File;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Deletes recordings every {@link Config#RECORDING_RETENTION_INTERVAL}
+ * seconds, oldest first, which are
+ *
+ * - older than {@link Config#RECORDING_MAX_AGE_DAYS}
+ * - beyond the quota of their user ({@link Config#RECORDING_USER_QUOTA_MB},
+ * {@link Config#RECORDING_USER_QUOTAS})
+ * - beyond {@link Config#RECORDING_TOTAL_QUOTA_MB}
+ * - needed to keep {@link Config#RECORDING_MIN_FREE_MB} free on the disk
+ *
+ * Recordings still being written are never touched. Deletions are paused by
+ * {@link Config#RECORDING_DELETE_PAUSE} ms each, so a large eviction does not
+ * compete with the recorders for the disk. A deleted recording gets a
+ * tombstone in the {@link RecordingCatalog}.
+ *
+ * Only recordings on a local (file:) uri can be deleted, i.e. the web
+ * application must run on the KMS host or share its recording directory.
+ */
+public class RecordingRetention implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(RecordingRetention.class);
+
+	private static final long MB = 1024 * 1024;
+
+	private final RecordingCatalog catalog;
+	private final File directory;
+	private final Map<String, Long> userQuotas = parseQuotas(Config.RECORDING_USER_QUOTAS);
+	private final ScheduledExecutorService executor = Executors
+			.newSingleThreadScheduledExecutor(HashedWheelTimer.daemonThreads("recording-retention"));
+
+	// metrics of the last run
+	private volatile long usedBytes;
+	private volatile int recordingCount;
+	private volatile long lastRun;
+	private final AtomicLong evictedRecordings = new AtomicLong();
+	private final AtomicLong evictedBytes = new AtomicLong();
+
+	public RecordingRetention(RecordingCatalog catalog) {
+		this.catalog = catalog;
+		this.directory = Config.RECORDING_DIR.startsWith("file:") ? new File(URI.create(Config.RECORDING_DIR)) : null;
+	}
+
+	public void start() {
+		executor.scheduleWithFixedDelay(this, 60, Config.RECORDING_RETENTION_INTERVAL, TimeUnit.SECONDS);
+	}
+
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	@Override
+	public void run() {
+		try {
+			evict();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RuntimeException e) {
+			log.error("recording retention failed: {}", e.getMessage(), e);
+		}
+	}
+
+	private void evict() throws InterruptedException {
+		long now = System.currentTimeMillis();
+		List<Recording> all = catalog.getRecordings();
+		Collections.sort(all, Recording.BY_START_TIME);
+
+		Map<Recording, Long> sizes = new HashMap<>();
+		Map<String, Long> usedByUser = new HashMap<>();
+		long used = 0;
+		for (Recording recording : all) {
+			long size;
+			try {
+				size = sizeOf(recording);
+			} catch (RuntimeException e) {
+				log.warn("cannot size {}: {}", recording, e.getMessage());
+				size = recording.getSize();
+			}
+			sizes.put(recording, size);
+			used += size;
+			Long userUsed = usedByUser.get(recording.getUser());
+			usedByUser.put(recording.getUser(), (userUsed != null ? userUsed : 0) + size);
+		}
+		usedBytes = used;
+		recordingCount = all.size();
+		lastRun = now;
+
+		// oldest first: expired, then over the user quota, then over the total quota or the free space
+		Set<Recording> evict = new LinkedHashSet<>();
+		long maxAge = TimeUnit.DAYS.toMillis(Config.RECORDING_MAX_AGE_DAYS);
+		for (Recording recording : all) {
+			if (maxAge > 0 && recording.getStartTime() < now - maxAge && isFinished(recording, now)) {
+				evict.add(recording);
+			}
+		}
+		for (Map.Entry<String, Long> user : usedByUser.entrySet()) {
+			long quota = quotaOf(user.getKey());
+			long userUsed = user.getValue();
+			for (Recording recording : all) {
+				if (quota <= 0 || userUsed <= quota) {
+					break;
+				}
+				if (user.getKey().equals(recording.getUser()) && isFinished(recording, now) && evict.add(recording)) {
+					userUsed -= sizes.get(recording);
+				}
+			}
+		}
+		long remaining = used;
+		for (Recording recording : evict) {
+			remaining -= sizes.get(recording);
+		}
+		long freed = used - remaining;
+		long totalQuota = Config.RECORDING_TOTAL_QUOTA_MB * MB;
+		long minFree = Config.RECORDING_MIN_FREE_MB * MB;
+		long free = directory != null && directory.isDirectory() ? directory.getUsableSpace() : Long.MAX_VALUE;
+		for (Recording recording : all) {
+			boolean overQuota = totalQuota > 0 && remaining > totalQuota;
+			boolean lowDisk = minFree > 0 && free != Long.MAX_VALUE && free + freed < minFree;
+			if (!overQuota && !lowDisk) {
+				break;
+			}
+			if (isFinished(recording, now) && evict.add(recording)) {
+				remaining -= sizes.get(recording);
+				freed += sizes.get(recording);
+			}
+		}
+
+		if (evict.isEmpty()) {
+			return;
+		}
+		log.info("evicting {} recordings, {} MB", evict.size(), freed / MB);
+		for (Recording recording : evict) {
+			boolean deleted;
+			try {
+				deleted = delete(recording);
+			} catch (RuntimeException e) {
+				log.warn("could not delete {}: {}", recording, e.getMessage());
+				deleted = false;
+			}
+			if (deleted) {
+				evictedRecordings.incrementAndGet();
+				evictedBytes.addAndGet(sizes.get(recording));
+				usedBytes -= sizes.get(recording);
+				recordingCount--;
+			}
+			Thread.sleep(Config.RECORDING_DELETE_PAUSE);
+		}
+	}
+
+	private boolean delete(Recording recording) {
+		File file = recording.getFile();
+		if (file == null) {
+			log.debug("{} is not a local file, not deleting it", recording);
+			return false;
+		}
+		if (file.exists() && !file.delete()) {
+			log.warn("could not delete {}", file);
+			return false;
+		}
+		catalog.deleted(recording);
+		log.debug("deleted {}", recording);
+		return true;
+	}
+
+	/**
+	 * @return false while the recorder may still write, recordings of a crashed
+	 *         server count as finished after the maximum call duration
+	 */
+	private static boolean isFinished(Recording recording, long now) {
+		return recording.getDuration() > 0
+				|| recording.getStartTime() < now - TimeUnit.SECONDS.toMillis(Config.MAX_CALL_DURATION + 60);
+	}
+
+	private static long sizeOf(Recording recording) {
+		File file = recording.getFile();
+		return file != null && file.isFile() ? file.length() : recording.getSize();
+	}
+
+	private long quotaOf(String user) {
+		Long quota = userQuotas.get(user);
+		return quota != null ? quota : Config.RECORDING_USER_QUOTA_MB * MB;
+	}
+
+	/**
+	 * Parses "user=MB,user=MB".
+	 */
+	private static Map<String, Long> parseQuotas(String config) {
+		Map<String, Long> quotas = new HashMap<>();
+		for (String entry : config.split(",")) {
+			String[] parts = entry.trim().split("=", 2);
+			if (parts[0].isEmpty()) {
+				continue;
+			}
+			try {
+				quotas.put(parts[0].trim(), Long.parseLong(parts[1].trim()) * MB);
+			} catch (ArrayIndexOutOfBoundsException | NumberFormatException e) {
+				log.error("ignoring invalid recording quota '{}'", entry);
+			}
+		}
+		return quotas;
+	}
+
+	/**
+	 * @return recordings and disk usage as of the last run, plus the
+	 *         evictions since the start
+	 */
+	public JsonObject getMetrics() {
+		JsonObject metrics = new JsonObject();
+		metrics.addProperty("recordings", recordingCount);
+		metrics.addProperty("usedBytes", usedBytes);
+		if (directory != null && directory.isDirectory()) {
+			metrics.addProperty("diskFreeBytes", directory.getUsableSpace());
+			metrics.addProperty("diskTotalBytes", directory.getTotalSpace());
+		}
+		metrics.addProperty("evictedRecordings", evictedRecordings.get());
+		metrics.addProperty("evictedBytes", evictedBytes.get());
+		metrics.addProperty("lastRun", lastRun);
+		return metrics;
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Serves recordings over http, so they can be watched without a KMS
+ * pipeline: GET/HEAD /recordings/{id}?expires=...&amp;sig=...
+ *
+ * Links are handed out over the websocket ('recordingUrl') to users who are
+ * in the recording and are signed with an HMAC, so the servlet only has to
+ * check the signature and the {@link RecordingCatalog}.
+ *
+ * Supports single byte ranges (seeking in the browser), ETag /
+ * Last-Modified conditional requests and If-Range. The file is handed to
+ * Tomcat's sendfile when available, otherwise streamed with
+ * FileChannel.transferTo.
+ */
+public class RecordingServlet extends HttpServlet {
+
+	private static final Logger log = LoggerFactory.getLogger(RecordingServlet.class);
+
+	private static final byte[] secret = Config.RECORDING_URL_SECRET.isEmpty() ? randomSecret()
+			: Config.RECORDING_URL_SECRET.getBytes(StandardCharsets.UTF_8);
+
+	/**
+	 * @return a signed link, relative to the web application, valid for
+	 *         {@link Config#RECORDING_URL_TTL} seconds
+	 */
+	public static String signedUrl(Recording recording) {
+		long expires = System.currentTimeMillis() / 1000 + Config.RECORDING_URL_TTL;
+		return "recordings/" + recording.getId() + "?expires=" + expires + "&sig=" + sign(recording.getId(), expires);
+	}
+
+	@Override
+	protected void doHead(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		serve(request, response, false);
+	}
+
+	@Override
+	protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		serve(request, response, true);
+	}
+
+	private void serve(HttpServletRequest request, HttpServletResponse response, boolean content) throws IOException {
+		String id = request.getPathInfo() != null ? request.getPathInfo().substring(1) : "";
+		// signature first, so unsigned requests cannot tell which recordings exist
+		if (!isAuthorized(id, request)) {
+			log.debug("refused recording {} to {}", id, request.getRemoteAddr());
+			response.sendError(HttpServletResponse.SC_FORBIDDEN);
+			return;
+		}
+		Recording recording = WebSocketServer.recordings.get(id);
+		File file = recording != null ? recording.getFile() : null;
+		if (file == null || !file.isFile()) {
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+			return;
+		}
+
+		long length = file.length();
+		long lastModified = file.lastModified();
+		String etag = "\"" + id + "-" + length + "-" + lastModified + "\"";
+
+		response.setHeader("ETag", etag);
+		response.setDateHeader("Last-Modified", lastModified);
+		response.setHeader("Accept-Ranges", "bytes");
+		response.setHeader("Cache-Control", "private");
+		response.setContentType(contentType(recording));
+
+		if (notModified(request, etag, lastModified)) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+
+		long start = 0;
+		long end = length - 1;
+		String range = request.getHeader("Range");
+		if (range != null && ifRangeMatches(request, etag, lastModified)) {
+			long[] parsed = parseRange(range, length);
+			if (parsed == null) {
+				response.setHeader("Content-Range", "bytes */" + length);
+				response.sendError(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+				return;
+			}
+			if (parsed.length == 2) {
+				start = parsed[0];
+				end = parsed[1];
+				response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+				response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + length);
+			}
+		}
+		long count = end - start + 1;
+		response.setHeader("Content-Length", String.valueOf(count));
+		if (!content || count <= 0) {
+			return;
+		}
+
+		if (Boolean.TRUE.equals(request.getAttribute("org.apache.tomcat.sendfile.support"))) {
+			// the connector writes the file from the kernel page cache
+			request.setAttribute("org.apache.tomcat.sendfile.filename", file.getCanonicalPath());
+			request.setAttribute("org.apache.tomcat.sendfile.start", start);
+			request.setAttribute("org.apache.tomcat.sendfile.end", end + 1);
+			return;
+		}
+
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			OutputStream out = response.getOutputStream();
+			WritableByteChannel target = Channels.newChannel(out);
+			long position = start;
+			while (count > 0) {
+				long sent = channel.transferTo(position, count, target);
+				if (sent <= 0) {
+					break; // file shrank meanwhile
+				}
+				position += sent;
+				count -= sent;
+			}
+			out.flush();
+		} catch (IOException e) {
+			// mostly the player closing the connection while seeking
+			log.debug("streaming recording {} aborted: {}", id, e.getMessage());
+		}
+	}
+
+	private static boolean isAuthorized(String id, HttpServletRequest request) {
+		String sig = request.getParameter("sig");
+		String expiresParam = request.getParameter("expires");
+		if (sig == null || expiresParam == null) {
+			return false;
+		}
+		long expires;
+		try {
+			expires = Long.parseLong(expiresParam);
+		} catch (NumberFormatException e) {
+			return false;
+		}
+		if (expires < System.currentTimeMillis() / 1000) {
+			return false;
+		}
+		return MessageDigest.isEqual(sign(id, expires).getBytes(StandardCharsets.UTF_8), sig.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static boolean notModified(HttpServletRequest request, String etag, long lastModified) {
+		String ifNoneMatch = request.getHeader("If-None-Match");
+		if (ifNoneMatch != null) {
+			return ifNoneMatch.equals("*") || ifNoneMatch.contains(etag);
+		}
+		long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+		return ifModifiedSince != -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+	}
+
+	/**
+	 * @return false, if If-Range names another version, the whole file is
+	 *         sent then
+	 */
+	private static boolean ifRangeMatches(HttpServletRequest request, String etag, long lastModified) {
+		String ifRange = request.getHeader("If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		if (ifRange.startsWith("\"")) {
+			return ifRange.equals(etag);
+		}
+		try {
+			return lastModified / 1000 <= request.getDateHeader("If-Range") / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Parses a single "bytes=" range.
+	 *
+	 * @return {start, end}, an empty array to send the whole file (multiple or
+	 *         foreign ranges) or null if the range cannot be satisfied
+	 */
+	private static long[] parseRange(String range, long length) {
+		if (!range.startsWith("bytes=") || range.indexOf(',') >= 0) {
+			return new long[0];
+		}
+		String spec = range.substring("bytes=".length()).trim();
+		int dash = spec.indexOf('-');
+		if (dash < 0) {
+			return new long[0];
+		}
+		try {
+			long start;
+			long end;
+			if (dash == 0) {
+				// suffix: the last n bytes
+				long suffix = Long.parseLong(spec.substring(1));
+				if (suffix <= 0) {
+					return null;
+				}
+				start = Math.max(0, length - suffix);
+				end = length - 1;
+			} else {
+				start = Long.parseLong(spec.substring(0, dash));
+				end = dash == spec.length() - 1 ? length - 1 : Math.min(Long.parseLong(spec.substring(dash + 1)), length - 1);
+			}
+			if (start >= length || start > end) {
+				return null;
+			}
+			return new long[] { start, end };
+		} catch (NumberFormatException e) {
+			return new long[0];
+		}
+	}
+
+	private static String contentType(Recording recording) {
+		String profile = recording.getProfile() != null ? recording.getProfile() : "WEBM";
+		String container = profile.startsWith("MP4") ? "mp4" : "webm";
+		return (profile.endsWith("AUDIO_ONLY") ? "audio/" : "video/") + container;
+	}
+
+	private static String sign(String id, long expires) {
+		try {
+			Mac mac = Mac.getInstance("HmacSHA256");
+			mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+			byte[] digest = mac.doFinal((id + ":" + expires).getBytes(StandardCharsets.UTF_8));
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException | InvalidKeyException e) {
+			throw new IllegalStateException("HmacSHA256 not available", e);
+		}
+	}
+
+	private static byte[] randomSecret() {
+		byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		return random;
+	}
+}
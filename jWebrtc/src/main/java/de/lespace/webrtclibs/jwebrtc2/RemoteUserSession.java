@@ -0,0 +1,38 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+
+/**
+ * A user connected to another node of the cluster, taking part in a call
+ * which lives on this node. Messages to the user are routed to its node by
+ * the {@link Cluster}, its messages arrive from there and are handled as if
+ * they came from a local websocket.
+ *
+ * The websocket session is a stand-in with the id "node/name", so the
+ * {@link CallRegistry} finds the call again for every proxy of the user.
+ */
+public class RemoteUserSession extends UserSession {
+
+	private final String node;
+	private final Cluster cluster;
+
+	public RemoteUserSession(String name, String node, Cluster cluster) {
+		super(StandInSession.create(node + "/" + name, true), name);
+		this.node = node;
+		this.cluster = cluster;
+	}
+
+	@Override
+	public void sendMessage(JsonObject message) {
+		cluster.deliver(node, getName(), message);
+	}
+
+	public String getNode() {
+		return node;
+	}
+}
@@ -5,28 +5,60 @@
  */
 package de.lespace.webrtclibs.jwebrtc2;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.websocket.Session;
+import org.kurento.client.EventListener;
 import org.kurento.client.MediaPipeline;
+import org.kurento.client.OnIceCandidateEvent;
 import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * Room!
+ * 
+ * One sender broadcasts to any number of receivers. All endpoints live in
+ * the room pipeline, the sender's endpoint is connected to each receiver
+ * endpoint. Receivers join and leave through the concurrent receiver map
+ * and never wait for the sender lock.
+ * 
+ * With {@link Config#ROOM_EDGE_KMS_URIS} set, receivers beyond
+ * {@link Config#ROOM_ORIGIN_MAX_RECEIVERS} are placed on {@link RoomEdge}s
+ * on further media servers, each edge takes up to
+ * {@link Config#ROOM_EDGE_MAX_RECEIVERS}. Edges are added as the audience
+ * grows and drained and released as it shrinks.
+ * 
  * @author Nico Krause (nico@le-space.de)
  */
     class Room {
 
+        private static final Logger log = LoggerFactory.getLogger(Room.class);
+
         public String roomName;
         public Sender sender;
-        public String senderSdpOffer;
-        public MediaPipeline pipeline;
-        public Map<String, Receiver> receivers;  
+        public volatile String senderSdpOffer;
+        public volatile MediaPipeline pipeline;
+        public ConcurrentHashMap<String, Receiver> receivers;  
+        // receivers connected directly to the sender endpoint
+        private final AtomicInteger originReceivers = new AtomicInteger();
+        private final List<RoomEdge> edges = new CopyOnWriteArrayList<RoomEdge>();
+        // client ids handed out by /join while nobody sends, only these may register as the sender
+        private final Set<String> issuedClientIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        // /join answers FULL beyond this many clients waiting to become the sender
+        static final int MAX_PENDING_SENDERS = 16;
+                
+        private final long createdAt = System.currentTimeMillis();
                 
         public Room(String roomName) {
             this.roomName = roomName;
             this.sender = new Sender();
-            this.receivers = new HashMap();
+            this.receivers = new ConcurrentHashMap<String, Receiver>();
         }
                     
         /**
@@ -86,19 +118,341 @@ import org.kurento.client.WebRtcEndpoint;
     }
     
     public Receiver getOrCreateReceiver(String sessionId, Session websocket, WebRtcEndpoint endpoint){
-        if(receivers.containsKey(sessionId)){
-            return receivers.get(sessionId);
-        }
-        else{
-                Receiver receiver = new Receiver();
-                receiver.websocket = websocket;
-                receiver.sessionId = sessionId;
-                receiver.endpoint = endpoint;
-                this.receivers.put(sessionId,receiver);
-                return receiver;
-        }
-        
-        
+        Receiver receiver = receivers.get(sessionId);
+        if(receiver != null){
+            return receiver;
+        }
+        receiver = new Receiver();
+        receiver.websocket = websocket;
+        receiver.sessionId = sessionId;
+        receiver.setEndpoint(endpoint);
+        Receiver existing = receivers.putIfAbsent(sessionId, receiver);
+        return existing != null ? existing : receiver;
+    }
+
+    public Receiver getReceiver(String sessionId) {
+        return receivers.get(sessionId);
+    }
+
+    public List<Receiver> getReceivers() {
+        return new ArrayList<Receiver>(receivers.values());
+    }
+
+    /**
+     * @return whether no sender registered within the given time after the
+     *         room was created
+     */
+    public boolean isUnclaimed(long now, long timeoutMillis) {
+        return sender.getSessionId() == null && now - createdAt > timeoutMillis;
+    }
+
+    /**
+     * Remembers a client id given out by /join, so it may register as the
+     * sender.
+     *
+     * @return false if too many clients are already waiting to send
+     */
+    public boolean issueClientId(String clientId) {
+        if (issuedClientIds.size() >= MAX_PENDING_SENDERS) {
+            return false;
+        }
+        issuedClientIds.add(clientId);
+        return true;
+    }
+
+    /**
+     * @return whether the client is the registered sender or, while nobody
+     *         is registered, was given its id by /join
+     */
+    public boolean isSenderClient(String clientId) {
+        if (clientId == null) {
+            return false;
+        }
+        String registered = sender.getClientId();
+        return registered != null ? registered.equals(clientId) : issuedClientIds.contains(clientId);
+    }
+
+    /**
+     * Binds the websocket of the sender, unless another open websocket is
+     * already sending or the client id was not issued by /join.
+     *
+     * @return false if the registration is refused
+     */
+    public boolean registerSender(Session websocket, String clientId) {
+        synchronized (sender) {
+            Session current = sender.getWebsocket();
+            if (current != null && current.isOpen() && !current.getId().equals(websocket.getId())) {
+                return false;
+            }
+            if (!issuedClientIds.contains(clientId) && !clientId.equals(sender.getClientId())) {
+                return false;
+            }
+            sender.setWebsocket(websocket);
+            sender.setClientId(clientId);
+            sender.setSessionId(websocket.getId());
+            issuedClientIds.clear();
+            return true;
+        }
+    }
+
+    public boolean isSender(String sessionId) {
+        return sessionId != null && sessionId.equals(sender.getSessionId());
+    }
+
+    /**
+     * Publishes the sender's stream. Receivers which are already in the room
+     * are connected to the new sender endpoint, a previous one is released.
+     * 
+     * @return the sdp answer for the sender
+     */
+    public String startSending(String sdpOffer, EventListener<OnIceCandidateEvent> candidateListener) {
+        synchronized (sender) {
+            WebRtcEndpoint endpoint = new WebRtcEndpoint.Builder(Utils.getPipeline(this)).build();
+            endpoint.addOnIceCandidateListener(candidateListener);
+            String sdpAnswer = endpoint.processOffer(sdpOffer);
+
+            WebRtcEndpoint previous = sender.setEndpoint(endpoint);
+            if (previous != null) {
+                previous.release();
+            }
+            for (Receiver receiver : receivers.values()) {
+                WebRtcEndpoint receiverEndpoint = receiver.getEndpoint();
+                if (receiverEndpoint != null && receiver.edge == null) {
+                    endpoint.connect(receiverEndpoint);
+                }
+            }
+            for (RoomEdge edge : edges) {
+                edge.relayFrom(endpoint);
+            }
+            endpoint.gatherCandidates();
+            log.info("room {}: sender {} is sending to {} receivers", roomName, sender.getSessionId(), receivers.size());
+            return sdpAnswer;
+        }
+    }
+
+    /**
+     * Connects a new receiver to the sender. Runs without the sender lock, so
+     * many receivers can join at the same time.
+     * 
+     * @return the sdp answer for the receiver
+     * @throws IllegalStateException if nobody is sending in this room
+     */
+    public String addReceiver(String sessionId, Session websocket, String sdpOffer, EventListener<OnIceCandidateEvent> candidateListener) {
+        WebRtcEndpoint senderEndpoint = sender.getEndpoint();
+        MediaPipeline roomPipeline = pipeline;
+        if (senderEndpoint == null || roomPipeline == null) {
+            throw new IllegalStateException("No Sending Endpoint");
+        }
+        Receiver receiver = getOrCreateReceiver(sessionId, websocket, null);
+
+        WebRtcEndpoint previous = receiver.setEndpoint(null);
+        if (previous != null) {
+            previous.release();
+            leavePlacement(receiver);
+        }
+        RoomEdge edge = place(roomPipeline, senderEndpoint);
+        receiver.edge = edge;
+
+        WebRtcEndpoint endpoint = null;
+        boolean attached = false;
+        String sdpAnswer;
+        try {
+            endpoint = new WebRtcEndpoint.Builder(edge != null ? edge.getPipeline() : roomPipeline).build();
+            endpoint.addOnIceCandidateListener(candidateListener);
+            sdpAnswer = endpoint.processOffer(sdpOffer);
+            receiver.setEndpoint(endpoint);
+            attached = true;
+
+            if (edge != null) {
+                edge.connect(endpoint);
+            } else {
+                senderEndpoint.connect(endpoint);
+                // the sender may have republished meanwhile and missed this receiver
+                WebRtcEndpoint currentSenderEndpoint = sender.getEndpoint();
+                if (currentSenderEndpoint != null && currentSenderEndpoint != senderEndpoint) {
+                    currentSenderEndpoint.connect(endpoint);
+                }
+            }
+            endpoint.gatherCandidates();
+        } catch (RuntimeException e) {
+            // a bad offer must neither leak the endpoint nor skew the placement counts;
+            // once attached, whoever takes the endpoint off the receiver cleans up
+            if (!attached || receiver.setEndpoint(null) == endpoint) {
+                if (endpoint != null) {
+                    try {
+                        endpoint.release();
+                    } catch (RuntimeException releaseFailed) {
+                        log.debug("room {}: releasing endpoint of {} failed: {}", roomName, sessionId, releaseFailed.getMessage());
+                    }
+                }
+                leavePlacement(receiver);
+            }
+            throw e;
+        }
+
+        if (receivers.get(sessionId) != receiver && receiver.setEndpoint(null) == endpoint) {
+            // left while joining
+            endpoint.release();
+            leavePlacement(receiver);
+        }
+        log.debug("room {}: receiver {} joined, {} receivers", roomName, sessionId, receivers.size());
+        return sdpAnswer;
+    }
+
+    /**
+     * Removes the receiver and releases its endpoint.
+     * 
+     * @return the receiver, or null if it was not in the room
+     */
+    public Receiver removeReceiver(String sessionId) {
+        Receiver receiver = receivers.remove(sessionId);
+        if (receiver != null) {
+            WebRtcEndpoint endpoint = receiver.setEndpoint(null);
+            if (endpoint != null) {
+                endpoint.release();
+                leavePlacement(receiver);
+            }
+            log.debug("room {}: receiver {} left, {} receivers", roomName, sessionId, receivers.size());
+        }
+        return receiver;
+    }
+
+    /**
+     * Picks where a new receiver goes: the room pipeline while it has room
+     * (or cascading is off), else the least loaded edge. A new edge is set up
+     * on the least loaded media server when all edges are full.
+     * 
+     * @return the edge, or null for the room pipeline
+     */
+    private RoomEdge place(MediaPipeline roomPipeline, WebRtcEndpoint senderEndpoint) {
+        if (KmsNode.getEdgeNodes().isEmpty()) {
+            originReceivers.incrementAndGet();
+            return null;
+        }
+        if (originReceivers.incrementAndGet() <= Config.ROOM_ORIGIN_MAX_RECEIVERS) {
+            return null;
+        }
+        originReceivers.decrementAndGet();
+
+        synchronized (edges) {
+            RoomEdge best = null;
+            for (RoomEdge edge : edges) {
+                if (!edge.isDraining() && (best == null || edge.getReceivers() < best.getReceivers())) {
+                    best = edge;
+                }
+            }
+            if (best == null || best.getReceivers() >= Config.ROOM_EDGE_MAX_RECEIVERS) {
+                RoomEdge added = addEdge(roomPipeline, senderEndpoint);
+                if (added != null) {
+                    best = added;
+                } else if (best == null) {
+                    // no further media server and no edge to overfill, stay on the origin
+                    originReceivers.incrementAndGet();
+                    return null;
+                }
+            }
+            best.receiverJoined();
+            return best;
+        }
+    }
+
+    /**
+     * Sets up an edge on the least loaded media server without an edge of this
+     * room. A draining edge is reused first.
+     * 
+     * @return the edge, or null if every media server already has one
+     */
+    private RoomEdge addEdge(MediaPipeline roomPipeline, WebRtcEndpoint senderEndpoint) {
+        for (RoomEdge edge : edges) {
+            if (edge.isDraining()) {
+                edge.setDraining(false);
+                log.info("room {}: reusing draining edge on {}", roomName, edge.getNode());
+                return edge;
+            }
+        }
+        KmsNode leastLoaded = null;
+        for (KmsNode node : KmsNode.getEdgeNodes()) {
+            boolean used = false;
+            for (RoomEdge edge : edges) {
+                used |= edge.getNode() == node;
+            }
+            if (!used && (leastLoaded == null || node.getReceivers() < leastLoaded.getReceivers())) {
+                leastLoaded = node;
+            }
+        }
+        if (leastLoaded == null) {
+            return null;
+        }
+        try {
+            RoomEdge edge = RoomEdge.create(leastLoaded, roomPipeline, senderEndpoint);
+            edges.add(edge);
+            log.info("room {}: added edge on {}, {} edges", roomName, leastLoaded, edges.size());
+            return edge;
+        } catch (RuntimeException e) {
+            log.error("room {}: could not set up an edge on {}: {}", roomName, leastLoaded, e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Takes the receiver off its edge resp. the room pipeline. An edge which
+     * falls below a quarter of its capacity is drained if the other edges can
+     * take its receivers, an empty draining edge is released.
+     */
+    private void leavePlacement(Receiver receiver) {
+        RoomEdge edge = receiver.edge;
+        receiver.edge = null;
+        if (edge == null) {
+            originReceivers.decrementAndGet();
+            return;
+        }
+        int left = edge.receiverLeft();
+        synchronized (edges) {
+            if (!edge.isDraining() && left < Config.ROOM_EDGE_MAX_RECEIVERS / 4) {
+                int freeElsewhere = Config.ROOM_ORIGIN_MAX_RECEIVERS - originReceivers.get();
+                for (RoomEdge other : edges) {
+                    if (other != edge && !other.isDraining()) {
+                        freeElsewhere += Config.ROOM_EDGE_MAX_RECEIVERS - other.getReceivers();
+                    }
+                }
+                if (freeElsewhere > left) {
+                    log.info("room {}: draining edge on {}", roomName, edge.getNode());
+                    edge.setDraining(true);
+                }
+            }
+            if (edge.isDraining() && edge.getReceivers() == 0 && edges.remove(edge)) {
+                edge.release();
+            }
+        }
+    }
+
+    /**
+     * Releases the pipeline with all endpoints of the room, including its
+     * edges.
+     */
+    public void close() {
+        synchronized (sender) {
+            sender.setEndpoint(null);
+            for (Receiver receiver : receivers.values()) {
+                if (receiver.edge != null) {
+                    receiver.edge.receiverLeft();
+                }
+            }
+            receivers.clear();
+            synchronized (edges) {
+                for (RoomEdge edge : edges) {
+                    edge.release();
+                }
+                edges.clear();
+            }
+            synchronized (this) {
+                if (pipeline != null) {
+                    pipeline.release();
+                    pipeline = null;
+                }
+            }
+        }
+        log.info("room {} closed", roomName);
     }
     
     }
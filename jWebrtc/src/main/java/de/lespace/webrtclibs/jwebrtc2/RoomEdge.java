@@ -0,0 +1,129 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Copy of a room on another media server. The sender's stream is relayed
+ * from the room pipeline to the edge pipeline over a pair of RtpEndpoints,
+ * receivers on the edge are connected to the edge side of that pair. The
+ * media servers have to reach each other over RTP (udp).
+ */
+class RoomEdge {
+
+	private static final Logger log = LoggerFactory.getLogger(RoomEdge.class);
+
+	private final KmsNode node;
+	private final MediaPipeline pipeline;
+	private final RtpEndpoint originSide;
+	private final RtpEndpoint edgeSide;
+	private final AtomicInteger receivers = new AtomicInteger();
+	private volatile boolean draining;
+
+	private RoomEdge(KmsNode node, MediaPipeline pipeline, RtpEndpoint originSide, RtpEndpoint edgeSide) {
+		this.node = node;
+		this.pipeline = pipeline;
+		this.originSide = originSide;
+		this.edgeSide = edgeSide;
+	}
+
+	/**
+	 * Creates the edge pipeline on the node and starts relaying the sender's
+	 * stream to it.
+	 * 
+	 * @param originPipeline
+	 *            the room pipeline holding the sender endpoint
+	 * @param senderEndpoint
+	 */
+	static RoomEdge create(KmsNode node, MediaPipeline originPipeline, WebRtcEndpoint senderEndpoint) {
+		MediaPipeline edgePipeline = node.getClient().createMediaPipeline();
+		RtpEndpoint originSide = null;
+		try {
+			RtpEndpoint edgeSide = new RtpEndpoint.Builder(edgePipeline).build();
+			originSide = new RtpEndpoint.Builder(originPipeline).build();
+
+			String sdpAnswer = edgeSide.processOffer(originSide.generateOffer());
+			originSide.processAnswer(sdpAnswer);
+			senderEndpoint.connect(originSide);
+
+			log.info("relaying room pipeline {} to edge {}", originPipeline.getId(), node);
+			return new RoomEdge(node, edgePipeline, originSide, edgeSide);
+		} catch (RuntimeException e) {
+			if (originSide != null) {
+				originSide.release();
+			}
+			edgePipeline.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Feeds a receiver endpoint (created in {@link #getPipeline()}) from the
+	 * relayed stream.
+	 */
+	public void connect(WebRtcEndpoint receiverEndpoint) {
+		edgeSide.connect(receiverEndpoint);
+	}
+
+	/**
+	 * Relays a new sender endpoint, after the sender republished.
+	 */
+	public void relayFrom(WebRtcEndpoint senderEndpoint) {
+		senderEndpoint.connect(originSide);
+	}
+
+	public MediaPipeline getPipeline() {
+		return pipeline;
+	}
+
+	public KmsNode getNode() {
+		return node;
+	}
+
+	public int getReceivers() {
+		return receivers.get();
+	}
+
+	public void receiverJoined() {
+		receivers.incrementAndGet();
+		node.receiverJoined();
+	}
+
+	/**
+	 * @return the receivers left on this edge
+	 */
+	public int receiverLeft() {
+		node.receiverLeft();
+		return receivers.decrementAndGet();
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * No new receivers are placed on a draining edge, it is released when the
+	 * last one left.
+	 */
+	public void setDraining(boolean draining) {
+		this.draining = draining;
+	}
+
+	/**
+	 * Stops the relay and releases the edge pipeline.
+	 */
+	public void release() {
+		originSide.release();
+		pipeline.release();
+		log.info("released edge on {}", node);
+	}
+}
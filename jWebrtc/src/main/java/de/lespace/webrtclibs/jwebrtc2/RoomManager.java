@@ -0,0 +1,95 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Broadcast rooms by name, plus the room each websocket session (sender or
+ * receiver) belongs to.
+ */
+class RoomManager {
+
+	private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+	private final ConcurrentHashMap<String, Room> roomsBySessionId = new ConcurrentHashMap<>();
+
+	private static final Logger log = LoggerFactory.getLogger(RoomManager.class);
+
+	private final AtomicLong lastSweep = new AtomicLong(System.currentTimeMillis());
+
+	public Room getOrCreate(String roomName) {
+		Room room = rooms.get(roomName);
+		if (room == null) {
+			Room created = new Room(roomName);
+			room = rooms.putIfAbsent(roomName, created);
+			if (room == null) {
+				log.info("room {} created", roomName);
+				room = created;
+			}
+		}
+		return room;
+	}
+
+	public Room get(String roomName) {
+		return rooms.get(roomName);
+	}
+
+	public Room getBySession(String sessionId) {
+		return roomsBySessionId.get(sessionId);
+	}
+
+	public void bind(String sessionId, Room room) {
+		roomsBySessionId.put(sessionId, room);
+	}
+
+	public Room unbind(String sessionId) {
+		return roomsBySessionId.remove(sessionId);
+	}
+
+	/**
+	 * Removes the room and all session bindings pointing to it.
+	 */
+	public void remove(Room room) {
+		rooms.remove(room.getRoomName(), room);
+		for (String sessionId : new ArrayList<String>(roomsBySessionId.keySet())) {
+			roomsBySessionId.remove(sessionId, room);
+		}
+	}
+
+	/**
+	 * Takes the rooms out whose sender never registered within
+	 * {@link Config#ROOM_UNCLAIMED_TIMEOUT}, at most every few seconds. Runs
+	 * on /join, the call which creates rooms.
+	 * 
+	 * @return the rooms taken out, for the caller to close
+	 */
+	public List<Room> removeUnclaimed() {
+		List<Room> expired = new ArrayList<Room>();
+		long now = System.currentTimeMillis();
+		long last = lastSweep.get();
+		if (now - last < TimeUnit.SECONDS.toMillis(5) || !lastSweep.compareAndSet(last, now)) {
+			return expired;
+		}
+		long timeout = TimeUnit.SECONDS.toMillis(Config.ROOM_UNCLAIMED_TIMEOUT);
+		for (Room room : rooms.values()) {
+			if (room.isUnclaimed(now, timeout) && rooms.remove(room.getRoomName(), room)) {
+				log.info("room {} dropped, no sender registered", room.getRoomName());
+				expired.add(room);
+			}
+		}
+		return expired;
+	}
+
+	public List<Room> getRooms() {
+		return new ArrayList<Room>(rooms.values());
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import java.io.IOException;
+import javax.websocket.OnClose;
+import javax.websocket.OnError;
+import javax.websocket.OnMessage;
+import javax.websocket.OnOpen;
+import javax.websocket.Session;
+import javax.websocket.server.ServerEndpoint;
+import org.kurento.client.EventListener;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.OnIceCandidateEvent;
+import org.kurento.jsonrpc.JsonUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Room broadcasting, the Java counterpart of the apprtcWs in the nodejs
+ * server. Accessed via ws://localhost:8080/jWebrtc/room
+ *
+ * The sender speaks the AppRTC collider protocol ('cmd': register / send),
+ * receivers use 'id' messages: startWebRtc, onIceCandidate and stop.
+ */
+@ServerEndpoint("/room")
+public class RoomWebSocketServer {
+
+	private static final Gson gson = new GsonBuilder().create();
+
+	static final RoomManager rooms = new RoomManager();
+
+	private static final Logger log = LoggerFactory.getLogger(RoomWebSocketServer.class);
+
+	@OnOpen
+	public void onOpen(Session session) {
+		log.debug("roomWs opened with sessionId {}", session.getId());
+	}
+
+	@OnError
+	public void onError(Session session, Throwable error) {
+		log.error("roomWs error [{}]: {}", session.getId(), error.getMessage(), error);
+		leave(session.getId());
+	}
+
+	@OnClose
+	public void onClose(Session session) {
+		log.info("roomWs closed connection [{}]", session.getId());
+		leave(session.getId());
+	}
+
+	@OnMessage
+	public void onMessage(String _message, Session session) {
+		log.debug("roomWs [{}] received message: {}", session.getId(), _message);
+		JsonObject jsonMessage = gson.fromJson(_message, JsonObject.class);
+
+		try {
+			if (jsonMessage.has("cmd")) {
+				switch (jsonMessage.get("cmd").getAsString()) {
+				case "register":
+					registerSender(session, jsonMessage);
+					break;
+				case "send":
+					Room room = rooms.getBySession(session.getId());
+					if (room == null || !room.isSender(session.getId())) {
+						sendError(session, "not registered");
+						break;
+					}
+					JsonElement msg = jsonMessage.get("msg");
+					// the collider protocol sends the message as a json string
+					handleSenderMessage(room, msg.isJsonPrimitive() ? gson.fromJson(msg.getAsString(), JsonObject.class) : msg.getAsJsonObject());
+					break;
+				default:
+					log.debug("roomWs unknown cmd {}", jsonMessage.get("cmd"));
+				}
+				return;
+			}
+
+			switch (jsonMessage.get("id").getAsString()) {
+			case "startWebRtc":
+				startReceiving(session, jsonMessage);
+				break;
+			case "onIceCandidate": {
+				Room room = rooms.get(jsonMessage.get("roomName").getAsString());
+				if (room == null) {
+					sendError(session, "Room not found");
+					break;
+				}
+				// candidates may arrive before startWebRtc, they are queued in the receiver
+				rooms.bind(session.getId(), room);
+				Receiver receiver = room.getOrCreateReceiver(session.getId(), session, null);
+				receiver.addCandidate(toIceCandidate(jsonMessage.get("candidate").getAsJsonObject()));
+				break;
+			}
+			case "stop":
+				leave(session.getId());
+				break;
+			default:
+				log.debug("roomWs unknown id {}", jsonMessage.get("id"));
+			}
+		} catch (RuntimeException e) {
+			log.error("roomWs [{}] failed to handle {}: {}", session.getId(), _message, e.getMessage(), e);
+			sendError(session, e.getMessage());
+		}
+	}
+
+	/**
+	 * The sender of the room connects its websocket, with the client id /join
+	 * gave it. An offer which came in before (via http) is answered now.
+	 */
+	private void registerSender(Session session, JsonObject jsonMessage) {
+		String roomName = jsonMessage.has("roomid") ? jsonMessage.get("roomid").getAsString() : "emptyID";
+		String clientId = jsonMessage.has("clientid") ? jsonMessage.get("clientid").getAsString() : "empty";
+
+		Room room = rooms.get(roomName);
+		if (room == null) {
+			sendError(session, "Room not found");
+			return;
+		}
+		if (!room.registerSender(session, clientId)) {
+			log.warn("room {}: refused sender registration of {} on session {}", roomName, clientId, session.getId());
+			sendError(session, "not the sender of this room");
+			return;
+		}
+		rooms.bind(session.getId(), room);
+		log.info("room {}: sender {} registered with session {}", roomName, clientId, session.getId());
+
+		String pendingOffer = room.getSenderSdpOffer();
+		if (pendingOffer != null) {
+			room.setSenderSdpOffer(null);
+			startSending(room, pendingOffer);
+		}
+	}
+
+	/**
+	 * Handles an AppRTC message (offer or candidate) of the sender, coming in
+	 * over the websocket or the /message http call.
+	 */
+	static void handleSenderMessage(Room room, JsonObject message) {
+		String type = message.has("type") ? message.get("type").getAsString() : "";
+		switch (type) {
+		case "candidate":
+			String sdpMid = message.has("id") ? message.get("id").getAsString() : "sdparta_0";
+			room.getSender().addCandidate(
+					new IceCandidate(message.get("candidate").getAsString(), sdpMid, message.get("label").getAsInt()));
+			break;
+		case "offer":
+			if (room.getSender().getWebsocket() != null) {
+				startSending(room, message.get("sdp").getAsString());
+			} else {
+				log.debug("room {}: no sender websocket yet, keeping the offer", room.getRoomName());
+				room.setSenderSdpOffer(message.get("sdp").getAsString());
+			}
+			break;
+		case "bye":
+			closeRoom(room);
+			break;
+		default:
+			log.debug("room {}: ignoring sender message {}", room.getRoomName(), message);
+		}
+	}
+
+	private static void startSending(Room room, String sdpOffer) {
+		final Session websocket = room.getSender().getWebsocket();
+		String sdpAnswer = room.startSending(sdpOffer, new EventListener<OnIceCandidateEvent>() {
+			@Override
+			public void onEvent(OnIceCandidateEvent event) {
+				IceCandidate candidate = event.getCandidate();
+				JsonObject msg = new JsonObject();
+				msg.addProperty("type", "candidate");
+				msg.addProperty("label", candidate.getSdpMLineIndex());
+				msg.addProperty("id", candidate.getSdpMid());
+				msg.addProperty("candidate", candidate.getCandidate());
+				sendColliderMessage(websocket, msg);
+			}
+		});
+
+		JsonObject msg = new JsonObject();
+		msg.addProperty("type", "answer");
+		msg.addProperty("sdp", sdpAnswer);
+		sendColliderMessage(websocket, msg);
+	}
+
+	private void startReceiving(final Session session, JsonObject jsonMessage) {
+		Room room = rooms.get(jsonMessage.get("roomName").getAsString());
+		if (room == null) {
+			sendError(session, "Room not found");
+			return;
+		}
+		rooms.bind(session.getId(), room);
+
+		String sdpAnswer = room.addReceiver(session.getId(), session, jsonMessage.get("sdpOffer").getAsString(),
+				new EventListener<OnIceCandidateEvent>() {
+					@Override
+					public void onEvent(OnIceCandidateEvent event) {
+						JsonObject response = new JsonObject();
+						response.addProperty("id", "iceCandidate");
+						response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
+						send(session, response);
+					}
+				});
+
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "startResponse");
+		response.addProperty("sdpAnswer", sdpAnswer);
+		send(session, response);
+	}
+
+	/**
+	 * A receiver leaves its room. If the sender leaves, the room is closed.
+	 */
+	static void leave(String sessionId) {
+		Room room = rooms.unbind(sessionId);
+		if (room == null) {
+			return;
+		}
+		if (room.isSender(sessionId)) {
+			closeRoom(room);
+		} else {
+			room.removeReceiver(sessionId);
+		}
+	}
+
+	/**
+	 * Ends the broadcast: receivers get a 'stopCommunication' and the room
+	 * pipeline is released.
+	 */
+	static void closeRoom(Room room) {
+		rooms.remove(room);
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "stopCommunication");
+		message.addProperty("message", "broadcast ended");
+		for (Receiver receiver : room.getReceivers()) {
+			send(receiver.websocket, message);
+		}
+		room.close();
+	}
+
+	private static IceCandidate toIceCandidate(JsonObject candidateJson) {
+		return new IceCandidate(candidateJson.get("candidate").getAsString(), candidateJson.get("sdpMid").getAsString(),
+				candidateJson.get("sdpMLineIndex").getAsInt());
+	}
+
+	private static void sendColliderMessage(Session session, JsonObject msg) {
+		JsonObject message = new JsonObject();
+		message.add("msg", msg);
+		message.addProperty("error", "");
+		send(session, message);
+	}
+
+	private static void sendError(Session session, String error) {
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "error");
+		message.addProperty("message", error);
+		send(session, message);
+	}
+
+	private static void send(Session session, JsonObject message) {
+		if (session == null || !session.isOpen()) {
+			return;
+		}
+		try {
+			synchronized (session) {
+				session.getBasicRemote().sendText(message.toString());
+			}
+		} catch (IOException | IllegalStateException e) {
+			log.debug("roomWs send to [{}] failed: {}", session.getId(), e.getMessage());
+		}
+	}
+}
@@ -5,8 +5,6 @@
  */
 package de.lespace.webrtclibs.jwebrtc2;
 
-import java.util.ArrayList;
-import java.util.List;
 import javax.websocket.Session;
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
@@ -17,11 +15,11 @@ import org.kurento.client.WebRtcEndpoint;
  */
 class Sender {
         
-        public String sessionId;
-        public String clientId;
-        public Session websocket; 
-        public WebRtcEndpoint endpoint; 
-        public List<IceCandidate> candidateQueue = new ArrayList();
+        public volatile String sessionId;
+        public volatile String clientId;
+        public volatile Session websocket; 
+        // the endpoint and the candidates which arrived before it
+        private final CandidateQueue candidates = new CandidateQueue();
         
         public Sender(){
             
@@ -72,28 +70,25 @@ class Sender {
          * @return the endpoint
          */
         public WebRtcEndpoint getEndpoint() {
-            return endpoint;
+            return candidates.getEndpoint();
         }
 
         /**
+         * Sets the endpoint and hands it the queued candidates.
+         *
          * @param endpoint the endpoint to set
+         * @return the previous endpoint, if any
          */
-        public void setEndpoint(WebRtcEndpoint endpoint) {
-            this.endpoint = endpoint;
+        public WebRtcEndpoint setEndpoint(WebRtcEndpoint endpoint) {
+            return candidates.setEndpoint(endpoint);
         }
 
         /**
-         * @return the candidateQueue
+         * Adds the candidate to the endpoint, or queues it until the endpoint exists.
+         * Duplicates are dropped.
          */
-        public List getCandidateQueue() {
-            return candidateQueue;
-        }
-
-        /**
-         * @param candidateQueue the candidateQueue to set
-         */
-        public void setCandidateQueue(List candidateQueue) {
-            this.candidateQueue = candidateQueue;
+        public void addCandidate(IceCandidate candidate) {
+            candidates.add(candidate);
         }
 
     }
@@ -0,0 +1,119 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * User sessions whose websocket went away in the middle of a call. They stay
+ * registered with their media for {@link Config#RESUME_GRACE_PERIOD}
+ * seconds, so a client switching networks can reconnect with its resume
+ * token and carry on with the same pipeline.
+ */
+public class SessionParking {
+
+	private static final Logger log = LoggerFactory.getLogger(SessionParking.class);
+
+	private final ConcurrentHashMap<String, Parked> parkedByToken = new ConcurrentHashMap<>();
+	private final HashedWheelTimer timer;
+
+	public interface ExpiryListener {
+		/**
+		 * Called once the grace period of a parked user ran out.
+		 */
+		void expired(UserSession user);
+	}
+
+	private static class Parked {
+		final UserSession user;
+		HashedWheelTimer.Timeout timeout;
+
+		Parked(UserSession user) {
+			this.user = user;
+		}
+	}
+
+	public SessionParking(HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * @return a fresh random resume token for the user
+	 */
+	public static String newToken() {
+		return UUID.randomUUID().toString();
+	}
+
+	/**
+	 * Parks the user until it resumes or the grace period expires.
+	 *
+	 * @return false, if the user has no resume token or parking is disabled
+	 */
+	public boolean park(final UserSession user, final ExpiryListener listener) {
+		return park(user, listener, Config.RESUME_GRACE_PERIOD);
+	}
+
+	/**
+	 * Like {@link #park(UserSession, ExpiryListener)} with a grace period
+	 * in seconds.
+	 */
+	public boolean park(final UserSession user, final ExpiryListener listener, int gracePeriod) {
+		final String token = user.getResumeToken();
+		if (token == null || gracePeriod <= 0) {
+			return false;
+		}
+		Parked parked = new Parked(user);
+		Parked existing = parkedByToken.putIfAbsent(token, parked);
+		if (existing != null) {
+			return true;
+		}
+		parked.timeout = timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				Parked expired = parkedByToken.get(token);
+				if (expired != null && parkedByToken.remove(token, expired)) {
+					log.info("resume grace period of {} expired", user.getName());
+					listener.expired(user);
+				}
+			}
+		}, gracePeriod, TimeUnit.SECONDS);
+		log.info("parked {} for {}s", user.getName(), gracePeriod);
+		return true;
+	}
+
+	public boolean isParked(UserSession user) {
+		String token = user.getResumeToken();
+		return token != null && parkedByToken.containsKey(token);
+	}
+
+	/**
+	 * Takes the parked user out of the parking, its grace period timeout is
+	 * cancelled.
+	 *
+	 * @return the parked user or null, if the token is unknown or expired
+	 */
+	public UserSession resume(String token) {
+		if (token == null) {
+			return null;
+		}
+		Parked parked = parkedByToken.remove(token);
+		if (parked == null) {
+			return null;
+		}
+		if (parked.timeout != null) {
+			parked.timeout.cancel();
+		}
+		return parked.user;
+	}
+
+	public int size() {
+		return parkedByToken.size();
+	}
+}
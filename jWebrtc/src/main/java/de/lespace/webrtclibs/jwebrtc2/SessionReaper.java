@@ -0,0 +1,102 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.CloseReason;
+import javax.websocket.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Pings every websocket session each {@link Config#HEARTBEAT_INTERVAL}
+ * seconds and cleans up sessions which did not answer (pong or any other
+ * message) within {@link Config#HEARTBEAT_TIMEOUT} seconds. Dead mobile
+ * connections are otherwise only noticed when a send fails.
+ */
+public class SessionReaper implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(SessionReaper.class);
+
+	private final UserRegistry registry;
+	private final SessionParking parking;
+	private final HashedWheelTimer timer;
+	private final WebSocketServer server;
+	private volatile boolean running;
+
+	public SessionReaper(UserRegistry registry, SessionParking parking, HashedWheelTimer timer, WebSocketServer server) {
+		this.registry = registry;
+		this.parking = parking;
+		this.timer = timer;
+		this.server = server;
+	}
+
+	public void start() {
+		running = true;
+		timer.newTimeout(this, Config.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+		log.info("pinging websocket sessions every {}s, reaping after {}s", Config.HEARTBEAT_INTERVAL, Config.HEARTBEAT_TIMEOUT);
+	}
+
+	public void stop() {
+		running = false;
+	}
+
+	@Override
+	public void run() {
+		if (!running) {
+			return;
+		}
+		try {
+			long now = System.currentTimeMillis();
+			long idleLimit = TimeUnit.SECONDS.toMillis(Config.HEARTBEAT_TIMEOUT);
+
+			for (UserSession user : registry.getUserSessions()) {
+				Session session = user.getSession();
+				if (parking.isParked(user)) {
+					continue;
+				} else if (!session.isOpen()) {
+					reap(user, "websocket closed without onClose");
+				} else if (now - user.getLastSeen() > idleLimit) {
+					reap(user, "no heartbeat for " + (now - user.getLastSeen()) / 1000 + "s");
+				} else {
+					ping(session);
+				}
+			}
+		} catch (Throwable t) {
+			log.error("heartbeat run failed: {}", t.getMessage(), t);
+		} finally {
+			if (running) {
+				timer.newTimeout(this, Config.HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	private void ping(Session session) {
+		ByteBuffer payload = ByteBuffer.allocate(8);
+		payload.putLong(0, System.currentTimeMillis());
+		try {
+			synchronized (session) {
+				session.getBasicRemote().sendPing(payload);
+			}
+		} catch (IOException | IllegalStateException e) {
+			log.debug("ping to session [{}] failed: {}", session.getId(), e.getMessage());
+		}
+	}
+
+	private void reap(UserSession user, String reason) {
+		Session session = user.getSession();
+		server.cleanupSession(session, reason);
+		if (session.isOpen()) {
+			try {
+				session.close(new CloseReason(CloseReason.CloseCodes.GOING_AWAY, reason));
+			} catch (IOException e) {
+				log.debug("closing session [{}] failed: {}", session.getId(), e.getMessage());
+			}
+		}
+	}
+}
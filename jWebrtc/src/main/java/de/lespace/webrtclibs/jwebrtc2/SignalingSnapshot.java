@@ -0,0 +1,122 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The signaling state in a file ({@link Config#SNAPSHOT_FILE}): registered
+ * users with their resume tokens, active calls with the ids of their media
+ * objects and the pipelines of rooms, conferences and playbacks. Written on
+ * shutdown and every {@link Config#SNAPSHOT_INTERVAL} seconds, so a restarted
+ * server can take its calls over from the media server and let the clients
+ * resume instead of registering again.
+ *
+ * The file is replaced atomically, a crash while writing keeps the previous
+ * checkpoint.
+ */
+public class SignalingSnapshot implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(SignalingSnapshot.class);
+
+	/**
+	 * Collects the state to write.
+	 */
+	public interface Source {
+		JsonObject capture();
+	}
+
+	private final File file;
+	private final HashedWheelTimer timer;
+	private final Source source;
+	private volatile boolean stopped;
+
+	public SignalingSnapshot(String path, HashedWheelTimer timer, Source source) {
+		this.file = path == null || path.isEmpty() ? null : new File(path);
+		this.timer = timer;
+		this.source = source;
+	}
+
+	public boolean isEnabled() {
+		return file != null;
+	}
+
+	/**
+	 * Starts the periodic checkpoints.
+	 */
+	public void start() {
+		if (isEnabled() && Config.SNAPSHOT_INTERVAL > 0) {
+			timer.newTimeout(this, Config.SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	public void stop() {
+		stopped = true;
+	}
+
+	@Override
+	public void run() {
+		if (stopped) {
+			return;
+		}
+		try {
+			write();
+		} finally {
+			if (!stopped) {
+				timer.newTimeout(this, Config.SNAPSHOT_INTERVAL, TimeUnit.SECONDS);
+			}
+		}
+	}
+
+	/**
+	 * @return true, if the snapshot was written
+	 */
+	public synchronized boolean write() {
+		if (!isEnabled()) {
+			return false;
+		}
+		File tmp = new File(file.getPath() + ".tmp");
+		try {
+			JsonObject state = source.capture();
+			try (Writer writer = Files.newBufferedWriter(tmp.toPath(), StandardCharsets.UTF_8)) {
+				writer.write(state.toString());
+			}
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			log.debug("wrote snapshot {}", file);
+			return true;
+		} catch (IOException | RuntimeException e) {
+			log.error("writing snapshot {} failed: {}", file, e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * @return the last snapshot, or null if there is none or it is unreadable
+	 */
+	public JsonObject read() {
+		if (!isEnabled() || !file.isFile()) {
+			return null;
+		}
+		try (Reader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+			return new JsonParser().parse(reader).getAsJsonObject();
+		} catch (IOException | JsonParseException | IllegalStateException e) {
+			log.error("reading snapshot {} failed: {}", file, e.getMessage());
+			return null;
+		}
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import javax.websocket.RemoteEndpoint;
+import javax.websocket.Session;
+
+/**
+ * Websocket session of a user without a websocket on this node: a user of
+ * another cluster node ({@link RemoteUserSession}) or a user restored from a
+ * {@link SignalingSnapshot} who did not resume yet. Only the id and the open
+ * state are available.
+ *
+ * The warm-up ({@link StartupWarmUp}) uses an open one which drops whatever is
+ * sent to it.
+ */
+final class StandInSession {
+
+	private StandInSession() {
+	}
+
+	static Session create(String id, boolean open) {
+		return create(id, open, null);
+	}
+
+	/**
+	 * @return an open session which accepts and drops text messages
+	 */
+	static Session discarding(String id) {
+		RemoteEndpoint.Basic remote = (RemoteEndpoint.Basic) Proxy.newProxyInstance(Session.class.getClassLoader(),
+				new Class<?>[] { RemoteEndpoint.Basic.class }, new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						default:
+							return null;
+						}
+					}
+				});
+		return create(id, true, remote);
+	}
+
+	private static Session create(final String id, final boolean open, final RemoteEndpoint.Basic remote) {
+		return (Session) Proxy.newProxyInstance(Session.class.getClassLoader(), new Class<?>[] { Session.class },
+				new InvocationHandler() {
+					@Override
+					public Object invoke(Object proxy, Method method, Object[] args) {
+						switch (method.getName()) {
+						case "getId":
+							return id;
+						case "isOpen":
+							return open;
+						case "getBasicRemote":
+							if (remote != null) {
+								return remote;
+							}
+							throw new UnsupportedOperationException("getBasicRemote on stand-in session " + id);
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "toString":
+							return "stand-in session " + id;
+						default:
+							throw new UnsupportedOperationException(method.getName() + " on stand-in session " + id);
+						}
+					}
+				});
+	}
+}
@@ -0,0 +1,166 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonParser;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import javax.websocket.Session;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Does the slow first-time work before the node takes traffic, instead of
+ * during the first call after a deploy:
+ *
+ * - connects to the media server and every room edge, and negotiates a test
+ *   pipeline on each of them (loads the codecs on KMS and the json-rpc
+ *   stack here), then releases it
+ * - builds the cached appConfig responses
+ * - runs sample messages through the parsing and dispatch of the websocket
+ *   endpoint, so the JIT has compiled them
+ *
+ * The health check reports the node as not ready until it is done. A media
+ * server which cannot be reached is tried again every
+ * {@link Config#WARMUP_RETRY_INTERVAL} seconds; after
+ * {@link Config#WARMUP_TIMEOUT} seconds the node becomes ready anyway.
+ */
+public class StartupWarmUp implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(StartupWarmUp.class);
+
+	private static final String[] SAMPLE_MESSAGES = { "{\"id\":\"appConfig\",\"type\":\"browser\"}",
+			"{\"id\":\"appConfig\",\"type\":\"android\"}", "{\"id\":\"warmUp\"}" };
+
+	private volatile boolean ready;
+	private volatile Thread thread;
+
+	/**
+	 * Runs the warm-up on its own thread, the deployment does not wait for it.
+	 */
+	public synchronized void start() {
+		if (Config.WARMUP_ITERATIONS <= 0) {
+			ready = true;
+			log.info("warm-up disabled, ready");
+			return;
+		}
+		thread = HashedWheelTimer.daemonThreads("warm-up").newThread(this);
+		thread.start();
+	}
+
+	/**
+	 * Stops a warm-up which is still waiting for a media server.
+	 */
+	public synchronized void stop() {
+		if (thread != null) {
+			thread.interrupt();
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	@Override
+	public void run() {
+		long start = System.currentTimeMillis();
+		long deadline = start + TimeUnit.SECONDS.toMillis(Config.WARMUP_TIMEOUT);
+		try {
+			List<String> pending = new ArrayList<String>();
+			pending.add(null);
+			for (KmsNode edge : KmsNode.getEdgeNodes()) {
+				pending.add(edge.getUri());
+			}
+			while (!pending.isEmpty()) {
+				for (String uri : new ArrayList<String>(pending)) {
+					if (warmUpMediaServer(uri)) {
+						pending.remove(uri);
+					}
+				}
+				if (pending.isEmpty() || System.currentTimeMillis() >= deadline) {
+					break;
+				}
+				Thread.sleep(TimeUnit.SECONDS.toMillis(Config.WARMUP_RETRY_INTERVAL));
+			}
+			if (!pending.isEmpty()) {
+				log.warn("media servers {} not reachable after {}s, ready without them", pending, Config.WARMUP_TIMEOUT);
+			}
+
+			WebSocketServer.appConfigPayload("browser");
+			WebSocketServer.appConfigPayload("");
+			warmUpDispatch();
+
+			ready = true;
+			log.info("warm-up done in {}ms, ready", System.currentTimeMillis() - start);
+		} catch (InterruptedException e) {
+			log.info("warm-up interrupted");
+		} catch (RuntimeException e) {
+			// a broken warm-up must not keep the node out of the load balancer
+			ready = true;
+			log.error("warm-up failed, ready anyway: {}", e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Negotiates a loopback between two endpoints of a test pipeline.
+	 *
+	 * @param uri
+	 *            a room edge, null for the media server of the calls
+	 * @return false, if the media server could not be reached
+	 */
+	private boolean warmUpMediaServer(String uri) {
+		MediaPipeline pipeline = null;
+		try {
+			KurentoClient client = uri == null ? Utils.kurentoClient() : edgeClient(uri);
+			long start = System.currentTimeMillis();
+			pipeline = client.createMediaPipeline();
+			WebRtcEndpoint offerer = new WebRtcEndpoint.Builder(pipeline).build();
+			WebRtcEndpoint answerer = new WebRtcEndpoint.Builder(pipeline).build();
+			offerer.connect(answerer);
+			offerer.processAnswer(answerer.processOffer(offerer.generateOffer()));
+			log.info("media server {} warmed up in {}ms", uri == null ? "of the calls" : uri, System.currentTimeMillis() - start);
+			return true;
+		} catch (RuntimeException e) {
+			log.warn("warming up media server {} failed: {}", uri == null ? "of the calls" : uri, e.getMessage());
+			return false;
+		} finally {
+			if (pipeline != null) {
+				try {
+					pipeline.release();
+				} catch (RuntimeException e) {
+					log.debug("releasing the warm-up pipeline failed: {}", e.getMessage());
+				}
+			}
+		}
+	}
+
+	private static KurentoClient edgeClient(String uri) {
+		for (KmsNode edge : KmsNode.getEdgeNodes()) {
+			if (edge.getUri().equals(uri)) {
+				return edge.getClient();
+			}
+		}
+		throw new IllegalArgumentException("unknown room edge " + uri);
+	}
+
+	/**
+	 * Sends the sample messages to an endpoint with a session nobody listens
+	 * to, past the rate limits. They neither register a user nor touch calls.
+	 */
+	private void warmUpDispatch() {
+		WebSocketServer endpoint = new WebSocketServer();
+		Session session = StandInSession.discarding("warm-up");
+		for (int i = 0; i < Config.WARMUP_ITERATIONS; i++) {
+			for (String message : SAMPLE_MESSAGES) {
+				endpoint.dispatch(new JsonParser().parse(message).getAsJsonObject(), session);
+			}
+		}
+	}
+}
@@ -0,0 +1,249 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.kurento.client.RTCInboundRTPStreamStats;
+import org.kurento.client.RTCOutboundRTPStreamStats;
+import org.kurento.client.Stats;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the media stats of both endpoints of every active call each
+ * {@link Config#STATS_INTERVAL} seconds into its {@link CallStats}. The
+ * samples of a round are spread at random over the interval, so the
+ * getStats requests do not hit the media server all at once.
+ *
+ * The stats of a call are kept {@link Config#STATS_RETENTION} seconds after
+ * it ended. The time getStats takes is tracked as well, it grows when the
+ * media server is overloaded.
+ */
+public class StatsCollector implements Runnable {
+
+	private static final Logger log = LoggerFactory.getLogger(StatsCollector.class);
+
+	private final CallRegistry calls;
+	private final ConcurrentHashMap<String, CallStats> stats = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService executor = Executors.newScheduledThreadPool(Config.STATS_THREADS,
+			HashedWheelTimer.daemonThreads("call-stats"));
+	private final Random random = new Random();
+
+	private final AtomicLong samples = new AtomicLong();
+	private final AtomicLong failedSamples = new AtomicLong();
+	// moving average of the getStats round trip of both endpoints, in microseconds
+	private volatile long sampleLatency;
+
+	public StatsCollector(CallRegistry calls) {
+		this.calls = calls;
+	}
+
+	public void start() {
+		if (Config.STATS_INTERVAL > 0) {
+			executor.scheduleWithFixedDelay(this, Config.STATS_INTERVAL, Config.STATS_INTERVAL, TimeUnit.SECONDS);
+		}
+	}
+
+	public void stop() {
+		executor.shutdownNow();
+	}
+
+	/**
+	 * Schedules the samples of one round and forgets calls which ended long
+	 * enough ago.
+	 */
+	@Override
+	public void run() {
+		long now = System.currentTimeMillis();
+		long intervalMillis = TimeUnit.SECONDS.toMillis(Config.STATS_INTERVAL);
+		try {
+			for (final Call call : calls.getCalls()) {
+				Call.State state = call.getState();
+				if (state != Call.State.ACTIVE && state != Call.State.SCREEN_SHARING) {
+					continue;
+				}
+				CallStats callStats = stats.get(call.getId());
+				if (callStats == null) {
+					CallStats created = new CallStats(call.getId(), call.getCaller().getName(), call.getCallee().getName(),
+							Config.STATS_SAMPLES);
+					callStats = stats.putIfAbsent(call.getId(), created);
+					if (callStats == null) {
+						callStats = created;
+					}
+				}
+				final CallStats target = callStats;
+				executor.schedule(new Runnable() {
+					@Override
+					public void run() {
+						sample(call, target);
+					}
+				}, random.nextInt((int) intervalMillis), TimeUnit.MILLISECONDS);
+			}
+
+			for (CallStats callStats : stats.values()) {
+				if (calls.getById(callStats.getCallId()) != null) {
+					continue;
+				}
+				if (callStats.getEndedAt() == 0) {
+					callStats.ended(now);
+				} else if (now - callStats.getEndedAt() > TimeUnit.SECONDS.toMillis(Config.STATS_RETENTION)) {
+					stats.remove(callStats.getCallId(), callStats);
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			log.debug("stats collector stopped");
+		} catch (RuntimeException e) {
+			log.error("scheduling stats samples failed: {}", e.getMessage(), e);
+		}
+	}
+
+	private void sample(Call call, CallStats target) {
+		CallMediaPipeline pipeline = call.getPipeline();
+		if (pipeline == null || calls.getById(call.getId()) != call) {
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			// getStats first, so the lock is not held while waiting for the media server
+			Map<String, Stats> callerStats = pipeline.getCallerWebRtcEp().getStats();
+			Map<String, Stats> calleeStats = pipeline.getCalleeWebRtcEp().getStats();
+			long latency = (System.nanoTime() - start) / 1000;
+			sampleLatency = sampleLatency == 0 ? latency : (sampleLatency * 7 + latency) / 8;
+
+			long now = System.currentTimeMillis();
+			synchronized (target) {
+				long interval = target.size() == 0 ? 0 : now - target.getLatestTime();
+				fill(target, false, interval, callerStats);
+				fill(target, true, interval, calleeStats);
+				target.record(now);
+			}
+			samples.incrementAndGet();
+		} catch (RuntimeException e) {
+			failedSamples.incrementAndGet();
+			log.debug("sampling stats of {} failed: {}", call, e.getMessage());
+		}
+	}
+
+	/**
+	 * Sums audio and video of one endpoint. Jitter and round trip time come
+	 * in seconds, the worse stream counts.
+	 */
+	private static void fill(CallStats target, boolean ofCallee, long interval, Map<String, Stats> endpointStats) {
+		long bytesIn = 0;
+		long bytesOut = 0;
+		long packetsReceived = 0;
+		long packetsLost = 0;
+		double jitter = 0;
+		double rtt = 0;
+		for (Stats stats : endpointStats.values()) {
+			if (stats instanceof RTCInboundRTPStreamStats) {
+				RTCInboundRTPStreamStats inbound = (RTCInboundRTPStreamStats) stats;
+				bytesIn += inbound.getBytesReceived();
+				packetsReceived += inbound.getPacketsReceived();
+				packetsLost += inbound.getPacketsLost();
+				jitter = Math.max(jitter, inbound.getJitter());
+			} else if (stats instanceof RTCOutboundRTPStreamStats) {
+				RTCOutboundRTPStreamStats outbound = (RTCOutboundRTPStreamStats) stats;
+				bytesOut += outbound.getBytesSent();
+				rtt = Math.max(rtt, outbound.getRoundTripTime());
+			}
+		}
+		target.fill(ofCallee, interval, bytesIn, bytesOut, packetsReceived, packetsLost, jitter * 1000, rtt * 1000);
+	}
+
+	/**
+	 * @return moving average of the time getStats of a call takes, in ms
+	 */
+	public double getSampleLatencyMillis() {
+		return sampleLatency / 1000.0;
+	}
+
+	/**
+	 * @return the stats of a running or recently ended call, or null
+	 */
+	public CallStats get(String callId) {
+		return stats.get(callId);
+	}
+
+	/**
+	 * @param user
+	 *            only calls of this user, null for all
+	 * @return the calls with their latest sample
+	 */
+	public JsonArray getCalls(String user) {
+		JsonArray result = new JsonArray();
+		for (CallStats callStats : stats.values()) {
+			if (user == null || user.equals(callStats.getCaller()) || user.equals(callStats.getCallee())) {
+				result.add(callStats.summaryJson());
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Aggregates the latest sample of every running call. A call is degraded
+	 * if one side loses at least {@link Config#STATS_DEGRADED_LOSS} per mille
+	 * of its packets or has a round trip time of at least
+	 * {@link Config#STATS_DEGRADED_RTT} ms.
+	 *
+	 * @return metrics for /admin/status
+	 */
+	public JsonObject getMetrics() {
+		int sampled = 0;
+		int degraded = 0;
+		long lossSum = 0;
+		int maxLoss = 0;
+		long jitterSum = 0;
+		long rttSum = 0;
+		int maxRtt = 0;
+		long inKbps = 0;
+		for (CallStats callStats : stats.values()) {
+			if (callStats.getEndedAt() > 0 || callStats.size() == 0) {
+				continue;
+			}
+			sampled++;
+			boolean bad = false;
+			for (boolean ofCallee : new boolean[] { false, true }) {
+				int loss = callStats.getLatest(ofCallee, CallStats.LOSS_PERMILLE);
+				int rtt = callStats.getLatest(ofCallee, CallStats.RTT_MS);
+				lossSum += loss;
+				maxLoss = Math.max(maxLoss, loss);
+				jitterSum += callStats.getLatest(ofCallee, CallStats.JITTER_MS);
+				rttSum += rtt;
+				maxRtt = Math.max(maxRtt, rtt);
+				inKbps += callStats.getLatest(ofCallee, CallStats.IN_KBPS);
+				bad |= loss >= Config.STATS_DEGRADED_LOSS || rtt >= Config.STATS_DEGRADED_RTT;
+			}
+			if (bad) {
+				degraded++;
+			}
+		}
+		JsonObject metrics = new JsonObject();
+		metrics.addProperty("sampledCalls", sampled);
+		metrics.addProperty("degradedCalls", degraded);
+		if (sampled > 0) {
+			metrics.addProperty("avgLossPermille", lossSum / (sampled * 2));
+			metrics.addProperty("maxLossPermille", maxLoss);
+			metrics.addProperty("avgJitterMs", jitterSum / (sampled * 2));
+			metrics.addProperty("avgRttMs", rttSum / (sampled * 2));
+			metrics.addProperty("maxRttMs", maxRtt);
+			metrics.addProperty("totalInKbps", inKbps);
+		}
+		metrics.addProperty("samples", samples.get());
+		metrics.addProperty("failedSamples", failedSamples.get());
+		metrics.addProperty("avgSampleLatencyMs", getSampleLatencyMillis());
+		return metrics;
+	}
+}
@@ -25,6 +25,9 @@ public class UserRegistry {
 
 	private ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<>();
 	private ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<>();
+	// stand-ins for users of other cluster nodes in a call on this node, see Cluster
+	private ConcurrentHashMap<String, UserSession> remoteUsersByName = new ConcurrentHashMap<>();
+	private ConcurrentHashMap<String, UserSession> remoteUsersBySessionId = new ConcurrentHashMap<>();
         
         private static final Logger log = LoggerFactory.getLogger(UserRegistry.class);
 	
@@ -45,10 +48,23 @@ public class UserRegistry {
             
 	}
 
+	/**
+	 * @return the user connected to this node, or the stand-in of a user of
+	 *         another node, or null
+	 */
 	public UserSession getByName(String name) {
+		UserSession user = usersByName.get(name);
+		return user != null ? user : remoteUsersByName.get(name);
+	}
+
+	public UserSession getLocalByName(String name) {
 		return usersByName.get(name);
 	}
 
+	public UserSession getRemoteByName(String name) {
+		return remoteUsersByName.get(name);
+	}
+
 	/**
 	 * Returns the user to whom the session belongs. If no user is found, null
 	 * is returned.
@@ -57,7 +73,27 @@ public class UserRegistry {
 	 * @return The corresponding user or null, if no such user is registered
 	 */
 	public UserSession getBySession(Session session) {
-		return usersBySessionId.get(session.getId());
+		UserSession user = usersBySessionId.get(session.getId());
+		return user != null ? user : remoteUsersBySessionId.get(session.getId());
+	}
+
+	/**
+	 * Registers the stand-in of a user of another node, replacing an older
+	 * one. Remote users are not part of {@link #getUserSessions()}.
+	 */
+	public void registerRemote(UserSession user) {
+		UserSession previous = remoteUsersByName.put(user.getName(), user);
+		if (previous != null && previous != user) {
+			remoteUsersBySessionId.remove(previous.getSessionId(), previous);
+		}
+		remoteUsersBySessionId.put(user.getSessionId(), user);
+	}
+
+	public void removeRemote(String name) {
+		UserSession user = remoteUsersByName.remove(name);
+		if (user != null) {
+			remoteUsersBySessionId.remove(user.getSessionId(), user);
+		}
 	}
 
 	public boolean exists(String name) {
@@ -73,6 +109,24 @@ public class UserRegistry {
 		return user;
 	}
 
+	/**
+	 * Moves a user over to a new websocket session. The anonymous user
+	 * created for the new session in onOpen is dropped.
+	 * 
+	 * @param user
+	 * @param session
+	 */
+	public void rebind(UserSession user, Session session) {
+		UserSession anonymous = usersBySessionId.remove(session.getId());
+		if (anonymous != null && anonymous != user) {
+			usersByName.remove(anonymous.getName(), anonymous);
+		}
+		usersBySessionId.remove(user.getSessionId(), user);
+		user.rebind(session);
+		usersBySessionId.put(session.getId(), user);
+		usersByName.put(user.getName(), user);
+	}
+
 	public List<String> getRegisteredUsers() {
 		return Collections.list(usersByName.keys());
 	}
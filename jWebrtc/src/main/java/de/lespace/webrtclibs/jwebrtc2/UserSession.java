@@ -9,6 +9,7 @@ package de.lespace.webrtclibs.jwebrtc2;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.kurento.client.IceCandidate;
 import org.kurento.client.WebRtcEndpoint;
@@ -31,17 +32,26 @@ public class UserSession {
   private static final Logger log = LoggerFactory.getLogger(UserSession.class);
 
   private final String name;
-  private final Session session;
-
-  private String sdpOffer;
-  private String sdpOfferScreen;
-  private String callingTo;
-  private String callingFrom;
-  private WebRtcEndpoint webRtcEndpoint;
-  private WebRtcEndpoint webRtcScreenEndpoint;
-  private final List<IceCandidate> candidateList = new ArrayList<IceCandidate>();
-  
-  private final List<IceCandidate> candidateListScreen = new ArrayList<IceCandidate>();
+  private volatile Session session;
+  private volatile String resumeToken;
+
+  // the endpoints of the call and screen streams, with the candidates which arrived before them
+  private final CandidateQueue candidates = new CandidateQueue();
+  private final CandidateQueue candidatesScreen = new CandidateQueue();
+
+  // candidates gathered by KMS, replayed to the client when it resumes on a new websocket
+  private final List<IceCandidate> localCandidates = new ArrayList<IceCandidate>();
+  private final List<IceCandidate> localCandidatesScreen = new ArrayList<IceCandidate>();
+
+  // transport addresses of the candidates trickled so far, see IceCandidatePolicy
+  private final IceCandidatePolicy.Seen remoteSeen = new IceCandidatePolicy.Seen();
+  private final IceCandidatePolicy.Seen remoteSeenScreen = new IceCandidatePolicy.Seen();
+  private final IceCandidatePolicy.Seen localSeen = new IceCandidatePolicy.Seen();
+  private final IceCandidatePolicy.Seen localSeenScreen = new IceCandidatePolicy.Seen();
+  private volatile boolean relayFirst;
+
+  private volatile long lastSeen = System.currentTimeMillis();
+  private final AtomicBoolean closed = new AtomicBoolean();
 
   public UserSession(Session session, String name) {
     this.session = session;
@@ -51,39 +61,24 @@ public class UserSession {
   public Session getSession() {
     return session;
   }
-  
-  public String getName() {
-    return name;
-  }
-
-  public String getSdpOffer() {
-    return sdpOffer;
-  }
 
-  public void setSdpOffer(String sdpOffer) {
-    this.sdpOffer = sdpOffer;
-  }
-  public String getSdpOfferScreen() {
-    return sdpOfferScreen;
-  }
-
-  public void setSdpOfferScreen(String sdpOffer) {
-    this.sdpOfferScreen = sdpOffer;
-  }
-  public String getCallingTo() {
-    return callingTo;
+  /**
+   * Moves the user over to the websocket of a resumed connection.
+   */
+  public void rebind(Session session) {
+    this.session = session;
   }
 
-  public void setCallingTo(String callingTo) {
-    this.callingTo = callingTo;
+  public String getResumeToken() {
+    return resumeToken;
   }
 
-  public String getCallingFrom() {
-    return callingFrom;
+  public void setResumeToken(String resumeToken) {
+    this.resumeToken = resumeToken;
   }
-
-  public void setCallingFrom(String callingFrom) {
-    this.callingFrom = callingFrom;
+  
+  public String getName() {
+    return name;
   }
 
   public void sendMessage(JsonObject message) throws IOException {
@@ -100,50 +95,110 @@ public class UserSession {
     return session.getId();
   }
 
-  public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
-    this.webRtcEndpoint = webRtcEndpoint;
+  /**
+   * Marks the client as alive (message or pong received).
+   */
+  public void touch() {
+    this.lastSeen = System.currentTimeMillis();
+  }
 
-    for (IceCandidate e : candidateList) {
-      this.webRtcEndpoint.addIceCandidate(e);
-    }
-    this.candidateList.clear();
+  public long getLastSeen() {
+    return lastSeen;
+  }
+
+  /**
+   * @return true only the first time, so the session is cleaned up once even
+   *         if onClose, onError and the reaper race
+   */
+  public boolean markClosed() {
+    return closed.compareAndSet(false, true);
+  }
+
+  public void setWebRtcEndpoint(WebRtcEndpoint webRtcEndpoint) {
+    candidates.setEndpoint(webRtcEndpoint);
   }
   
- public void setWebRtcScreenEndpoint(WebRtcEndpoint webRtcEndpoint) {
-    this.webRtcScreenEndpoint = webRtcEndpoint;
+  public WebRtcEndpoint getWebRtcEndpoint() {
+    return candidates.getEndpoint();
+  }
 
-    for (IceCandidate e : candidateListScreen) {
-      this.webRtcScreenEndpoint.addIceCandidate(e);
-    }
-    this.candidateListScreen.clear();
+  public void setWebRtcScreenEndpoint(WebRtcEndpoint webRtcEndpoint) {
+    candidatesScreen.setEndpoint(webRtcEndpoint);
   }
 
+  /**
+   * Adds the candidate to the endpoint, or queues it until the endpoint exists.
+   */
   public void addCandidate(IceCandidate candidate) {
-    if (this.webRtcEndpoint != null) {
-      this.webRtcEndpoint.addIceCandidate(candidate);
-    } else {
-      candidateList.add(candidate);
-    }
+    candidates.add(candidate);
   }
   
- public void addCandidateScreen(IceCandidate candidate) {
-    if (this.webRtcScreenEndpoint != null) {
-      this.webRtcScreenEndpoint.addIceCandidate(candidate);
-    } else {
-      candidateListScreen.add(candidate);
+  public void addCandidateScreen(IceCandidate candidate) {
+    candidatesScreen.add(candidate);
+  }
+
+  /**
+   * Runs a candidate of the client through the {@link IceCandidatePolicy}.
+   *
+   * @return the candidate to add to the endpoint, null if it is dropped
+   */
+  public IceCandidate filterRemoteCandidate(IceCandidate candidate, boolean screen) {
+    IceCandidatePolicy.Parsed parsed = IceCandidatePolicy.parse(candidate.getCandidate());
+    if (!relayFirst && IceCandidatePolicy.isRestrictive(parsed)) {
+      log.debug("{} is on a restrictive network, relay first", name);
+      relayFirst = true;
+    }
+    return IceCandidatePolicy.apply(candidate, parsed, screen ? remoteSeenScreen : remoteSeen, relayFirst);
+  }
+
+  /**
+   * Runs a candidate gathered by the media server through the
+   * {@link IceCandidatePolicy}.
+   *
+   * @return the candidate to send to the client, null if it is dropped
+   */
+  public IceCandidate filterLocalCandidate(IceCandidate candidate, boolean screen) {
+    return IceCandidatePolicy.apply(candidate, screen ? localSeenScreen : localSeen, relayFirst);
+  }
+
+  public void addLocalCandidate(IceCandidate candidate, boolean screen) {
+    List<IceCandidate> candidates = screen ? localCandidatesScreen : localCandidates;
+    synchronized (candidates) {
+      candidates.add(candidate);
+    }
+  }
+
+  public List<IceCandidate> getLocalCandidates(boolean screen) {
+    List<IceCandidate> candidates = screen ? localCandidatesScreen : localCandidates;
+    synchronized (candidates) {
+      return new ArrayList<IceCandidate>(candidates);
     }
   }
 
   public void clear() {
-    this.webRtcEndpoint = null;
-    this.webRtcScreenEndpoint = null;
-    this.candidateList.clear();
-    this.candidateListScreen.clear();
+    candidates.clear();
+    candidatesScreen.clear();
+    synchronized (localCandidates) {
+      localCandidates.clear();
+    }
+    synchronized (localCandidatesScreen) {
+      localCandidatesScreen.clear();
+    }
+    remoteSeen.clear();
+    remoteSeenScreen.clear();
+    localSeen.clear();
+    localSeenScreen.clear();
+    relayFirst = false;
   }
-  
-    public boolean isBusy() {
-            return this.webRtcEndpoint != null;
+
+  public void clearScreen() {
+    candidatesScreen.clear();
+    synchronized (localCandidatesScreen) {
+      localCandidatesScreen.clear();
     }
+    remoteSeenScreen.clear();
+    localSeenScreen.clear();
+  }
 
   
 }
@@ -9,6 +9,8 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
 import javax.servlet.http.HttpServletRequest;
 import org.kurento.client.KurentoClient;
 import org.kurento.client.MediaPipeline;
@@ -22,29 +24,58 @@ import org.slf4j.LoggerFactory;
 public class Utils {
     
      private static final Logger log = LoggerFactory.getLogger(Utils.class);
+    private static final KmsSupervisor kms = new KmsSupervisor(kmsUris());
+
+    /**
+     * @return the client of the media server, shared by all pipelines (one
+     *         websocket to the KMS instead of one per call), see
+     *         {@link KmsSupervisor}
+     */
     public static KurentoClient kurentoClient() {
-        
-      String kmsURL =  System.getProperty("DEFAULT_KMS_WS_URI");
-      
-      if(kmsURL==null || kmsURL.equals("")){
-           kmsURL = Config.DEFAULT_KMS_WS_URI;
-      }
-      log.debug("using kms.url:",kmsURL); 
-      
-      return KurentoClient.create(System.getProperty("kms.url", kmsURL));
+        return kms.getClient();
+    }
+
+    public static KmsSupervisor kmsSupervisor() {
+        return kms;
+    }
+
+    /**
+     * @return {@link Config#KMS_URIS}, or the single server of
+     *         DEFAULT_KMS_WS_URI / kms.url
+     */
+    private static List<String> kmsUris() {
+        List<String> uris = new ArrayList<String>();
+        for (String uri : Config.KMS_URIS.split(",")) {
+            if (!uri.trim().isEmpty()) {
+                uris.add(uri.trim());
+            }
+        }
+        if (uris.isEmpty()) {
+            String kmsURL =  System.getProperty("DEFAULT_KMS_WS_URI");
+
+            if(kmsURL==null || kmsURL.equals("")){
+                 kmsURL = Config.DEFAULT_KMS_WS_URI;
+            }
+            kmsURL = System.getProperty("kms.url", kmsURL);
+            uris.add(kmsURL);
+        }
+        log.debug("using kms: {}", uris);
+        return uris;
     }
     
     public static MediaPipeline getPipeline(Room room){
         if(room == null || room.equals("")) throw new IllegalArgumentException("room is null");
         
-        if(room.getPipeline() != null){
-            log.debug("returning saved pipeline");
-            return room.getPipeline();
+        synchronized (room) {
+            if(room.getPipeline() != null){
+                log.debug("returning saved pipeline");
+                return room.getPipeline();
+            }
+
+            log.debug("creating new pipeline to kurento server: ");
+            room.pipeline = kurentoClient().createMediaPipeline();
+            return room.pipeline; 
         }
-        
-        log.debug("creating new pipeline to kurento server: ");
-        room.pipeline = kurentoClient().createMediaPipeline();
-        return room.pipeline; 
     }
     public static String getBody(HttpServletRequest request) throws IOException {
 
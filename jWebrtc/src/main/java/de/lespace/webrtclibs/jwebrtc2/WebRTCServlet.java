@@ -0,0 +1,283 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.AsyncContext;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * AppRTC room api, the Java counterpart of the express routes of the nodejs
+ * server:
+ *
+ * /join/{room} - joins (creates) a room, answers the AppRTC client parameters
+ * /leave/{room}/{clientId} - the sender leaves, the room is closed
+ * /message/{room}/{clientId} - offer or candidate of the sender, refused
+ *     (403) from any other client
+ *
+ * A room whose sender does not register within
+ * {@link Config#ROOM_UNCLAIMED_TIMEOUT} seconds is dropped again.
+ * /turn - turn server configuration
+ * /r/{room} - room link, redirects to the web client
+ *
+ * Requests are handled asynchronously: the body is read with a
+ * {@link ReadListener} and the room work (which talks to KMS) runs on a
+ * bounded pool, so container threads are not held. When the pool is
+ * saturated requests are answered with 503 and a Retry-After.
+ */
+public class WebRTCServlet extends HttpServlet {
+
+	private static final Logger log = LoggerFactory.getLogger(WebRTCServlet.class);
+
+	private static final Gson gson = new GsonBuilder().create();
+
+	// AppRTC bodies are an sdp or a candidate, anything bigger is refused
+	private static final int MAX_BODY_SIZE = 64 * 1024;
+
+	private ThreadPoolExecutor executor;
+
+	@Override
+	public void init() throws ServletException {
+		executor = new ThreadPoolExecutor(Config.ROOM_HTTP_THREADS, Config.ROOM_HTTP_THREADS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(Config.ROOM_HTTP_QUEUE), HashedWheelTimer.daemonThreads("room-http"));
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	public void destroy() {
+		executor.shutdown();
+	}
+
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		final AsyncContext async = request.startAsync();
+		async.setTimeout(TimeUnit.SECONDS.toMillis(30));
+
+		final ServletInputStream input = request.getInputStream();
+		input.setReadListener(new BodyReader(async, input));
+	}
+
+	/**
+	 * Collects the request body without blocking and hands the request to
+	 * the pool when it is complete.
+	 */
+	private class BodyReader implements ReadListener {
+
+		private final AsyncContext async;
+		private final ServletInputStream input;
+		private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+		private final byte[] buffer = new byte[4096];
+		private boolean failed;
+
+		BodyReader(AsyncContext async, ServletInputStream input) {
+			this.async = async;
+			this.input = input;
+		}
+
+		@Override
+		public void onDataAvailable() throws IOException {
+			int read;
+			while (!failed && input.isReady() && (read = input.read(buffer)) != -1) {
+				body.write(buffer, 0, read);
+				if (body.size() > MAX_BODY_SIZE) {
+					fail(HttpServletResponse.SC_REQUEST_ENTITY_TOO_LARGE);
+					return;
+				}
+			}
+		}
+
+		@Override
+		public void onAllDataRead() throws IOException {
+			if (failed) {
+				return;
+			}
+			final String content = new String(body.toByteArray(), StandardCharsets.UTF_8);
+			try {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							handle((HttpServletRequest) async.getRequest(), (HttpServletResponse) async.getResponse(), content);
+						} catch (Exception e) {
+							log.error("room request failed: {}", e.getMessage(), e);
+							sendResult((HttpServletResponse) async.getResponse(), "ERROR", e.getMessage());
+						} finally {
+							async.complete();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				log.warn("room request queue full, refusing {}", ((HttpServletRequest) async.getRequest()).getRequestURI());
+				((HttpServletResponse) async.getResponse()).setHeader("Retry-After", "1");
+				fail(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+			}
+		}
+
+		@Override
+		public void onError(Throwable t) {
+			log.debug("reading room request failed: {}", t.getMessage());
+			async.complete();
+		}
+
+		private void fail(int status) {
+			failed = true;
+			((HttpServletResponse) async.getResponse()).setStatus(status);
+			async.complete();
+		}
+	}
+
+	private void handle(HttpServletRequest request, HttpServletResponse response, String body) throws IOException {
+		String[] path = pathParams(request);
+		log.debug("{} {} called: {}", request.getServletPath(), request.getPathInfo(), body);
+
+		switch (request.getServletPath()) {
+		case "/join":
+			join(request, response, path.length > 0 ? path[0] : "empty");
+			break;
+		case "/leave":
+			leave(response, path.length > 0 ? path[0] : "empty", path.length > 1 ? path[1] : "emptyID");
+			break;
+		case "/message":
+			message(response, path.length > 0 ? path[0] : "empty", path.length > 1 ? path[1] : "emptyID", body);
+			break;
+		case "/turn":
+			turn(response);
+			break;
+		case "/r":
+			response.sendRedirect(request.getContextPath() + "/?room=" + (path.length > 0 ? path[0] : ""));
+			break;
+		default:
+			response.sendError(HttpServletResponse.SC_NOT_FOUND);
+		}
+	}
+
+	private void join(HttpServletRequest request, HttpServletResponse response, String roomName) throws IOException {
+		for (Room unclaimed : RoomWebSocketServer.rooms.removeUnclaimed()) {
+			RoomWebSocketServer.closeRoom(unclaimed);
+		}
+		Room room = RoomWebSocketServer.rooms.getOrCreate(roomName);
+		String clientId = UUID.randomUUID().toString().substring(0, 8);
+		boolean initiator = room.getSender().getSessionId() == null;
+		if (initiator && !room.issueClientId(clientId)) {
+			JsonObject result = new JsonObject();
+			result.addProperty("result", "FULL");
+			sendJson(response, result);
+			return;
+		}
+
+		String host = request.getServerName() + ":" + request.getServerPort() + request.getContextPath();
+		String scheme = request.isSecure() ? "https" : "http";
+		String wsScheme = request.isSecure() ? "wss" : "ws";
+
+		JsonObject params = new JsonObject();
+		params.addProperty("is_initiator", String.valueOf(initiator));
+		params.addProperty("room_link", scheme + "://" + host + "/r/" + roomName);
+		params.add("messages", new JsonArray());
+		params.add("error_messages", new JsonArray());
+		params.addProperty("client_id", clientId);
+		params.addProperty("bypass_join_confirmation", "false");
+		params.addProperty("media_constraints", "{\"audio\": true, \"video\": true}");
+		params.addProperty("include_loopback_js", "");
+		params.addProperty("turn_url", scheme + "://" + host + "/turn");
+		params.addProperty("is_loopback", "false");
+		params.addProperty("wss_url", wsScheme + "://" + host + "/room");
+		params.addProperty("pc_constraints", "{\"optional\": []}");
+		params.addProperty("pc_config", "{\"rtcpMuxPolicy\": \"require\", \"bundlePolicy\": \"max-bundle\", \"iceServers\": []}");
+		params.addProperty("wss_post_url", scheme + "://" + host);
+		params.addProperty("offer_options", "{}");
+		params.add("warning_messages", new JsonArray());
+		params.addProperty("room_id", roomName);
+		params.addProperty("turn_transports", "");
+
+		JsonObject result = new JsonObject();
+		result.add("params", params);
+		result.addProperty("result", "SUCCESS");
+		sendJson(response, result);
+	}
+
+	private void leave(HttpServletResponse response, String roomName, String clientId) throws IOException {
+		Room room = RoomWebSocketServer.rooms.get(roomName);
+		if (room != null && clientId.equals(room.getSender().getClientId())) {
+			RoomWebSocketServer.closeRoom(room);
+		}
+		sendResult(response, "SUCCESS", null);
+	}
+
+	private void message(HttpServletResponse response, String roomName, String clientId, String body) throws IOException {
+		Room room = RoomWebSocketServer.rooms.get(roomName);
+		if (room == null) {
+			sendResult(response, "ERROR", "Room not found");
+			return;
+		}
+		if (!room.isSenderClient(clientId)) {
+			log.warn("room {}: refused message of {}, not the sender", roomName, clientId);
+			response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+			sendResult(response, "ERROR", "not the sender of this room");
+			return;
+		}
+		RoomWebSocketServer.handleSenderMessage(room, gson.fromJson(body, JsonObject.class));
+		sendResult(response, "SUCCESS", null);
+	}
+
+	private void turn(HttpServletResponse response) throws IOException {
+		String turnUrl = System.getProperty("TURN_URL");
+		if (turnUrl == null || turnUrl.equals("")) turnUrl = "turn:5.9.154.226:3478";
+
+		JsonArray uris = new JsonArray();
+		uris.add(gson.toJsonTree(turnUrl));
+
+		JsonObject turn = new JsonObject();
+		turn.addProperty("username", System.getProperty("TURN_USERNAME", ""));
+		turn.addProperty("password", System.getProperty("TURN_PASSWORD", ""));
+		turn.add("uris", uris);
+		sendJson(response, turn);
+	}
+
+	private static String[] pathParams(HttpServletRequest request) {
+		String pathInfo = request.getPathInfo();
+		if (pathInfo == null || pathInfo.equals("/")) {
+			return new String[0];
+		}
+		return pathInfo.substring(1).split("/");
+	}
+
+	private static void sendResult(HttpServletResponse response, String result, String error) {
+		JsonObject json = new JsonObject();
+		json.addProperty("result", result);
+		if (error != null) {
+			json.addProperty("error", error);
+		}
+		try {
+			sendJson(response, json);
+		} catch (IOException e) {
+			log.debug("sending room response failed: {}", e.getMessage());
+		}
+	}
+
+	private static void sendJson(HttpServletResponse response, JsonObject json) throws IOException {
+		response.setContentType("application/json");
+		response.setCharacterEncoding("UTF-8");
+		response.getWriter().write(json.toString());
+	}
+}
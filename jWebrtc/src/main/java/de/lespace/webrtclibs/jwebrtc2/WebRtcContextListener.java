@@ -0,0 +1,66 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package de.lespace.webrtclibs.jwebrtc2;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lifecycle of the web application.
+ *
+ * On start the snapshot of the last run is restored and the warm-up
+ * ({@link StartupWarmUp}) begins, the node reports ready when it is done.
+ *
+ * With a {@link SignalingSnapshot} configured, undeploy writes the snapshot
+ * and leaves the calls running on the media server, the next start takes
+ * them over (warm restart). Otherwise, or if a drain was requested, running
+ * calls get {@link Config#SHUTDOWN_DRAIN_TIMEOUT} seconds to finish (or the
+ * rest of the running drain) and the remaining ones are hung up cleanly
+ * before the container goes away.
+ */
+public class WebRtcContextListener implements ServletContextListener {
+
+	private static final Logger log = LoggerFactory.getLogger(WebRtcContextListener.class);
+
+	@Override
+	public void contextInitialized(ServletContextEvent sce) {
+		try {
+			WebSocketServer.restore();
+		} catch (RuntimeException e) {
+			log.error("restoring the snapshot failed, starting empty: {}", e.getMessage(), e);
+		}
+		WebSocketServer.warmUp.start();
+		log.info("jWebrtc started");
+	}
+
+	@Override
+	public void contextDestroyed(ServletContextEvent sce) {
+		DrainMode drain = WebSocketServer.drain;
+		if (!drain.isDraining() && WebSocketServer.snapshot.write()) {
+			log.info("snapshot written, {} calls keep running for the next start", drain.getRemainingCalls());
+			WebSocketServer.shutdown();
+			log.info("jWebrtc stopped");
+			return;
+		}
+		if (!drain.isDraining()) {
+			drain.start(Config.SHUTDOWN_DRAIN_TIMEOUT);
+		}
+		try {
+			if (!drain.awaitDrained()) {
+				log.info("{} calls still running at shutdown, hanging up", drain.getRemainingCalls());
+				new WebSocketServer().hangUpAllCalls("server is shutting down");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		// replaces the last checkpoint, whose calls are gone now
+		WebSocketServer.snapshot.write();
+		WebSocketServer.shutdown();
+		log.info("jWebrtc stopped");
+	}
+}
@@ -4,20 +4,28 @@ import javax.websocket.OnClose;
 import javax.websocket.OnError;
 import javax.websocket.OnMessage;
 import javax.websocket.OnOpen;
+import javax.websocket.PongMessage;
 import javax.websocket.Session;
 import javax.websocket.server.ServerEndpoint;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
 import java.io.IOException;
-import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import org.kurento.client.EndOfStreamEvent;
 import org.kurento.client.EventListener;
 import org.kurento.client.IceCandidate;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaFlowInStateChangeEvent;
+import org.kurento.client.MediaFlowState;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.OnIceCandidateEvent;
 import org.kurento.jsonrpc.JsonUtils;
@@ -36,10 +44,99 @@ public class WebSocketServer {
 
 	private static final Gson gson = new GsonBuilder().create();
 	
-        private static final ConcurrentHashMap<String, MediaPipeline> pipelines = new ConcurrentHashMap<String, MediaPipeline>();
-	
         public static UserRegistry registry = new UserRegistry();
 	
+        // presence of users on the other signaling nodes and routing of their call messages
+        public static final Cluster cluster = Cluster.create(registry);
+	
+        public static CallRegistry calls = new CallRegistry();
+	
+        // every file written by the call pipelines, used to find recordings for playback
+        public static final RecordingCatalog recordings = new RecordingCatalog(Config.RECORDING_INDEX);
+        
+        // deletes old recordings and keeps the disk below its quotas
+        public static final RecordingRetention retention = new RecordingRetention(recordings);
+	
+        // media quality of the running calls, sampled from KMS
+        public static final StatsCollector stats = new StatsCollector(calls);
+	
+        // conferences by room name and by websocket session id of their participants
+        private static final ConcurrentHashMap<String, Conference> conferences = new ConcurrentHashMap<String, Conference>();
+        private static final ConcurrentHashMap<String, Conference> conferencesBySession = new ConcurrentHashMap<String, Conference>();
+        // joins of a conference which keeps closing under the joiner before giving up
+        private static final int CONFERENCE_JOIN_ATTEMPTS = 3;
+	
+        // ring, media and call duration timeouts and the heartbeat; expired tasks run on the timeout threads
+        private static final HashedWheelTimer timer = new HashedWheelTimer("call-timer", 500, TimeUnit.MILLISECONDS, 512,
+                        Executors.newFixedThreadPool(4, HashedWheelTimer.daemonThreads("call-timeout")));
+        
+        // playbacks of recordings by websocket session id, calls keep their pipelines in the CallRegistry
+        private static final PlaybackManager playbacks = new PlaybackManager(timer);
+        
+        // video caps of the calls by media server load
+        public static final BitrateController bitrate = new BitrateController(calls, stats, timer);
+        
+        // users whose websocket dropped during a call, waiting for a resume
+        private static final SessionParking parking = new SessionParking(timer);
+        
+        // endpoint instance used by background tasks (reaper, drain) which are not bound to a websocket
+        private static final WebSocketServer housekeeping = new WebSocketServer();
+        
+        private static final SessionReaper reaper = new SessionReaper(registry, parking, timer, housekeeping);
+        
+        public static final DrainMode drain = new DrainMode(calls, timer, new Runnable() {
+                @Override
+                public void run() {
+                        housekeeping.hangUpAllCalls("server is shutting down");
+                }
+        });
+        
+        // signaling state, written on shutdown and periodically, restored on startup for a warm restart
+        public static final SignalingSnapshot snapshot = new SignalingSnapshot(Config.SNAPSHOT_FILE, timer, new SignalingSnapshot.Source() {
+                @Override
+                public JsonObject capture() {
+                        return housekeeping.captureState();
+                }
+        });
+        
+        // connections, test pipelines and hot paths warmed up before the health check reports ready
+        public static final StartupWarmUp warmUp = new StartupWarmUp();
+        
+        // inbound message limits, see RateLimiter
+        public static final RateLimiter rateLimits = new RateLimiter();
+        // a roster broadcast was held back by the limit and is scheduled
+        private static final AtomicBoolean rosterPending = new AtomicBoolean();
+        
+        static {
+                reaper.start();
+                retention.start();
+                stats.start();
+                bitrate.start();
+                cluster.start(housekeeping.clusterHandler());
+                snapshot.start();
+                Utils.kmsSupervisor().start(housekeeping.mediaServerHandler());
+        }
+        
+        /**
+         * Stops the background tasks, called when the web application is undeployed.
+         */
+        public static void shutdown() {
+                warmUp.stop();
+                Utils.kmsSupervisor().stop();
+                snapshot.stop();
+                cluster.stop();
+                reaper.stop();
+                timer.stop();
+                playbacks.close();
+                retention.stop();
+                stats.stop();
+                bitrate.stop();
+                recordings.close();
+        }
+	
+        // appConfig responses by client kind, see appConfigPayload
+        private static final ConcurrentHashMap<String, String> appConfigPayloads = new ConcurrentHashMap<String, String>();
+	
         private static final String USER_STATUS_BUSY = "busy";
 	private static final String USER_STATUS_OFFLINE = "offline";
 	private static final String USER_STATUS_ONLINE = "online";
@@ -47,11 +144,12 @@ public class WebSocketServer {
         private static final Logger log = LoggerFactory.getLogger(WebSocketServer.class);
         
         private void printCurrentUsage(){
-                Enumeration<MediaPipeline> e = pipelines.elements();
+                for (PlayMediaPipeline playback : playbacks.getPlaybacks()) {
+                    log.debug("current playback:"+playback.getRecording() + " : "+playback.getPipeline().getId());
+                }
                 
-                while(e.hasMoreElements()){
-                    MediaPipeline mp = e.nextElement();
-                    log.debug("current pipeline:"+mp.getName() + " : "+mp.getId());
+                for (Call call : calls.getCalls()) {
+                    log.debug("current call:"+call);
                 }
                 
                 log.debug("current sessions keys:"+registry.getRegisteredUsers());
@@ -92,8 +190,56 @@ public class WebSocketServer {
 	@OnClose
 	public void onClose(Session session) {
 		log.info("apprtcWs closed connection [{}]", session.getId());
+                rateLimits.forget(session.getId());
+                cleanupSession(session, "websocket closed");
+	}
+
+	/**
+	 * Answer to the pings sent by the {@link SessionReaper}.
+	 */
+	@OnMessage
+	public void onPong(PongMessage pong, Session session) {
+		UserSession userSession = registry.getBySession(session);
+		if (userSession != null) {
+			userSession.touch();
+		}
+	}
+
+	/**
+	 * Hangs up the calls of the session, publishes the user as offline and
+	 * removes it from the registry. Runs once per session no matter if it is
+	 * triggered by onClose or by the {@link SessionReaper}.
+	 * 
+	 * @param session
+	 * @param reason
+	 *            why the session goes away, logged
+	 */
+	public void cleanupSession(Session session, String reason) {
+		UserSession user = registry.getBySession(session);
+		if (user != null && calls.isInCall(session) && parking.park(user, new SessionParking.ExpiryListener() {
+			@Override
+			public void expired(UserSession user) {
+				closeSession(user.getSession(), "resume grace period expired");
+			}
+		})) {
+			log.info("session [{}] of user {} is gone ({}), keeping its call for a resume", session.getId(), user.getName(), reason);
+			return;
+		}
+		closeSession(session, reason);
+	}
+
+	/**
+	 * Like {@link #cleanupSession(Session, String)}, but never parks the
+	 * session.
+	 */
+	private void closeSession(Session session, String reason) {
+		UserSession user = registry.getBySession(session);
+		if (user == null || !user.markClosed()) {
+			log.debug("session [{}] already cleaned up ({})", session.getId(), reason);
+			return;
+		}
+		log.info("cleaning up session [{}] of user {}: {}", session.getId(), user.getName(), reason);
                 printCurrentUsage();
-                UserSession user = registry.getBySession(session);
 		try {
 			publishOnlineStatus(user.getName(), USER_STATUS_OFFLINE);
 		} catch (IOException e) {
@@ -102,7 +248,6 @@ public class WebSocketServer {
                 
 		try {
 			stop(session);
-                        String sessionId = session.getId();
                         killUserSession(session);
 		} catch (IOException ex) {
 			log.error(ex.getLocalizedMessage(), ex);
@@ -125,9 +270,64 @@ public class WebSocketServer {
 
 		log.debug("apprtcWs [{}] received message: {}", session.getId(), _message);
 		JsonObject jsonMessage = gson.fromJson(_message, JsonObject.class);
+		String id = jsonMessage.get("id").getAsString();
+		long retryAfter = rateLimits.check(session.getId(), id);
+		if (retryAfter > 0) {
+			throttled(session, id, retryAfter);
+			return;
+		}
+		dispatch(jsonMessage, session);
+	}
+
+	/**
+	 * Tells the client, at most once a second, that its message was dropped.
+	 */
+	private void throttled(Session session, String id, long retryAfter) {
+		if (!rateLimits.shouldNotify(session.getId())) {
+			return;
+		}
+		UserSession userSession = registry.getBySession(session);
+		log.info("throttling session [{}] of {}: {}", session.getId(), userSession != null ? userSession.getName() : "unknown user", id);
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "rateLimited");
+		response.addProperty("request", id);
+		response.addProperty("retryAfter", retryAfter);
+		try {
+			synchronized (session) {
+				session.getBasicRemote().sendText(response.toString());
+			}
+		} catch (IOException | IllegalStateException e) {
+			log.debug("telling session [{}] about the limit failed: {}", session.getId(), e.getMessage());
+		}
+	}
+
+	/**
+	 * Handles a message which passed the rate limits, also used by the
+	 * {@link StartupWarmUp}.
+	 */
+	void dispatch(JsonObject jsonMessage, Session session) {
+		UserSession userSession = registry.getBySession(session);
+
+		// answers, candidates etc. for a call living on another node go there ("stop" is forwarded by stop())
+		String id = jsonMessage.get("id").getAsString();
+		if (userSession != null && Cluster.CALL_MESSAGES.contains(id) && !id.equals("stop") && !calls.isInCall(session)
+				&& cluster.forward(userSession, jsonMessage)) {
+			userSession.touch();
+			return;
+		}
+		handleMessage(jsonMessage, session);
+	}
+
+	/**
+	 * Handles a message of a websocket of this node or, with the stand-in
+	 * session of a {@link RemoteUserSession}, a message of a user of another
+	 * node for a call on this node.
+	 */
+	private void handleMessage(JsonObject jsonMessage, Session session) {
 		UserSession userSession = registry.getBySession(session);
 
 		if (userSession != null) {
+			userSession.touch();
 			log.debug("Incoming message from user '{}': {}", userSession.getName(), jsonMessage);
 		} else {
 			log.debug("Incoming message from new user: {}", jsonMessage);
@@ -144,6 +344,14 @@ public class WebSocketServer {
 			}
 			break;
                         
+		case "resume":
+			try {
+				resume(session, jsonMessage);
+			} catch (Exception e) {
+				handleErrorResponse(e, session, "resumeResponse");
+			}
+			break;
+                        
 		case "register":
 			try {
                             
@@ -217,7 +425,10 @@ public class WebSocketServer {
 						candidateJson.get("sdpMid").getAsString(), candidateJson.get("sdpMLineIndex").getAsInt());
 				
                                 log.debug(candidate.getCandidate());
-                                userSession.addCandidate(candidate);
+                                candidate = userSession.filterRemoteCandidate(candidate, false);
+                                if (candidate != null) {
+                                        userSession.addCandidate(candidate);
+                                }
 			}
 			break;
                         
@@ -243,7 +454,10 @@ public class WebSocketServer {
 						candidateJson.get("sdpMid").getAsString(), candidateJson.get("sdpMLineIndex").getAsInt());
 				
                                 log.debug(candidate.getCandidate());
-                                userSession.addCandidateScreen(candidate);
+                                candidate = userSession.filterRemoteCandidate(candidate, true);
+                                if (candidate != null) {
+                                        userSession.addCandidateScreen(candidate);
+                                }
 			}
 			break;
 		case "stop":
@@ -276,7 +490,34 @@ public class WebSocketServer {
 			play(userSession, jsonMessage);
 			break;
 		case "stopPlay":
-			releasePipeline(userSession);
+			playbacks.stop(userSession);
+			break;
+		case "pausePlay":
+		case "resumePlay":
+		case "seekPlay":
+		case "getPlayPosition":
+			try {
+				controlPlayback(userSession, jsonMessage.get("id").getAsString(), jsonMessage);
+			} catch (IOException e) {
+				log.error(e.getLocalizedMessage(), e);
+			}
+			break;
+		case "recordingUrl":
+			try {
+				recordingUrl(userSession, jsonMessage);
+			} catch (IOException e) {
+				log.error(e.getLocalizedMessage(), e);
+			}
+			break;
+		case "joinConference":
+			try {
+				joinConference(userSession, jsonMessage);
+			} catch (IOException e) {
+				log.error(e.getLocalizedMessage(), e);
+			}
+			break;
+		case "leaveConference":
+			leaveConference(userSession);
 			break;
 		default:
 			break;
@@ -295,11 +536,14 @@ public class WebSocketServer {
 		responseJSON.addProperty("id", "responseOnlineStatus");
                 UserSession myUserSession = registry.getBySession(session);
                 responseJSON.addProperty("myUsername",myUserSession.getName());
-		UserSession userSession = registry.getByName(user);
-		if (userSession == null) {
+		UserSession userSession = registry.getLocalByName(user);
+		Presence remote = userSession == null ? cluster.locateRemote(user) : null;
+		if (remote != null) {
+			responseJSON.addProperty("response", remote.getStatus());
+		} else if (userSession == null) {
 			responseJSON.addProperty("response", USER_STATUS_OFFLINE);
 		} else {
-			if (userSession.isBusy()) {
+			if (calls.isInCall(userSession.getSession())) {
 				responseJSON.addProperty("response", USER_STATUS_BUSY);
 			} else {
 				responseJSON.addProperty("response", USER_STATUS_ONLINE);
@@ -323,9 +567,14 @@ public class WebSocketServer {
 	 * @throws IOException
 	 */
 	public void publishOnlineStatus(String user, String status) throws IOException {
-		List<String> userList = registry.getRegisteredUsers();
-		String userListJson = new Gson().toJson(userList);
+		cluster.publish(user, USER_STATUS_OFFLINE.equals(status) ? null : status);
+		notifyOnlineStatus(user, status);
+	}
 
+	/**
+	 * Tells the users of this node about the online status of a user.
+	 */
+	private void notifyOnlineStatus(String user, String status) throws IOException {
 		JsonObject responseJSON = new JsonObject();
 		responseJSON.addProperty("id", "responseOnlineStatus");
 		responseJSON.addProperty("response", status);
@@ -340,38 +589,34 @@ public class WebSocketServer {
 		}
 	}
 
-	private void releasePipeline(UserSession user) {
-		MediaPipeline pipeline = pipelines.remove(user.getSessionId());
-		if (pipeline != null) {
-			pipeline.release();
-		}
-	}
-
+	/**
+	 * Plays the latest recording of the user, optionally within a time range
+	 * (from, to in milliseconds since the epoch) or the recording with the
+	 * given id. With 'shared' the viewer joins a running shared playback of
+	 * the recording instead of starting an own one. Only recordings the
+	 * viewer is in can be played, as for {@link #recordingUrl}.
+	 */
 	private void play(final UserSession userSession, JsonObject jsonMessage) {
-		String user = jsonMessage.get("user").getAsString();
+		String user = jsonMessage.has("user") ? jsonMessage.get("user").getAsString() : userSession.getName();
+		long from = jsonMessage.has("from") ? jsonMessage.get("from").getAsLong() : 0;
+		long to = jsonMessage.has("to") ? jsonMessage.get("to").getAsLong() : Long.MAX_VALUE;
+		boolean shared = jsonMessage.has("shared") && jsonMessage.get("shared").getAsBoolean();
 		log.debug("Playing recorded call of user [{}]", user);
 
 		JsonObject response = new JsonObject();
 		response.addProperty("id", "playResponse");
 
-		if (registry.getByName(user) != null && registry.getBySession(userSession.getSession()) != null) {
-			final PlayMediaPipeline playMediaPipeline = new PlayMediaPipeline(Utils.kurentoClient(), user,
-					userSession.getSession());
-
+		Recording recording = jsonMessage.has("recordingId") ? recordings.get(jsonMessage.get("recordingId").getAsString())
+				: recordings.find(user, from, to);
+		if (calls.isInCall(userSession.getSession())) {
+			response.addProperty("response", "rejected");
+			response.addProperty("error", "Cannot play a recording during a call");
+		} else if (recording != null && recording.contains(userSession.getName())
+				&& registry.getBySession(userSession.getSession()) != null) {
+			log.debug("Playing {}", recording);
 			String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
 
-			//userSession.setPlayingWebRtcEndpoint(playMediaPipeline.getWebRtc());
-
-			playMediaPipeline.getPlayer().addEndOfStreamListener(new EventListener<EndOfStreamEvent>() {
-				@Override
-				public void onEvent(EndOfStreamEvent arg0) {
-					UserSession user = registry.getBySession(userSession.getSession());
-					releasePipeline(user);
-					playMediaPipeline.sendPlayEnd(userSession.getSession());
-				}
-			});
-
-			playMediaPipeline.getWebRtc().addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+			EventListener<OnIceCandidateEvent> candidateListener = new EventListener<OnIceCandidateEvent>() {
 				@Override
 				public void onEvent(OnIceCandidateEvent event) {
 					JsonObject response = new JsonObject();
@@ -379,31 +624,33 @@ public class WebSocketServer {
 					response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
 
 					try {
-						synchronized (userSession) {
+						synchronized (userSession.getSession()) {
 							userSession.sendMessage(response);
 						}
 					} catch (IOException e) {
 						log.error(e.getMessage());
 					}
 				}
-			});
-
-			String sdpAnswer = playMediaPipeline.generateSdpAnswer(sdpOffer);
-
-			response.addProperty("response", "accepted");
-			response.addProperty("sdpAnswer", sdpAnswer);
-
-			playMediaPipeline.play();
-			pipelines.put(userSession.getSessionId(), playMediaPipeline.getPipeline());
+			};
 
-			playMediaPipeline.getWebRtc().gatherCandidates();
+			try {
+				String sdpAnswer = playbacks.play(userSession, recording, shared, sdpOffer, candidateListener);
+				response.addProperty("response", "accepted");
+				response.addProperty("sdpAnswer", sdpAnswer);
+				response.addProperty("recordingId", recording.getId());
+				response.addProperty("duration", recording.getDuration());
+			} catch (RuntimeException e) {
+				log.error("playing {} failed: {}", recording, e.getMessage());
+				response.addProperty("response", "rejected");
+				response.addProperty("error", "Playing the recording failed");
+			}
 		} else {
 			response.addProperty("response", "rejected");
 			response.addProperty("error", "No recording for user [" + user + "]. Please request a correct user!");
 		}
 
 		try {
-			synchronized (userSession) {
+			synchronized (userSession.getSession()) {
 				userSession.sendMessage(response);
 			}
 		} catch (IOException e) {
@@ -411,6 +658,80 @@ public class WebSocketServer {
 		}
 	}
 
+	/**
+	 * Pause, resume, seek (position in ms) and position queries on the
+	 * playback the user watches. On a shared playback all viewers are told
+	 * the new state.
+	 */
+	private void controlPlayback(UserSession userSession, String command, JsonObject jsonMessage) throws IOException {
+		PlayMediaPipeline playback = playbacks.get(userSession);
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "playState");
+		if (playback == null) {
+			response.addProperty("response", "rejected");
+			response.addProperty("error", "Nothing is playing");
+			synchronized (userSession.getSession()) {
+				userSession.sendMessage(response);
+			}
+			return;
+		}
+		switch (command) {
+		case "pausePlay":
+			playback.pause();
+			break;
+		case "resumePlay":
+			playback.resume();
+			break;
+		case "seekPlay":
+			playback.seek(jsonMessage.get("position").getAsLong());
+			break;
+		default:
+			break;
+		}
+		response.addProperty("response", "accepted");
+		response.addProperty("state", playback.isPaused() ? "paused" : "playing");
+		response.addProperty("position", playback.getPosition());
+		if (command.equals("getPlayPosition")) {
+			synchronized (userSession.getSession()) {
+				userSession.sendMessage(response);
+			}
+		} else {
+			playback.broadcast(response);
+		}
+	}
+
+	/**
+	 * Sends a signed download link for a recording the user is in, the file is
+	 * then served by the {@link RecordingServlet}. Without an id the latest
+	 * recording of the user (optionally within from, to) is used.
+	 */
+	private void recordingUrl(UserSession user, JsonObject jsonMessage) throws IOException {
+		Recording recording;
+		if (jsonMessage.has("recordingId")) {
+			recording = recordings.get(jsonMessage.get("recordingId").getAsString());
+		} else {
+			long from = jsonMessage.has("from") ? jsonMessage.get("from").getAsLong() : 0;
+			long to = jsonMessage.has("to") ? jsonMessage.get("to").getAsLong() : Long.MAX_VALUE;
+			recording = recordings.find(user.getName(), from, to);
+		}
+
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "recordingUrlResponse");
+		if (recording != null && recording.contains(user.getName())) {
+			response.addProperty("response", "accepted");
+			response.addProperty("recordingId", recording.getId());
+			response.addProperty("url", RecordingServlet.signedUrl(recording));
+			response.addProperty("startTime", recording.getStartTime());
+			response.addProperty("duration", recording.getDuration());
+		} else {
+			response.addProperty("response", "rejected");
+			response.addProperty("message", "no such recording");
+		}
+		synchronized (user.getSession()) {
+			user.sendMessage(response);
+		}
+	}
+
 	private void handleErrorResponse(Exception throwable, Session session, String responseId) {
 		try {
 			stop(session);
@@ -436,9 +757,29 @@ public class WebSocketServer {
 	 * @param jsonMessage
 	 * @throws IOException
 	 */
-            private void appConfig(Session session, JsonObject jsonMessage) throws IOException {
+	private void appConfig(Session session, JsonObject jsonMessage) throws IOException {
+		String type = "";
+		try {
+			if (jsonMessage.get("type") != null) type = jsonMessage.get("type").getAsString();
+		} catch (Exception ex) {
+			System.err.println("type cannot be read from json...");
+		}
+		session.getBasicRemote().sendText(appConfigPayload(type));
+
+		log.debug("send app config to: {}", session.getId());
+	}
+
+	/**
+	 * The appConfig response for browsers ("browser") or the apps (anything
+	 * else). Only depends on system properties, so it is built once per kind.
+	 */
+	static String appConfigPayload(String type) {
+		String kind = "browser".equals(type) ? "browser" : "app";
+		String cached = appConfigPayloads.get(kind);
+		if (cached != null) {
+			return cached;
+		}
 
-                
                 String turnUsername = System.getProperty("TURN_USERNAME");
                 if(turnUsername==null || turnUsername.equals("")) turnUsername = "akashionata";
                 
@@ -454,11 +795,6 @@ public class WebSocketServer {
                
                 boolean turnEnabled = true;
                 boolean stunEnabled = true;
-                String type = "";
-                
-                try{
-                    if(jsonMessage.get("type")!=null) type = jsonMessage.get("type").getAsString(); 
-                }catch(Exception ex){System.err.println("type cannot be read from json...");}
                 
                String stun = "{"+
                             "\"username\":\"\"," +
@@ -491,7 +827,7 @@ public class WebSocketServer {
                                        "]}";
                
                           
-                if(type!=null && type.equals("browser")){
+                if(kind.equals("browser")){
                     turn =    "{\"urls\":[" 
                                          +"\""+turnUrl+"\"" +
                                            // +"\""+turnUrl+"?transport=udp\"," 
@@ -516,9 +852,8 @@ public class WebSocketServer {
 				"}," + "\"result\": \"SUCCESS\"" + "}";
                 
                 log.debug(responseJSON);
-		session.getBasicRemote().sendText(responseJSON);
-
-		log.info("send app config to: {}", session.getId());
+		appConfigPayloads.putIfAbsent(kind, responseJSON);
+		return responseJSON;
 	}
 
 	/**
@@ -545,10 +880,11 @@ public class WebSocketServer {
 		if (name.isEmpty()) {
 			response = "rejected";
 			message = "empty user name";
-		} else if (registry.exists(name)) {
+		} else if (registry.exists(name) && !takeOverRestored(name) || cluster.locateRemote(name) != null) {
 			response = "skipped";
 			message = "user " + name + " already registered";
 		} else {
+			newUser.setResumeToken(SessionParking.newToken());
 			registry.register(newUser);
 			registered = true;
 		}
@@ -558,6 +894,9 @@ public class WebSocketServer {
 		responseJSON.addProperty("response", response);
 		responseJSON.addProperty("message", message);
                 responseJSON.addProperty("myUsername",name);
+                if (registered) {
+                        responseJSON.addProperty("resumeToken", newUser.getResumeToken());
+                }
 		newUser.sendMessage(responseJSON);
 
 		log.debug("Sent response: {}", responseJSON);
@@ -565,12 +904,136 @@ public class WebSocketServer {
 	}
 
 	/**
-	 * Updates the list of registered users on all clients.
+	 * A user restored from a snapshot who is not in a call may register anew,
+	 * for clients which do not resume.
+	 *
+	 * @return true, if the name is free now
+	 */
+	private boolean takeOverRestored(String name) {
+		UserSession existing = registry.getLocalByName(name);
+		if (existing == null || !parking.isParked(existing) || calls.isInCall(existing.getSession())
+				|| parking.resume(existing.getResumeToken()) == null) {
+			return false;
+		}
+		registry.removeBySession(existing.getSession());
+		log.debug("restored user {} registers again", name);
+		return true;
+	}
+
+	/**
+	 * Binds a parked user (see {@link SessionParking}) to the websocket of a
+	 * reconnecting client. The call and its media pipeline are kept, the
+	 * client gets the ICE candidates of the media server again and trickles
+	 * its new candidates into the existing WebRtcEndpoint.
+	 * 
+	 * @param session
+	 * @param jsonMessage
+	 * @throws IOException
+	 */
+	private void resume(Session session, JsonObject jsonMessage) throws IOException {
+		String token = jsonMessage.has("token") ? jsonMessage.get("token").getAsString() : null;
+		UserSession user = parking.resume(token);
+
+		JsonObject responseJSON = new JsonObject();
+		responseJSON.addProperty("id", "resumeResponse");
+
+		if (user == null) {
+			log.debug("resume with unknown or expired token from session [{}]", session.getId());
+			responseJSON.addProperty("response", "rejected");
+			responseJSON.addProperty("message", "unknown or expired resume token");
+			session.getBasicRemote().sendText(responseJSON.toString());
+			return;
+		}
+
+		String oldSessionId = user.getSessionId();
+		calls.rebind(oldSessionId, session.getId());
+		registry.rebind(user, session);
+		user.setResumeToken(SessionParking.newToken());
+		user.touch();
+		log.info("user {} resumed session [{}] on [{}]", user.getName(), oldSessionId, session.getId());
+
+		Call call = calls.getBySession(session);
+		responseJSON.addProperty("response", "accepted");
+		responseJSON.addProperty("myUsername", user.getName());
+		responseJSON.addProperty("resumeToken", user.getResumeToken());
+		responseJSON.addProperty("inCall", call != null);
+		user.sendMessage(responseJSON);
+
+		if (call != null) {
+			for (IceCandidate candidate : user.getLocalCandidates(false)) {
+				sendIceCandidate(user, candidate, false);
+			}
+			for (IceCandidate candidate : user.getLocalCandidates(true)) {
+				sendIceCandidate(user, candidate, true);
+			}
+		} else {
+			user.clear();
+		}
+	}
+
+	/**
+	 * Forwards the ICE candidates gathered by the media server which pass the
+	 * {@link IceCandidatePolicy} to the user and remembers them in case the
+	 * user resumes on a new websocket.
+	 */
+	private static EventListener<OnIceCandidateEvent> iceCandidateForwarder(final UserSession user, final boolean screen) {
+		return new EventListener<OnIceCandidateEvent>() {
+			@Override
+			public void onEvent(OnIceCandidateEvent event) {
+				IceCandidate candidate = user.filterLocalCandidate(event.getCandidate(), screen);
+				if (candidate == null) {
+					return;
+				}
+				user.addLocalCandidate(candidate, screen);
+				sendIceCandidate(user, candidate, screen);
+			}
+		};
+	}
+
+	private static void sendIceCandidate(UserSession user, IceCandidate candidate, boolean screen) {
+		JsonObject response = new JsonObject();
+		response.addProperty("id", screen ? "iceCandidateScreen" : "iceCandidate");
+		response.add("candidate", JsonUtils.toJsonObject(candidate));
+		try {
+			synchronized (user.getSession()) {
+				log.debug(response.toString());
+				user.sendMessage(response);
+			}
+		} catch (IOException e) {
+			log.error(e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Updates the list of registered users on all clients. Beyond
+	 * {@link Config#RATE_ROSTER} the broadcasts are coalesced into one which
+	 * goes out when the limit allows it again.
 	 * 
 	 * @throws IOException
 	 */
 	private void sendRegisteredUsers() throws IOException {
+		if (rateLimits.allowRoster()) {
+			broadcastRegisteredUsers();
+			return;
+		}
+		if (rosterPending.compareAndSet(false, true)) {
+			timer.newTimeout(new Runnable() {
+				@Override
+				public void run() {
+					rosterPending.set(false);
+					try {
+						broadcastRegisteredUsers();
+					} catch (IOException | RuntimeException e) {
+						log.error("deferred roster broadcast failed: {}", e.getMessage(), e);
+					}
+				}
+			}, rateLimits.rosterDelay(), TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private static void broadcastRegisteredUsers() throws IOException {
 		List<String> userList = registry.getRegisteredUsers();
+		userList.addAll(cluster.getRemoteUserNames());
 		String userListJson = new Gson().toJson(userList);
 
 		JsonObject responseJSON = new JsonObject();
@@ -584,8 +1047,8 @@ public class WebSocketServer {
                        if(userSession.getSession().isOpen()){
                             userSession.sendMessage(responseJSON);
                        }else{
-                           log.info("removing session id from registry because it's not open {}", userSession.getSession());
-                           registry.removeBySession(userSession.getSession());
+                           // the SessionReaper runs the full cleanup for it
+                           log.info("skipping session {} because it's not open", userSession.getSessionId());
                        }
 		}
 	}
@@ -600,18 +1063,71 @@ public class WebSocketServer {
 
 		JsonObject response = new JsonObject();
 
-		UserSession callee = registry.getByName(to);
+		if (drain.isDraining()) {
+			log.debug("Draining, rejecting call from [{}] to [{}].", from, to);
+
+			response.addProperty("id", "callResponse");
+			response.addProperty("response", "rejected");
+			response.addProperty("message", "server is shutting down, please reconnect");
+			if (Config.DRAIN_REDIRECT_URL != null) {
+				response.addProperty("redirect", Config.DRAIN_REDIRECT_URL);
+			}
+
+			caller.sendMessage(response);
+			return;
+		}
+
+		if (!Utils.kmsSupervisor().isHealthy()) {
+			log.debug("Media server down, rejecting call from [{}] to [{}].", from, to);
+
+			response.addProperty("id", "callResponse");
+			response.addProperty("response", "rejected");
+			response.addProperty("message", "media server unavailable, please try again later");
+			caller.sendMessage(response);
+			return;
+		}
+
+		UserSession callee = registry.getLocalByName(to);
+		if (callee == null) {
+			// connected to another node, the call lives here anyway
+			callee = cluster.getRemoteUser(to);
+		}
+		String sdpOffer = jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString();
+		// asked for, or the offer has no video at all
+		boolean audioOnly = jsonMessage.has("audioOnly") ? jsonMessage.get("audioOnly").getAsBoolean() : !sdpOffer.contains("m=video");
+		if (callee != null && !bitrate.admit(audioOnly)) {
+			log.info("Media server at capacity, rejecting {} call from [{}] to [{}].", audioOnly ? "voice" : "video", from, to);
+
+			response.addProperty("id", "callResponse");
+			response.addProperty("response", "rejected");
+			response.addProperty("message", audioOnly ? "server is busy, please try again later"
+					: "server is busy, please try again later or call without video");
+			caller.sendMessage(response);
+			return;
+		}
 		if (callee != null) {
-			caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
-			caller.setCallingTo(to);
+			Call call = new Call(caller, callee, sdpOffer, audioOnly);
+			if (!calls.register(call)) {
+				log.debug("Callee [{}] or caller [{}] is busy! Rejecting call.", to, from);
+
+				response.addProperty("id", "callResponse");
+				response.addProperty("response", "rejected: user '" + to + "' is busy");
+
+				caller.sendMessage(response);
+				return;
+			}
 
 			response.addProperty("id", "incomingCall");
 			response.addProperty("from", from);
+			if (audioOnly) {
+				// the callee answers with audio only as well
+				response.addProperty("audioOnly", true);
+			}
 
 			log.debug("Sending response [{}] to callee [{}]", response.toString(), callee.getName());
 
 			callee.sendMessage(response);
-			callee.setCallingFrom(from);
+			scheduleRingTimeout(call);
 		} else {
 			log.debug("Callee [{}] does not exist! Rejecting call.", to);
 
@@ -632,10 +1148,10 @@ public class WebSocketServer {
 
 		JsonObject response = new JsonObject();
 
-		UserSession callee = registry.getByName(to);
-		if (callee != null) {
-			caller.setSdpOfferScreen(jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
-			///caller.setCallingTo(to);
+		Call call = calls.getBySession(caller.getSession());
+		if (call != null && call.getState() == Call.State.ACTIVE) {
+			call.offerScreen(caller, jsonMessage.getAsJsonPrimitive("sdpOffer").getAsString());
+			UserSession callee = call.getPeer(caller);
 
 			response.addProperty("id", "incomingScreenCall");
 			response.addProperty("from", from);
@@ -643,70 +1159,50 @@ public class WebSocketServer {
 			log.debug("Sending response [{}] to callee [{}]", response.toString(), callee.getName());
 
 			callee.sendMessage(response);
-			callee.setCallingFrom(from);
-		} 
-            
-        }
-        
-        private void removeScreen(UserSession caller, JsonObject jsonMessage) throws IOException {
+		} else {
+			log.debug("[{}] has no active call to share the screen with! Rejecting screen call.", from);
+
+			response.addProperty("id", "callScreenResponse");
+			response.addProperty("response", "rejected");
+			response.addProperty("message", "no active call");
+
+			caller.sendMessage(response);
+		}
             
         }
 
 	private void incomingCallResponse(final UserSession callee, JsonObject jsonMessage) throws IOException {
 		String callResponse = jsonMessage.get("callResponse").getAsString();
 		String from = jsonMessage.get("from").getAsString();
-		final UserSession caller = registry.getByName(from);
-		String to = caller.getCallingTo();
+
+		final Call call = calls.getBySession(callee.getSession());
+		if (call == null || !call.isCallee(callee) || !call.getCaller().getName().equals(from)) {
+			log.debug("No ringing call from [{}] to [{}], ignoring {} response.", from, callee.getName(), callResponse);
+			return;
+		}
+		final UserSession caller = call.getCaller();
+		String to = callee.getName();
 
 		if ("accept".equals(callResponse)) {
+			if (!call.transition(Call.State.RINGING, Call.State.ACCEPTING)) {
+				log.debug("{} is not ringing anymore, ignoring accept.", call);
+				return;
+			}
 			log.info("Accepted call from [{}] to [{}]", from, to);
+			scheduleMediaTimeout(call);
 
 			CallMediaPipeline pipeline = null;
 			try {
-				pipeline = new CallMediaPipeline(Utils.kurentoClient(), from, to);
-				pipelines.put(caller.getSessionId(), pipeline.getPipeline());
-				pipelines.put(callee.getSessionId(), pipeline.getPipeline());
-				log.debug("created both pipelines...");
+				pipeline = new CallMediaPipeline(Utils.kurentoClient(), from, to,
+						RecordingPolicy.shouldRecord(from, to, RecordingPolicy.CallType.CALL), call.isAudioOnly());
+				bitrate.configure(pipeline);
+				call.setPipeline(pipeline);
+				log.debug("created call pipeline...");
 
 				// give the callee his webRtcEp from the pipeline
 				callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEp());
-
-				pipeline.getCalleeWebRtcEp().addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidate");
-						response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-						try {
-							synchronized (callee.getSession()) {
-                                                              log.debug(response.toString());
-								callee.getSession().getBasicRemote().sendText(response.toString());
-							}
-						} catch (IOException e) {
-							log.error(e.getMessage(), e);
-						}
-					}
-				});
-
 				caller.setWebRtcEndpoint(pipeline.getCallerWebRtcEp());
-
-				pipeline.getCallerWebRtcEp().addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
-
-					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidate");
-						response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-						try {
-							synchronized (caller.getSession()) {
-                                                            log.debug(response.toString());
-                                                            caller.getSession().getBasicRemote().sendText(response.toString());
-							}
-						} catch (IOException e) {
-							log.error(e.getMessage(), e);
-						}
-					}
-				});
+				listenToCallMedia(call, pipeline);
 				log.debug("created both webrtcendpoints...");
 
 				log.debug("preparing sending startCommunication to called person...");
@@ -727,8 +1223,7 @@ public class WebSocketServer {
 
 				pipeline.getCalleeWebRtcEp().gatherCandidates();
 
-				String callerSdpOffer = registry.getByName(from).getSdpOffer();
-				String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
+				String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(call.getCallerSdpOffer());
 				JsonObject response = new JsonObject();
 				response.addProperty("id", "callResponse");
 				response.addProperty("response", "accepted");
@@ -741,7 +1236,13 @@ public class WebSocketServer {
 
 				pipeline.getCallerWebRtcEp().gatherCandidates();
 
-				pipeline.record();
+				if (!call.transition(Call.State.ACCEPTING, Call.State.ACTIVE)) {
+					// hung up while we were building the pipeline, stop() did the notifications
+					log.debug("{} ended during setup, releasing pipeline", call);
+					call.release();
+					return;
+				}
+				scheduleMaxDuration(call);
 
 			} catch (Throwable t) {
 
@@ -751,82 +1252,79 @@ public class WebSocketServer {
 					pipeline.release();
 				}
 
-				pipelines.remove(caller.getSessionId());
-				pipelines.remove(callee.getSessionId());
+				if (call.end()) {
+					calls.remove(call);
+					call.release();
+
+					JsonObject response = new JsonObject();
+					response.addProperty("id", "callResponse");
+					response.addProperty("response", "rejected");
+					caller.sendMessage(response);
+
+					response = new JsonObject();
+					response.addProperty("id", "stopCommunication");
+					callee.sendMessage(response);
+				}
+			}
+
+		} else { // "reject"
+			if (call.end()) {
+				calls.remove(call);
+				call.release();
 
 				JsonObject response = new JsonObject();
 				response.addProperty("id", "callResponse");
 				response.addProperty("response", "rejected");
 				caller.sendMessage(response);
-
-				response = new JsonObject();
-				response.addProperty("id", "stopCommunication");
-				callee.sendMessage(response);
 			}
-
-		} else { // "reject"
-			JsonObject response = new JsonObject();
-			response.addProperty("id", "callResponse");
-			response.addProperty("response", "rejected");
-			caller.sendMessage(response);
 		}
 	}
         private void incomingScreenCallResponse(final UserSession callee, JsonObject jsonMessage) throws IOException {
 		
             String callResponse = jsonMessage.get("callResponse").getAsString();
 	    String from = jsonMessage.get("from").getAsString();
-	    final UserSession caller = registry.getByName(from);
-                String to = caller.getCallingTo();
+
+		final Call call = calls.getBySession(callee.getSession());
+		final UserSession caller = (call != null) ? call.getScreenSharer() : null;
+		if (caller == null || !caller.getName().equals(from) || call.isCaller(callee) == call.isCaller(caller)) {
+			log.debug("No pending screen call from [{}] to [{}], ignoring {} response.", from, callee.getName(), callResponse);
+			return;
+		}
+                String to = callee.getName();
 
 		if ("accept".equals(callResponse)) {
+			if (!call.transition(Call.State.ACTIVE, Call.State.SCREEN_SHARING)) {
+				log.debug("{} cannot share a screen right now, ignoring accept.", call);
+				return;
+			}
 			log.info("Accepted Screen call from [{}] to [{}]", from, to);
 
 			CallMediaPipeline pipeline = null;
 			try {
-				pipeline = new CallMediaPipeline(Utils.kurentoClient(), from, to);
-				pipelines.put(caller.getSessionId()+"S", pipeline.getPipeline());
-				pipelines.put(callee.getSessionId()+"S", pipeline.getPipeline());
-				log.info("created both  screen pipelines...");
-
-				// give the callee his webRtcEp from the pipeline
-				callee.setWebRtcScreenEndpoint(pipeline.getCalleeWebRtcEp());
-
-				pipeline.getCalleeWebRtcEp().addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+				pipeline = new CallMediaPipeline(Utils.kurentoClient(), from, to,
+						RecordingPolicy.shouldRecord(from, to, RecordingPolicy.CallType.SCREEN));
+				bitrate.configure(pipeline);
+				call.setScreenPipeline(pipeline);
+				log.info("created screen pipeline...");
+
+				// record once the shared screen arrives
+				pipeline.getCallerWebRtcEp().addMediaFlowInStateChangeListener(new EventListener<MediaFlowInStateChangeEvent>() {
 					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidateScreen");
-						response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-						try {
-							synchronized (callee.getSession()) {
-                                                              log.debug(response.toString());
-								callee.getSession().getBasicRemote().sendText(response.toString());
-							}
-						} catch (IOException e) {
-							log.error(e.getMessage(), e);
+					public void onEvent(MediaFlowInStateChangeEvent event) {
+						if (event.getState() == MediaFlowState.FLOWING) {
+							startRecording(call.getScreenPipeline());
 						}
 					}
 				});
 
-				caller.setWebRtcScreenEndpoint(pipeline.getCallerWebRtcEp());
+				// give the callee his webRtcEp from the pipeline
+				callee.setWebRtcScreenEndpoint(pipeline.getCalleeWebRtcEp());
 
-				pipeline.getCallerWebRtcEp().addOnIceCandidateListener(new EventListener<OnIceCandidateEvent>() {
+				pipeline.getCalleeWebRtcEp().addOnIceCandidateListener(iceCandidateForwarder(callee, true));
 
-					@Override
-					public void onEvent(OnIceCandidateEvent event) {
-						JsonObject response = new JsonObject();
-						response.addProperty("id", "iceCandidateScreen");
-						response.add("candidate", JsonUtils.toJsonObject(event.getCandidate()));
-						try {
-							synchronized (caller.getSession()) {
-                                                            log.debug(response.toString());
-                                                            caller.getSession().getBasicRemote().sendText(response.toString());
-							}
-						} catch (IOException e) {
-							log.error(e.getMessage(), e);
-						}
-					}
-				});
+				caller.setWebRtcScreenEndpoint(pipeline.getCallerWebRtcEp());
+
+				pipeline.getCallerWebRtcEp().addOnIceCandidateListener(iceCandidateForwarder(caller, true));
 				log.info("created both webrtcendpoints...");
 
 				log.info("preparing sending startCommunication to called person...");
@@ -851,8 +1349,7 @@ public class WebSocketServer {
 
 				pipeline.getCalleeWebRtcEp().gatherCandidates();
 
-				String callerSdpOffer = registry.getByName(from).getSdpOfferScreen();
-				String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(callerSdpOffer);
+				String callerSdpAnswer = pipeline.generateSdpAnswerForCaller(call.getScreenSdpOffer());
 				JsonObject response = new JsonObject();
 				response.addProperty("id", "callScreenResponse");
 				response.addProperty("response", "accepted");
@@ -865,8 +1362,6 @@ public class WebSocketServer {
 
 				pipeline.getCallerWebRtcEp().gatherCandidates();
 
-				pipeline.record();
-
 			} catch (Throwable t) {
 
 				log.error("Rejecting call! Reason: {}", t.getMessage());
@@ -875,8 +1370,9 @@ public class WebSocketServer {
 					pipeline.release();
 				}
 
-				pipelines.remove(caller.getSessionId()+"S");
-				pipelines.remove(callee.getSessionId()+"S");
+				if (call.transition(Call.State.SCREEN_SHARING, Call.State.ACTIVE)) {
+					call.releaseScreen();
+				}
 
 				JsonObject response = new JsonObject();
 				response.addProperty("id", "callScreenResponse");
@@ -890,8 +1386,10 @@ public class WebSocketServer {
 			}
 
 		} else { // "reject"
+			call.releaseScreen();
+
 			JsonObject response = new JsonObject();
-			response.addProperty("id", "callResponse");
+			response.addProperty("id", "callScreenResponse");
 			response.addProperty("response", "rejected");
 			caller.sendMessage(response);
 		}
@@ -906,109 +1404,616 @@ public class WebSocketServer {
 	public void stop(Session session) throws IOException {
 
 		String sessionId = session.getId();
-                log.debug("trying to find session id: {} in piplines:\n{}",sessionId,pipelines.keySet().toString());
-                
-		
+                log.debug("trying to find session id: {} in calls", sessionId);
+
                 // Both users can stop the communication. A 'stopCommunication'
                 // message will be sent to the other peer.
                 UserSession stopperUser = registry.getBySession(session);
-                log.error("stopperUser: "+stopperUser.getName());
 
                 if (stopperUser != null) {
-
-                    UserSession stoppedUserFrom = (stopperUser.getCallingFrom() != null) ? registry.getByName(stopperUser.getCallingFrom()) : null;
-
-                    UserSession stoppedUserTo = (stopperUser.getCallingTo() != null )? registry.getByName(stopperUser.getCallingTo()) : null;
-                    UserSession stopUser = null;
-
-                    if(stoppedUserFrom !=null && stoppedUserFrom.getSession()!=null && !stoppedUserFrom.getSession().getId().equals(session.getId())){
-                        log.debug("die id des stoppenden ist NICHT! die des anrufenden"); //wenn der angerufene auflegt
-
-                        stopUser = stoppedUserFrom;
-                        JsonObject message = new JsonObject();
-                        message.addProperty("id", "stopCommunication");
-                        stopUser.sendMessage(message);
-                        stopUser.clear();                       
-                    }      
-                    else if(stoppedUserTo!=null && stoppedUserTo.getSession()!=null){
-                        log.debug("die id des stoppenden IST! die des anrufenden");
-                        //wenn der anrufer auflegt. (wird anschließend, die pipeline des anrufenden gesucht und exisitert nicht mehr) 
-                       stopUser = stoppedUserTo;
-                       JsonObject message = new JsonObject();
-                       message.addProperty("id", "stopCommunication");
-                       stopUser.sendMessage(message);
-                       stopUser.clear();                  
-                   }
-                   
-
-                    if (pipelines.containsKey(sessionId)) {
-                        log.debug("Stopping media connection of websocket id [{}]", sessionId);
-                        log.debug("send stop to stoppedUserFrom:",stopUser.getName());
-                        MediaPipeline pipeline1 = pipelines.remove(sessionId);
-                        pipeline1.release();
-
-                        MediaPipeline pipeline2 = pipelines.remove(stopUser.getSession().getId());
-                        pipeline2.release();
+                    log.debug("stopperUser: "+stopperUser.getName());
+
+                    Call call = calls.getBySession(session);
+                    if (call != null) {
+                        endCall(call, stopperUser);
+                    } else {
+                        JsonObject stop = new JsonObject();
+                        stop.addProperty("id", "stop");
+                        cluster.forward(stopperUser, stop);
                     }
-                     
+                    leaveConference(stopperUser);
+                    playbacks.stop(stopperUser);
+
                     stopperUser.clear();
-                    log.error("Stopped", sessionId);
+                    log.debug("Stopped [{}]", sessionId);
                     sendRegisteredUsers(); 
                 }
-		//}
-                //else{ //piplines not yet have been created - but a user tried to call another and the other hangs up instead of answers the call
-            
-               // }
+	}
+
+	/**
+	 * Forwards the ICE candidates of the call's endpoints to its users and
+	 * marks the call's media as flowing (which starts the recording) once
+	 * both endpoints receive. Needed for every pipeline of the call, also for
+	 * one which was reattached, as events are bound to the connection they
+	 * were subscribed on.
+	 */
+	private static void listenToCallMedia(final Call call, CallMediaPipeline pipeline) {
+		pipeline.getCallerWebRtcEp().addMediaFlowInStateChangeListener(new EventListener<MediaFlowInStateChangeEvent>() {
+			@Override
+			public void onEvent(MediaFlowInStateChangeEvent event) {
+				if (event.getState() == MediaFlowState.FLOWING && call.mediaFlowing(true)) {
+					log.info("media is flowing in {}", call);
+					startRecording(call.getPipeline());
+				}
+			}
+		});
+		pipeline.getCalleeWebRtcEp().addMediaFlowInStateChangeListener(new EventListener<MediaFlowInStateChangeEvent>() {
+			@Override
+			public void onEvent(MediaFlowInStateChangeEvent event) {
+				if (event.getState() == MediaFlowState.FLOWING && call.mediaFlowing(false)) {
+					log.info("media is flowing in {}", call);
+					startRecording(call.getPipeline());
+				}
+			}
+		});
+		pipeline.getCalleeWebRtcEp().addOnIceCandidateListener(iceCandidateForwarder(call.getCallee(), false));
+		pipeline.getCallerWebRtcEp().addOnIceCandidateListener(iceCandidateForwarder(call.getCaller(), false));
+	}
+
+	/**
+	 * Starts recording when media flows, the pipeline may already be gone if
+	 * the call ended meanwhile.
+	 */
+	private static void startRecording(CallMediaPipeline pipeline) {
+		if (pipeline == null) {
+			return;
+		}
+		try {
+			pipeline.record();
+		} catch (RuntimeException e) {
+			log.debug("Could not start recording: {}", e.getMessage());
+		}
+	}
+
+	/**
+	 * Joins the user to the conference of the given room, the conference is
+	 * created by the first participant, in the mode it asks for (or
+	 * {@link Config#CONFERENCE_MODE}).
+	 * 
+	 * @param user
+	 * @param jsonMessage
+	 *            room, sdpOffer and optionally mode (composite or dispatcher)
+	 * @throws IOException
+	 */
+	private void joinConference(UserSession user, JsonObject jsonMessage) throws IOException {
+		String room = jsonMessage.get("room").getAsString();
+		String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
+
+		JsonObject response = new JsonObject();
+		response.addProperty("id", "joinConferenceResponse");
+
+		if (drain.isDraining() || !Utils.kmsSupervisor().isHealthy() || calls.isInCall(user.getSession())
+				|| conferencesBySession.containsKey(user.getSessionId())) {
+			response.addProperty("response", "rejected");
+			response.addProperty("message", drain.isDraining() ? "server is shutting down, please reconnect"
+					: !Utils.kmsSupervisor().isHealthy() ? "media server unavailable, please try again later"
+							: "already in a call or conference");
+			user.sendMessage(response);
+			return;
+		}
+
+		Conference conference = null;
+		try {
+			Conference.Mode mode = Conference.Mode.valueOf(Config.CONFERENCE_MODE.toUpperCase());
+			if (jsonMessage.has("mode")) {
+				mode = Conference.Mode.valueOf(jsonMessage.get("mode").getAsString().toUpperCase());
+			}
+
+			String sdpAnswer = null;
+			// a conference closing under us (last participant left) is replaced by a new one, a few times
+			for (int attempt = 0; sdpAnswer == null; attempt++) {
+				if (attempt == CONFERENCE_JOIN_ATTEMPTS) {
+					throw new IllegalStateException("conference " + room + " is busy, please try again");
+				}
+				conference = conferences.get(room);
+				if (conference == null || conference.isClosed()) {
+					Conference created = new Conference(room, mode, Utils.kurentoClient(), timer);
+					if (conference == null ? conferences.putIfAbsent(room, created) != null : !conferences.replace(room, conference, created)) {
+						created.close();
+						continue;
+					}
+					conference = created;
+				}
+				try {
+					sdpAnswer = conference.join(user, sdpOffer, iceCandidateForwarder(user, false));
+				} catch (IllegalStateException e) {
+					if (!conference.isClosed()) {
+						throw e;
+					}
+					log.debug("{}, retrying", e.getMessage());
+				}
+			}
+			conferencesBySession.put(user.getSessionId(), conference);
+
+			response.addProperty("response", "accepted");
+			response.addProperty("sdpAnswer", sdpAnswer);
+			response.addProperty("mode", conference.getMode().name().toLowerCase());
+			response.add("participants", gson.toJsonTree(conference.getParticipantNames()));
+			synchronized (user.getSession()) {
+				user.sendMessage(response);
+			}
+
+			JsonObject joined = new JsonObject();
+			joined.addProperty("id", "participantJoined");
+			joined.addProperty("name", user.getName());
+			conference.broadcast(joined, user);
+		} catch (RuntimeException e) {
+			log.error("{} could not join conference {}: {}", user.getName(), room, e.getMessage(), e);
+			if (conferencesBySession.containsKey(user.getSessionId())) {
+				leaveConference(user);
+			} else {
+				if (conference != null && conference.isClosed()) {
+					// closed by the failed join as nobody else is in it
+					conferences.remove(room, conference);
+				}
+				user.clear();
+			}
+			response.addProperty("response", "rejected");
+			response.addProperty("message", e.getMessage());
+			user.sendMessage(response);
+		}
+	}
+
+	/**
+	 * Removes the user from its conference, if any. The other participants get
+	 * a 'participantLeft'.
+	 */
+	private void leaveConference(UserSession user) {
+		Conference conference = conferencesBySession.remove(user.getSessionId());
+		if (conference == null) {
+			return;
+		}
+		if (conference.leave(user)) {
+			conferences.remove(conference.getName(), conference);
+		} else {
+			JsonObject left = new JsonObject();
+			left.addProperty("id", "participantLeft");
+			left.addProperty("name", user.getName());
+			conference.broadcast(left, user);
+		}
+		user.clear();
+	}
+
+	/**
+	 * Ends the call, tells the other party about it and releases its media.
+	 * Only the first of several concurrent callers does anything.
+	 *
+	 * @param call
+	 * @param stopperUser
+	 *            the party which hung up, it is not notified
+	 * @throws IOException
+	 */
+	private void endCall(Call call, UserSession stopperUser) throws IOException {
+		if (!call.end()) {
+			log.debug("{} is already being stopped", call);
+			return;
+		}
+		calls.remove(call);
+
+		UserSession stopUser = call.getPeer(stopperUser);
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "stopCommunication");
+		stopUser.sendMessage(message);
+
+		call.release();
+		log.info("Stopped {}", call);
+	}
+
+	/**
+	 * Ends a call on behalf of the server, both parties get a
+	 * 'stopCommunication'.
+	 */
+	private void expireCall(Call call, String reason) {
+		if (!call.end()) {
+			return;
+		}
+		log.info("Expiring {}: {}", call, reason);
+		calls.remove(call);
+		call.release();
+
+		JsonObject message = new JsonObject();
+		message.addProperty("id", "stopCommunication");
+		message.addProperty("message", reason);
+		try {
+			call.getCaller().sendMessage(message);
+		} catch (IOException e) {
+			log.error(e.getLocalizedMessage(), e);
+		}
+		try {
+			call.getCallee().sendMessage(message);
+		} catch (IOException e) {
+			log.error(e.getLocalizedMessage(), e);
+		}
+		try {
+			sendRegisteredUsers();
+		} catch (IOException e) {
+			log.error(e.getLocalizedMessage(), e);
+		}
+	}
+
+	/**
+	 * The state for a {@link SignalingSnapshot}. Only active calls between
+	 * users of this node can be taken over, the pipelines of all other media
+	 * (calls being set up or with a user of another node, screen sharing,
+	 * rooms, conferences, playbacks) are listed to be released after a
+	 * restart.
+	 */
+	private JsonObject captureState() {
+		JsonObject state = new JsonObject();
+		state.addProperty("version", 1);
+		state.addProperty("node", cluster.getNode());
+		state.addProperty("time", System.currentTimeMillis());
+
+		JsonArray users = new JsonArray();
+		for (UserSession user : registry.getUserSessions()) {
+			if (user.getResumeToken() != null) {
+				JsonObject entry = new JsonObject();
+				entry.addProperty("name", user.getName());
+				entry.addProperty("token", user.getResumeToken());
+				users.add(entry);
+			}
+		}
+		state.add("users", users);
+
+		JsonArray activeCalls = new JsonArray();
+		JsonArray orphans = new JsonArray();
+		for (Call call : calls.getCalls()) {
+			CallMediaPipeline pipeline = call.getPipeline();
+			CallMediaPipeline screenPipeline = call.getScreenPipeline();
+			if (screenPipeline != null) {
+				orphans.add(new JsonPrimitive(screenPipeline.getPipeline().getId()));
+			}
+			if (pipeline == null || pipeline.getPipeline() == null) {
+				continue;
+			}
+			Call.State callState = call.getState();
+			if ((callState == Call.State.ACTIVE || callState == Call.State.SCREEN_SHARING) && !(call.getCaller() instanceof RemoteUserSession)
+					&& !(call.getCallee() instanceof RemoteUserSession)) {
+				JsonObject entry = new JsonObject();
+				entry.addProperty("id", call.getId());
+				entry.addProperty("caller", call.getCaller().getName());
+				entry.addProperty("callee", call.getCallee().getName());
+				entry.addProperty("createdAt", call.getCreatedAt());
+				entry.add("media", pipeline.toSnapshot());
+				activeCalls.add(entry);
+			} else {
+				orphans.add(new JsonPrimitive(pipeline.getPipeline().getId()));
+			}
+		}
+		state.add("calls", activeCalls);
+
+		for (Conference conference : conferences.values()) {
+			orphans.add(new JsonPrimitive(conference.getPipeline().getId()));
+		}
+		for (PlayMediaPipeline playback : playbacks.getPlaybacks()) {
+			orphans.add(new JsonPrimitive(playback.getPipeline().getId()));
+		}
+		for (Room room : RoomWebSocketServer.rooms.getRooms()) {
+			if (room.getPipeline() != null) {
+				orphans.add(new JsonPrimitive(room.getPipeline().getId()));
+			}
+		}
+		state.add("pipelines", orphans);
+		return state;
+	}
+
+	/**
+	 * Restores the last {@link SignalingSnapshot}: its users are parked for
+	 * {@link Config#SNAPSHOT_RESUME_GRACE} seconds so their clients can
+	 * resume, active calls are reattached to their pipelines on the media
+	 * server and all other pipelines of the previous run are released.
+	 * Called once on startup.
+	 */
+	public static void restore() {
+		JsonObject state = snapshot.read();
+		if (state == null) {
+			return;
+		}
+		KurentoClient kurento = Utils.kurentoClient();
+
+		ConcurrentHashMap<String, UserSession> users = new ConcurrentHashMap<String, UserSession>();
+		for (JsonElement element : state.getAsJsonArray("users")) {
+			JsonObject entry = element.getAsJsonObject();
+			String name = entry.get("name").getAsString();
+			if (registry.exists(name)) {
+				continue;
+			}
+			UserSession user = new UserSession(StandInSession.create("restored/" + name, false), name);
+			user.setResumeToken(entry.get("token").getAsString());
+			registry.register(user);
+			cluster.publish(name, USER_STATUS_ONLINE);
+			parking.park(user, new SessionParking.ExpiryListener() {
+				@Override
+				public void expired(UserSession user) {
+					housekeeping.closeSession(user.getSession(), "did not resume after restart");
+				}
+			}, Config.SNAPSHOT_RESUME_GRACE);
+			users.put(name, user);
+		}
+
+		int restoredCalls = 0;
+		JsonArray orphans = state.getAsJsonArray("pipelines");
+		for (JsonElement element : state.getAsJsonArray("calls")) {
+			JsonObject entry = element.getAsJsonObject();
+			UserSession caller = users.get(entry.get("caller").getAsString());
+			UserSession callee = users.get(entry.get("callee").getAsString());
+			JsonObject media = entry.getAsJsonObject("media");
+			if (caller == null || callee == null) {
+				orphans.add(media.get("pipeline"));
+				continue;
+			}
+			CallMediaPipeline pipeline;
+			try {
+				pipeline = CallMediaPipeline.fromSnapshot(kurento, media);
+			} catch (RuntimeException e) {
+				log.info("pipeline of call {} is gone: {}", entry.get("id").getAsString(), e.getMessage());
+				continue;
+			}
+			Call call = new Call(entry.get("id").getAsString(), caller, callee, entry.get("createdAt").getAsLong(), pipeline);
+			if (!calls.register(call)) {
+				orphans.add(media.get("pipeline"));
+				continue;
+			}
+			caller.setWebRtcEndpoint(pipeline.getCallerWebRtcEp());
+			callee.setWebRtcEndpoint(pipeline.getCalleeWebRtcEp());
+			listenToCallMedia(call, pipeline);
+			housekeeping.scheduleMaxDuration(call);
+			restoredCalls++;
+		}
+
+		int released = 0;
+		for (JsonElement element : orphans) {
+			try {
+				kurento.getById(element.getAsString(), MediaPipeline.class).release();
+				released++;
+			} catch (RuntimeException e) {
+				log.debug("pipeline {} is already gone: {}", element.getAsString(), e.getMessage());
+			}
+		}
+		log.info("restored {} users and {} calls, released {} pipelines of the previous run", users.size(), restoredCalls,
+				released);
+	}
+
+	/**
+	 * Glue for the {@link KmsSupervisor}: after the connection to the media
+	 * server was replaced, active calls are looked up again by the ids of
+	 * their media objects. Calls whose pipeline is gone or which were being
+	 * set up end with a 'stopCommunication', screen sharing stops. Rooms,
+	 * conferences and playbacks are ended, their events were bound to the
+	 * old connection.
+	 */
+	private KmsSupervisor.Listener mediaServerHandler() {
+		return new KmsSupervisor.Listener() {
+			@Override
+			public void reconnected(KurentoClient client) {
+				int reattached = 0;
+				int ended = 0;
+				for (Call call : calls.getCalls()) {
+					Call.State state = call.getState();
+					if (state == Call.State.RINGING) {
+						continue;
+					}
+					CallMediaPipeline pipeline = call.getPipeline();
+					CallMediaPipeline reattachedPipeline = null;
+					if ((state == Call.State.ACTIVE || state == Call.State.SCREEN_SHARING) && pipeline != null) {
+						try {
+							reattachedPipeline = CallMediaPipeline.fromSnapshot(client, pipeline.toSnapshot());
+						} catch (RuntimeException e) {
+							log.info("pipeline of {} is gone: {}", call, e.getMessage());
+						}
+					}
+					if (reattachedPipeline == null) {
+						expireCall(call, "media server lost");
+						ended++;
+						continue;
+					}
+					if (call.getScreenPipeline() != null) {
+						JsonObject message = new JsonObject();
+						message.addProperty("id", "stopScreenCommunication");
+						for (UserSession user : new UserSession[] { call.getCaller(), call.getCallee() }) {
+							try {
+								user.sendMessage(message);
+							} catch (IOException e) {
+								log.error(e.getLocalizedMessage(), e);
+							}
+						}
+						call.transition(Call.State.SCREEN_SHARING, Call.State.ACTIVE);
+						call.releaseScreen();
+					}
+					call.setPipeline(reattachedPipeline);
+					call.getCaller().setWebRtcEndpoint(reattachedPipeline.getCallerWebRtcEp());
+					call.getCallee().setWebRtcEndpoint(reattachedPipeline.getCalleeWebRtcEp());
+					listenToCallMedia(call, reattachedPipeline);
+					if (call.isMediaFlowing()) {
+						// the flow event may have been lost with the old connection
+						startRecording(reattachedPipeline);
+					}
+					reattached++;
+				}
+
+				for (Conference conference : conferences.values()) {
+					JsonObject message = new JsonObject();
+					message.addProperty("id", "stopCommunication");
+					message.addProperty("message", "media server lost");
+					conference.broadcast(message, null);
+					conferences.remove(conference.getName(), conference);
+					try {
+						conference.close();
+					} catch (RuntimeException e) {
+						log.debug("closing conference {} failed: {}", conference.getName(), e.getMessage());
+					}
+				}
+				for (UserSession user : registry.getUserSessions()) {
+					Conference conference = conferencesBySession.get(user.getSessionId());
+					if (conference != null && conference.isClosed() && conferencesBySession.remove(user.getSessionId(), conference)) {
+						user.clear();
+					}
+				}
+				playbacks.mediaServerLost();
+				for (Room room : RoomWebSocketServer.rooms.getRooms()) {
+					try {
+						RoomWebSocketServer.closeRoom(room);
+					} catch (RuntimeException e) {
+						log.debug("closing room {} failed: {}", room.getRoomName(), e.getMessage());
+					}
+				}
+				log.info("media server reconnected: {} calls reattached, {} calls ended", reattached, ended);
+			}
+		};
+	}
+
+	/**
+	 * Glue for the {@link Cluster}: call messages of users on other nodes,
+	 * presence changes there and the busy check for remote incoming calls.
+	 */
+	private Cluster.Handler clusterHandler() {
+		return new Cluster.Handler() {
+			@Override
+			public void onSignal(RemoteUserSession user, JsonObject message) {
+				String id = message.has("id") ? message.get("id").getAsString() : "";
+				if (!Cluster.CALL_MESSAGES.contains(id)) {
+					log.warn("ignoring {} of remote user {}", id, user.getName());
+					return;
+				}
+				handleMessage(message, user.getSession());
+			}
+
+			@Override
+			public void onPresence(String name, String status) {
+				try {
+					notifyOnlineStatus(name, status != null ? status : USER_STATUS_OFFLINE);
+					sendRegisteredUsers();
+				} catch (IOException e) {
+					log.error(e.getLocalizedMessage(), e);
+				}
+			}
+
+			@Override
+			public void onNodeLost(String node) {
+				for (Call call : calls.getCalls()) {
+					if (isOnNode(call.getCaller(), node) || isOnNode(call.getCallee(), node)) {
+						expireCall(call, "remote node lost");
+					}
+				}
+			}
+
+			@Override
+			public boolean isBusy(UserSession user) {
+				return calls.isInCall(user.getSession());
+			}
+		};
+	}
+
+	private static boolean isOnNode(UserSession user, String node) {
+		return user instanceof RemoteUserSession && ((RemoteUserSession) user).getNode().equals(node);
+	}
+
+	/**
+	 * Ends all calls of this node, both parties of each call get a
+	 * 'stopCommunication'.
+	 * 
+	 * @param reason
+	 */
+	public void hangUpAllCalls(String reason) {
+		for (Call call : calls.getCalls()) {
+			expireCall(call, reason);
+		}
+	}
+
+	/**
+	 * Cancels the call if the callee does not answer within
+	 * {@link Config#RING_TIMEOUT} seconds. The caller gets a rejected
+	 * 'callResponse', the callee a 'stopCommunication'.
+	 */
+	private void scheduleRingTimeout(final Call call) {
+		call.setStateTimeout(timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if (!call.transition(Call.State.RINGING, Call.State.ENDING)) {
+					return;
+				}
+				log.info("{} was not answered within {}s", call, Config.RING_TIMEOUT);
+				calls.remove(call);
+				call.release();
+
+				JsonObject response = new JsonObject();
+				response.addProperty("id", "callResponse");
+				response.addProperty("response", "rejected");
+				response.addProperty("message", "user '" + call.getCallee().getName() + "' did not answer");
+				try {
+					call.getCaller().sendMessage(response);
+				} catch (IOException e) {
+					log.error(e.getLocalizedMessage(), e);
+				}
+
+				response = new JsonObject();
+				response.addProperty("id", "stopCommunication");
+				response.addProperty("message", "missed call from " + call.getCaller().getName());
+				try {
+					call.getCallee().sendMessage(response);
+				} catch (IOException e) {
+					log.error(e.getLocalizedMessage(), e);
+				}
+			}
+		}, Config.RING_TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	/**
+	 * Ends the call if media does not flow in both directions within
+	 * {@link Config#MEDIA_TIMEOUT} seconds after it was accepted.
+	 */
+	private void scheduleMediaTimeout(final Call call) {
+		call.setStateTimeout(timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				if (!call.isMediaFlowing()) {
+					expireCall(call, "no media within " + Config.MEDIA_TIMEOUT + "s");
+				}
+			}
+		}, Config.MEDIA_TIMEOUT, TimeUnit.SECONDS));
+	}
+
+	private void scheduleMaxDuration(final Call call) {
+		call.setDurationTimeout(timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				expireCall(call, "maximum call duration of " + Config.MAX_CALL_DURATION + "s reached");
+			}
+		}, Config.MAX_CALL_DURATION, TimeUnit.SECONDS));
 	}
         
         public void stopScreen(Session session) throws IOException {
 
 		String sessionId = session.getId();
                 
-                
                 UserSession stopperUser = registry.getBySession(session);
+                Call call = calls.getBySession(session);
+                if (stopperUser == null || call == null) {
+                    log.debug("no call to stop screen sharing for session [{}]", sessionId);
+                    return;
+                }
                 log.debug("stopperUser: "+stopperUser.getName());
 
-                UserSession stoppedUserFrom = (stopperUser.getCallingFrom() != null) ? registry.getByName(stopperUser.getCallingFrom()) : null;
-
-                UserSession stoppedUserTo = (stopperUser.getCallingTo() != null )? registry.getByName(stopperUser.getCallingTo()) : null;
-                UserSession stopUser = null;
-
-                if(stoppedUserFrom !=null && stoppedUserFrom.getSession()!=null && !stoppedUserFrom.getSession().getId().equals(session.getId())){
-                    stopUser = stoppedUserFrom;
-                    JsonObject message = new JsonObject();
-                    message.addProperty("id", "stopScreenCommunication");
-                    stopUser.sendMessage(message);                 
-                     log.debug("die id des stoppenden IST NICHT! die des anrufenden. "+stopUser.getName() +" session is open:"+stopUser.getSession().isOpen());                 
-                }      
-                else if(stoppedUserTo!=null && stoppedUserTo.getSession()!=null){
-                  
-                    //wenn der anrufer auflegt. (wird anschließend, die pipeline des anrufenden gesucht und exisitert nicht mehr) 
-                   stopUser = stoppedUserTo;
-                   
-                   JsonObject message = new JsonObject();
-                   message.addProperty("id", "stopScreenCommunication");
-                   stopUser.sendMessage(message);
-                   log.info("die id des stoppenden IST! die des anrufenden. "+stopUser.getName() +" session is open:"+stopUser.getSession().isOpen());
-                 //   stopUser.clear(); 
-               }
-
-                if (pipelines.containsKey(sessionId+"S")) {
-                    MediaPipeline pipeline1 = pipelines.remove(sessionId+"S");
-                    // pipeline1.release();  //in tomcat this seems to release the other piplines of video and audio too! we don't want this. in glassfish this seems to be a correct behavior           
-                    log.info("stopped media connection of websocket id [{}]", sessionId+"S");
-                }
-                
-                if (pipelines.containsKey(stopUser.getSession().getId()+"S")) {
-                    MediaPipeline pipeline2 = pipelines.remove(stopUser.getSession().getId()+"S");
-                    if(pipeline2!=null && pipeline2.isCommited())
-                    // pipeline2.release();  //in tomcat this seems to release the other piplines of video and audio too! we don't want this. in glassfish this seems to be a correct behavior
-                     
-                    log.info("stopped media connection of websocket id [{}]", stopUser.getSession().getId()+"S");
-                }
-                log.info("Stopped Screensharing - session is open:"+session.isOpen(), sessionId);
-                log.info("pipelines registered:"+pipelines.keySet().toString());
+                UserSession stopUser = call.getPeer(stopperUser);
+                JsonObject message = new JsonObject();
+                message.addProperty("id", "stopScreenCommunication");
+                stopUser.sendMessage(message);
+                log.debug("sent stopScreenCommunication to "+stopUser.getName() +" session is open:"+stopUser.getSession().isOpen());
+
+                call.transition(Call.State.SCREEN_SHARING, Call.State.ACTIVE);
+                call.releaseScreen();
 
+                log.info("Stopped Screensharing of {} - session is open: {}", call, session.isOpen());
 	}
 
-}
\ No newline at end of file
+}
@@ -51,6 +51,7 @@ var configuration = {
 
 var registerName = null;
 var registerState = null;
+var resumeToken = null;
 const NOT_REGISTERED = 0;
 const REGISTERING = 1;
 const REGISTERED = 2;
@@ -174,10 +175,50 @@ $(function() {
 });
 
 window.onbeforeunload = function() {
+    resumeToken = null;
     ws.close();
 }
 
-ws.onmessage = function(message) {
+ws.onmessage = handleMessage;
+ws.onclose = handleClose;
+
+// the server keeps our call for a while if the connection drops (e.g. wifi -> lte), try to get it back
+function handleClose() {
+    if (resumeToken && callState == IN_CALL) {
+        console.log("ws connection lost during call, resuming...");
+        setTimeout(reconnect, 1000);
+    }
+}
+
+function reconnect() {
+    ws = new WebSocket('wss://' + location.host + '/jWebrtc/ws');
+    ws.onmessage = handleMessage;
+    ws.onclose = handleClose;
+    ws.onopen = function() {
+        sendMessage({
+            id: 'resume',
+            token: resumeToken
+        });
+    }
+}
+
+function resumeResponse(message) {
+    if (message.response == 'accepted') {
+        resumeToken = message.resumeToken;
+        console.log("session resumed, call still active: " + message.inCall);
+        if (!message.inCall) {
+            stop(true);
+        }
+    } else {
+        console.log("could not resume session: " + message.message);
+        resumeToken = null;
+        stop(true);
+        setRegisterState(NOT_REGISTERED);
+        requestAppConfig();
+    }
+}
+
+function handleMessage(message) {
     var parsedMessage = JSON.parse(message.data);
     console.info('Received message: ' + message.data);
 
@@ -188,6 +229,9 @@ ws.onmessage = function(message) {
             case 'registerResponse':
                 registerResponse(parsedMessage);
                 break;
+            case 'resumeResponse':
+                resumeResponse(parsedMessage);
+                break;
             case 'registeredUsers':
                 updateRegisteredUsers(JSON.parse(parsedMessage.response));
                 break;
@@ -271,6 +315,7 @@ function readAppConfig(message) {
 function registerResponse(message) {
     if (message.response == 'accepted') {
         setRegisterState(REGISTERED);
+        resumeToken = message.resumeToken;
         console.log(message.message);
     } else {
         setRegisterState(NOT_REGISTERED);